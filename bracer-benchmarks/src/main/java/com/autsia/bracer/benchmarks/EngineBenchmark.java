@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer.benchmarks;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.JitCompiler;
+import com.autsia.bracer.JitExpression;
+import org.apache.commons.math3.complex.Complex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one row on each engine of {@link CompiledExpression}: the complex
+ * and real interpreters, the batch evaluation and the JIT-compiled class
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EngineBenchmark {
+
+    private static final int ROWS = 4096;
+
+    @Param({"SHORT", "LONG"})
+    private String formula;
+
+    @Param({"false", "true"})
+    private boolean optimizing;
+
+    private CompiledExpression compiledExpression;
+    private JitExpression jitExpression;
+    private double[] column;
+    private double[] result;
+
+    @Setup
+    public void setUp() throws ParseException {
+        BracerParser bracerParser = new BracerParser(3);
+        bracerParser.setOptimizing(optimizing);
+        compiledExpression = bracerParser.parse(Formulas.forName(formula));
+        jitExpression = JitCompiler.compile(compiledExpression);
+        column = new double[ROWS];
+        result = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            column[i] = i * 0.01 + 0.5;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double complexEngine() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            Complex value = compiledExpression.evaluateComplex(column[i]);
+            sum += value.getReal();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double realEngine() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            sum += compiledExpression.evaluateReal(column[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] batch() {
+        compiledExpression.evaluateBatch(column, result);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double jit() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            sum += jitExpression.evaluate(column[i]);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer.benchmarks;
+
+import com.autsia.bracer.BracerParser;
+import org.apache.commons.math3.complex.Complex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the evaluation through {@link BracerParser}: the formatted
+ * <code>evaluate()</code> and <code>evaluate(double)</code> against
+ * <code>evaluateComplex</code>, for several precisions. The formula is
+ * parsed once in the setup.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EvaluateBenchmark {
+
+    @Param({"SHORT", "LONG", "COMPLEX"})
+    private String formula;
+
+    @Param({"0", "3", "10"})
+    private int precision;
+
+    private BracerParser constantParser;
+    private BracerParser variableParser;
+    private double value;
+    private StringBuilder output;
+
+    @Setup
+    public void setUp() throws ParseException {
+        String expression = Formulas.forName(formula);
+        variableParser = new BracerParser(precision);
+        variableParser.parse(expression);
+        /* same formula with the variable replaced by a constant */
+        constantParser = new BracerParser(precision);
+        constantParser.parse(expression.replaceAll("\\bx\\b", "0.75"));
+        value = 0.75;
+        output = new StringBuilder();
+    }
+
+    @Benchmark
+    public String evaluate() throws ParseException {
+        return constantParser.evaluate();
+    }
+
+    @Benchmark
+    public String evaluateVariable() throws ParseException {
+        return variableParser.evaluate(value);
+    }
+
+    @Benchmark
+    public StringBuilder evaluateVariableTo() throws ParseException {
+        output.setLength(0);
+        return variableParser.evaluate(output, value);
+    }
+
+    @Benchmark
+    public Complex evaluateComplex() throws ParseException {
+        return constantParser.evaluateComplex();
+    }
+
+    @Benchmark
+    public Complex evaluateComplexVariable() throws ParseException {
+        return variableParser.evaluateComplex(value);
+    }
+
+}
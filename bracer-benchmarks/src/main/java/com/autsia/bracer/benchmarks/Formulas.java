@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer.benchmarks;
+
+/**
+ * Formulas shared by the benchmarks
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class Formulas {
+
+    /* a few tokens */
+    static final String SHORT = "x * 2 + 1";
+    /* typical formula with functions, a variable and constants */
+    static final String LONG = "sin(x) * cos(x / 2) + sqrt(pow(x, 2) + 1) - log(abs(x) + 1) / exp(0.5) "
+            + "+ tan(x / 4) * 3.14159 - cosh(x / 10) + 2.718281828 * x - 42 / (x * x + 1)";
+    /* complex constants and functions */
+    static final String COMPLEX = "-sin(3+x*I+cosh(10*I)/exp(10/pow(22,-1)))";
+
+    private Formulas() {
+    }
+
+    /**
+     * Builds the formula of deeply nested brackets
+     *
+     * @param depth Number of bracket levels
+     * @return <code>String</code> formula
+     */
+    static String nested(int depth) {
+        StringBuilder formula = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            formula.append("(x + ");
+        }
+        formula.append('1');
+        for (int i = 0; i < depth; i++) {
+            formula.append(')');
+        }
+        return formula.toString();
+    }
+
+    /**
+     * Resolves the name of the formula used in the <code>@Param</code>
+     *
+     * @param name One of SHORT, LONG, NESTED or COMPLEX
+     * @return <code>String</code> formula
+     */
+    static String forName(String name) {
+        switch (name) {
+            case "SHORT":
+                return SHORT;
+            case "LONG":
+                return LONG;
+            case "NESTED":
+                return nested(100);
+            case "COMPLEX":
+                return COMPLEX;
+            default:
+                throw new IllegalArgumentException("Unknown formula: " + name);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer.benchmarks;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.ExpressionSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link BracerParser#parse(String)} on short, long and deeply
+ * nested formulas, with and without the optimizer, compared to loading the
+ * same compiled expression with {@link ExpressionSerializer}
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParseBenchmark {
+
+    @Param({"SHORT", "LONG", "NESTED", "COMPLEX"})
+    private String formula;
+
+    @Param({"false", "true"})
+    private boolean optimizing;
+
+    private String expression;
+    private BracerParser bracerParser;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws ParseException {
+        expression = Formulas.forName(formula);
+        bracerParser = new BracerParser(3);
+        bracerParser.setOptimizing(optimizing);
+        serialized = ExpressionSerializer.toByteArray(bracerParser.parse(expression));
+    }
+
+    @Benchmark
+    public CompiledExpression parse() throws ParseException {
+        return bracerParser.parse(expression);
+    }
+
+    @Benchmark
+    public CompiledExpression load() {
+        return ExpressionSerializer.read(ByteBuffer.wrap(serialized), null);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer.jfr;
+
+import com.autsia.bracer.MetricsRecorder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorder that emits the JDK Flight Recorder event
+ * <code>com.autsia.bracer.Operation</code> for every operation, so the flight
+ * recordings show the parsing and evaluation of the expressions next to the
+ * rest of the application. The event is disabled until the recording enables
+ * it. The duration measured by the parser is the "Elapsed" field of the
+ * event, the own duration of the event is zero, so the event has no
+ * threshold.
+ * <p>
+ * The recorder is shipped in the separate <code>bracer-jfr</code> artifact,
+ * since the Flight Recorder API needs Java 11 while the core library runs on
+ * Java 8.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class JfrMetricsRecorder implements MetricsRecorder {
+
+    @Override
+    public void record(Operation operation, String expression, long fingerprint, long durationNanos,
+                       boolean failed) {
+        OperationEvent event = new OperationEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.operation = operation.name();
+        event.expression = expression;
+        event.fingerprint = fingerprint;
+        event.elapsed = durationNanos;
+        event.failed = failed;
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /* event of the operation of the parser, created after the operation */
+    @Name("com.autsia.bracer.Operation")
+    @Label("Bracer Operation")
+    @Category("Bracer")
+    @Description("Parsing or evaluation of the math expression")
+    @StackTrace(false)
+    static final class OperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Expression")
+        String expression;
+
+        @Label("Fingerprint")
+        long fingerprint;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+}
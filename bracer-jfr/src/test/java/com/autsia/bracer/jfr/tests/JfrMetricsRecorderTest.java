@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.jfr.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.jfr.JfrMetricsRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for {@link JfrMetricsRecorder}.
+ */
+public class JfrMetricsRecorderTest {
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        BracerParser bracerParser = new BracerParser(3);
+        bracerParser.setMetricsRecorder(new JfrMetricsRecorder());
+        Path file = Files.createTempFile("bracer", ".jfr");
+        List<RecordedEvent> events = new ArrayList<>();
+        try (Recording recording = new Recording()) {
+            recording.enable("com.autsia.bracer.Operation");
+            recording.start();
+            bracerParser.parse("sin(x) * 2");
+            bracerParser.evaluate(1);
+            recording.stop();
+            recording.dump(file);
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals("com.autsia.bracer.Operation")) {
+                    events.add(event);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("PARSE", events.get(0).getString("operation"));
+        Assert.assertEquals("EVALUATE", events.get(1).getString("operation"));
+        Assert.assertEquals("sin(x) * 2", events.get(1).getString("expression"));
+        Assert.assertFalse(events.get(1).getBoolean("failed"));
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.util.Arrays;
+
+/**
+ * Evaluator of {@link CompiledExpression} in the number system of the
+ * {@link NumericBackend}, e.g. <code>BigDecimal</code> or intervals. It runs
+ * the program as parsed rather than the optimized one, so no constant is
+ * folded in <code>double</code> before it reaches the backend: every
+ * operation of the source text is done by the backend.
+ * <p>
+ * This is a separate interpreter, the <code>double</code> and complex
+ * engines of the expression are not touched by it and keep working on the
+ * primitive stacks. The constants are converted once, when the evaluator is
+ * created. A boolean value is the backend value of one or zero, the
+ * conditions are true when they are equal to one.
+ * <p>
+ * The evaluator is reusable but not thread-safe.
+ *
+ * @param <T> Type of the numbers
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class BackendEvaluator<T> {
+
+    private final CompiledExpression expression;
+    private final NumericBackend<T> backend;
+    /* program as parsed */
+    private final CompiledExpression program;
+    /* constant pool converted by the backend */
+    private final Object[] constants;
+    private final Object[] variableValues;
+    /* operand stack followed by the temporaries */
+    private final Object[] stack;
+    private final T one;
+    private final T zero;
+
+    /**
+     * Creates the evaluator of the expression, all the variables are zero
+     *
+     * @param expression Compiled expression
+     * @param backend    Number system
+     * @throws UnsupportedOperationException if the expression calls a
+     *                                       user-defined function or has an
+     *                                       imaginary constant the backend
+     *                                       does not support
+     * @since 8.0
+     */
+    public BackendEvaluator(CompiledExpression expression, NumericBackend<T> backend) {
+        this.expression = expression;
+        this.backend = backend;
+        this.program = expression.fallback();
+        for (int instruction : program.code()) {
+            if (Opcodes.opcode(instruction) == Opcodes.CALL) {
+                /* the functions work on double, their results would not be exact or guaranteed */
+                throw new UnsupportedOperationException("User-defined function "
+                        + program.functions()[Opcodes.operand(instruction)].name()
+                        + " cannot be evaluated by " + backend.getClass().getSimpleName());
+            }
+        }
+        double[] re = program.constantsRe();
+        double[] im = program.constantsIm();
+        this.constants = new Object[re.length];
+        for (int i = 0; i < re.length; i++) {
+            /* the imaginary parts of the constants of the real programs only serve the complex engine */
+            constants[i] = im[i] == 0 || expression.isReal() ? backend.valueOf(re[i])
+                    : backend.valueOf(re[i], im[i]);
+        }
+        this.one = backend.valueOf(1);
+        this.zero = backend.valueOf(0);
+        this.variableValues = new Object[expression.variableCount()];
+        Arrays.fill(variableValues, zero);
+        this.stack = new Object[program.frameSize()];
+    }
+
+    /**
+     * Get the expression evaluated by this evaluator
+     *
+     * @return <code>CompiledExpression</code> expression
+     * @since 8.0
+     */
+    public CompiledExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Get the number system of this evaluator
+     *
+     * @return <code>NumericBackend</code> backend
+     * @since 8.0
+     */
+    public NumericBackend<T> getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets the value of the variable
+     *
+     * @param slot  Slot of the variable, see
+     *              {@link CompiledExpression#getVariableIndex(String)}
+     * @param value Value in the number system of the backend
+     * @return <code>BackendEvaluator</code> this evaluator
+     * @throws IndexOutOfBoundsException if there is no such slot
+     * @since 8.0
+     */
+    public BackendEvaluator<T> setVariable(int slot, T value) {
+        variableValues[slot] = value;
+        return this;
+    }
+
+    /**
+     * Sets the value of the variable
+     *
+     * @param name  Name of the variable
+     * @param value Value in the number system of the backend
+     * @return <code>BackendEvaluator</code> this evaluator
+     * @throws IllegalArgumentException if the expression does not reference
+     *                                  the variable
+     * @since 8.0
+     */
+    public BackendEvaluator<T> setVariable(String name, T value) {
+        int slot = expression.getVariableIndex(name);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown variable: " + name);
+        }
+        variableValues[slot] = value;
+        return this;
+    }
+
+    /**
+     * Evaluates the expression with the current values of the variables
+     *
+     * @return result in the number system of the backend
+     * @throws UnsupportedOperationException if the backend does not support
+     *                                       some operation of the expression
+     * @throws ArithmeticException           if the backend cannot compute
+     *                                       some operation, e.g. the
+     *                                       division by zero
+     * @since 8.0
+     */
+    @SuppressWarnings("unchecked")
+    public T evaluate() {
+        Object[] stack = this.stack;
+        int[] code = program.code();
+        int base = program.maxStackDepth();
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instruction = code[pc];
+            switch (Opcodes.opcode(instruction)) {
+                case Opcodes.CONST:
+                    stack[++top] = constants[Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.VAR:
+                    stack[++top] = variableValues[Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.TEE:
+                    stack[base + Opcodes.operand(instruction)] = stack[top];
+                    break;
+                case Opcodes.LOAD:
+                    stack[++top] = stack[base + Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.ADD:
+                    top--;
+                    stack[top] = backend.add((T) stack[top], (T) stack[top + 1]);
+                    break;
+                case Opcodes.SUB:
+                    top--;
+                    stack[top] = backend.subtract((T) stack[top], (T) stack[top + 1]);
+                    break;
+                case Opcodes.MUL:
+                    top--;
+                    stack[top] = backend.multiply((T) stack[top], (T) stack[top + 1]);
+                    break;
+                case Opcodes.DIV:
+                    top--;
+                    stack[top] = backend.divide((T) stack[top], (T) stack[top + 1]);
+                    break;
+                case Opcodes.POW:
+                    top--;
+                    stack[top] = backend.pow((T) stack[top], (T) stack[top + 1]);
+                    break;
+                case Opcodes.OR:
+                    top--;
+                    stack[top] = isTrue(stack[top + 1]) || isTrue(stack[top]) ? one : zero;
+                    break;
+                case Opcodes.AND:
+                    top--;
+                    stack[top] = isTrue(stack[top + 1]) && isTrue(stack[top]) ? one : zero;
+                    break;
+                case Opcodes.NOT:
+                    stack[top] = isTrue(stack[top]) ? zero : one;
+                    break;
+                case Opcodes.LT:
+                    top--;
+                    stack[top] = compare(stack[top], stack[top + 1]) < 0 ? one : zero;
+                    break;
+                case Opcodes.LE:
+                    top--;
+                    stack[top] = compare(stack[top], stack[top + 1]) <= 0 ? one : zero;
+                    break;
+                case Opcodes.GT:
+                    top--;
+                    stack[top] = compare(stack[top], stack[top + 1]) > 0 ? one : zero;
+                    break;
+                case Opcodes.GE:
+                    top--;
+                    stack[top] = compare(stack[top], stack[top + 1]) >= 0 ? one : zero;
+                    break;
+                case Opcodes.EQ:
+                    top--;
+                    stack[top] = compare(stack[top], stack[top + 1]) == 0 ? one : zero;
+                    break;
+                case Opcodes.NE:
+                    top--;
+                    stack[top] = compare(stack[top], stack[top + 1]) != 0 ? one : zero;
+                    break;
+                case Opcodes.TRUTH:
+                    stack[top] = isTrue(stack[top]) ? one : zero;
+                    break;
+                case Opcodes.JUMP:
+                    pc = Opcodes.operand(instruction) - 1;
+                    break;
+                case Opcodes.JUMP_IF_FALSE:
+                    if (!isTrue(stack[top--])) {
+                        pc = Opcodes.operand(instruction) - 1;
+                    }
+                    break;
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                    if (!isTrue(stack[top])) {
+                        stack[top] = zero;
+                        pc = Opcodes.operand(instruction) - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case Opcodes.JUMP_IF_TRUE_OR_POP:
+                    if (isTrue(stack[top])) {
+                        stack[top] = one;
+                        pc = Opcodes.operand(instruction) - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case Opcodes.NEG:
+                    stack[top] = backend.negate((T) stack[top]);
+                    break;
+                case Opcodes.ABS:
+                    stack[top] = backend.abs((T) stack[top]);
+                    break;
+                case Opcodes.ACOS:
+                    stack[top] = backend.acos((T) stack[top]);
+                    break;
+                case Opcodes.ARG:
+                    stack[top] = backend.arg((T) stack[top]);
+                    break;
+                case Opcodes.ASIN:
+                    stack[top] = backend.asin((T) stack[top]);
+                    break;
+                case Opcodes.ATAN:
+                    stack[top] = backend.atan((T) stack[top]);
+                    break;
+                case Opcodes.CONJ:
+                    stack[top] = backend.conj((T) stack[top]);
+                    break;
+                case Opcodes.COS:
+                    stack[top] = backend.cos((T) stack[top]);
+                    break;
+                case Opcodes.COSH:
+                    stack[top] = backend.cosh((T) stack[top]);
+                    break;
+                case Opcodes.EXP:
+                    stack[top] = backend.exp((T) stack[top]);
+                    break;
+                case Opcodes.IMAG:
+                    stack[top] = backend.imag((T) stack[top]);
+                    break;
+                case Opcodes.LOG:
+                    stack[top] = backend.log((T) stack[top]);
+                    break;
+                case Opcodes.REAL:
+                    stack[top] = backend.real((T) stack[top]);
+                    break;
+                case Opcodes.SIN:
+                    stack[top] = backend.sin((T) stack[top]);
+                    break;
+                case Opcodes.SINH:
+                    stack[top] = backend.sinh((T) stack[top]);
+                    break;
+                case Opcodes.SQRT:
+                    stack[top] = backend.sqrt((T) stack[top]);
+                    break;
+                case Opcodes.TAN:
+                    stack[top] = backend.tan((T) stack[top]);
+                    break;
+                case Opcodes.TANH:
+                    stack[top] = backend.tanh((T) stack[top]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + Opcodes.opcode(instruction));
+            }
+        }
+        T result = (T) stack[0];
+        /* the stack must not keep the values of the previous evaluation reachable */
+        Arrays.fill(stack, null);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Object a, Object b) {
+        return backend.compare((T) a, (T) b);
+    }
+
+    /* the same as "== 1.0" of the double engine */
+    private boolean isTrue(Object value) {
+        return value == one || value != zero && compare(value, one) == 0;
+    }
+
+}
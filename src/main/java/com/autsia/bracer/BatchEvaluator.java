@@ -0,0 +1,669 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import org.apache.commons.math3.util.FastMath;
+
+import java.util.Arrays;
+
+/**
+ * Column-at-a-time interpreter. The rows are processed in chunks that fit
+ * into the CPU cache, and every instruction of the program is applied to the
+ * whole chunk in a tight loop, so the dispatch overhead is paid once per
+ * instruction rather than once per row and the loops over primitive arrays
+ * can be vectorized by the JIT compiler.
+ * <p>
+ * The rows of the programs with conditional operations may take different
+ * paths, so such programs are interpreted row by row: the untaken branches
+ * are skipped, just like in the scalar evaluation.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class BatchEvaluator {
+
+    /* number of rows processed at once */
+    static final int CHUNK_SIZE = 1024;
+
+    private BatchEvaluator() {
+    }
+
+    /**
+     * Evaluates the expression for every row of the columns
+     *
+     * @param expression Compiled expression
+     * @param columns    Values of the variables, one column per slot
+     * @param rows       Number of rows
+     * @param resultRe   Output column of real parts
+     * @param resultIm   Output column of imaginary parts or <code>null</code>
+     */
+    static void evaluate(CompiledExpression expression, double[][] columns, int rows,
+                         double[] resultRe, double[] resultIm) {
+        if (expression.isBranching()) {
+            evaluateRows(expression, columns, rows, resultRe, resultIm);
+            return;
+        }
+        int depth = expression.frameSize();
+        int chunk = Math.min(rows, CHUNK_SIZE);
+        double[][] re = new double[depth][chunk];
+        double[][] im = null;
+        boolean[] escaped = null;
+        for (int from = 0; from < rows; from += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, rows - from);
+            if (expression.isReal()) {
+                if (escaped == null) {
+                    escaped = new boolean[chunk];
+                }
+                boolean anyEscaped = executeReal(expression, columns, from, n, re, escaped);
+                System.arraycopy(re[0], 0, resultRe, from, n);
+                if (resultIm != null) {
+                    Arrays.fill(resultIm, from, from + n, 0);
+                }
+                if (anyEscaped) {
+                    evaluateEscaped(expression, columns, from, n, escaped, resultRe, resultIm);
+                }
+                continue;
+            }
+            if (im == null) {
+                im = new double[depth][chunk];
+            }
+            execute(expression, columns, from, n, re, im);
+            System.arraycopy(re[0], 0, resultRe, from, n);
+            if (resultIm != null) {
+                System.arraycopy(im[0], 0, resultIm, from, n);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the rows one by one by the scalar engines
+     */
+    private static void evaluateRows(CompiledExpression expression, double[][] columns, int rows,
+                                     double[] resultRe, double[] resultIm) {
+        double[] variableValues = new double[expression.variableCount()];
+        double[] stack = new double[expression.frameSize()];
+        CompiledExpression fallback = expression.fallback();
+        double[] re = new double[fallback.frameSize()];
+        double[] im = new double[fallback.frameSize()];
+        for (int i = 0; i < rows; i++) {
+            for (int slot = 0; slot < variableValues.length; slot++) {
+                variableValues[slot] = columns[slot][i];
+            }
+            if (expression.isReal() && expression.executeReal(variableValues, stack)) {
+                resultRe[i] = stack[0];
+                if (resultIm != null) {
+                    resultIm[i] = 0;
+                }
+                continue;
+            }
+            fallback.execute(variableValues, re, im);
+            resultRe[i] = re[0];
+            if (resultIm != null) {
+                resultIm[i] = im[0];
+            }
+        }
+    }
+
+    /**
+     * Evaluates the rows that left the real domain by the complex engine one
+     * by one, exactly as the scalar evaluation does
+     */
+    private static void evaluateEscaped(CompiledExpression expression, double[][] columns, int from, int n,
+                                        boolean[] escaped, double[] resultRe, double[] resultIm) {
+        double[] variableValues = new double[expression.variableCount()];
+        CompiledExpression fallback = expression.fallback();
+        double[] re = new double[fallback.frameSize()];
+        double[] im = new double[fallback.frameSize()];
+        for (int i = 0; i < n; i++) {
+            if (!escaped[i]) {
+                continue;
+            }
+            for (int slot = 0; slot < variableValues.length; slot++) {
+                variableValues[slot] = columns[slot][from + i];
+            }
+            fallback.execute(variableValues, re, im);
+            resultRe[from + i] = re[0];
+            if (resultIm != null) {
+                resultIm[from + i] = im[0];
+            }
+        }
+    }
+
+    /**
+     * Runs the program over the chunk of real numbers
+     *
+     * @return <code>true</code> if some value is out of the real domain, the
+     * rows with such values are marked as escaped and have to be evaluated by
+     * the complex engine
+     */
+    private static boolean executeReal(CompiledExpression expression, double[][] columns, int from, int n,
+                                       double[][] stack, boolean[] escaped) {
+        double[] constants = expression.constantsRe();
+        int temporaries = expression.maxStackDepth();
+        boolean anyEscaped = false;
+        Arrays.fill(escaped, 0, n, false);
+        int top = -1;
+        for (int instruction : expression.code()) {
+            int operand = Opcodes.operand(instruction);
+            switch (Opcodes.opcode(instruction)) {
+                case Opcodes.CONST:
+                    Arrays.fill(stack[++top], 0, n, constants[operand]);
+                    break;
+                case Opcodes.VAR:
+                    System.arraycopy(columns[operand], from, stack[++top], 0, n);
+                    break;
+                case Opcodes.TEE:
+                    System.arraycopy(stack[top], 0, stack[temporaries + operand], 0, n);
+                    break;
+                case Opcodes.LOAD:
+                    System.arraycopy(stack[temporaries + operand], 0, stack[++top], 0, n);
+                    break;
+                case Opcodes.CALL: {
+                    UserFunction function = expression.functions()[operand];
+                    top -= function.arity() - 1;
+                    double[] arguments = new double[function.arity()];
+                    for (int i = 0; i < n; i++) {
+                        for (int k = 0; k < arguments.length; k++) {
+                            arguments[k] = stack[top + k][i];
+                        }
+                        stack[top][i] = function.applyReal(arguments, 0);
+                    }
+                    break;
+                }
+                case Opcodes.ADD: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] += a[i];
+                    }
+                    break;
+                }
+                case Opcodes.SUB: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] -= a[i];
+                    }
+                    break;
+                }
+                case Opcodes.MUL: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] *= a[i];
+                    }
+                    break;
+                }
+                case Opcodes.DIV: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        escaped[i] |= a[i] == 0;
+                        b[i] /= a[i];
+                    }
+                    break;
+                }
+                case Opcodes.POW: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        escaped[i] |= b[i] == 0 || b[i] < 0 && a[i] != Math.rint(a[i]);
+                        b[i] = Math.pow(b[i], a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.OR: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = a[i] == 1.0 || b[i] == 1.0 ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.AND: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = a[i] == 1.0 && b[i] == 1.0 ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.NOT: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] == 1.0 ? 0 : 1;
+                    }
+                    break;
+                }
+                case Opcodes.LT: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = b[i] < a[i] ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.LE: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = b[i] <= a[i] ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.GT: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = b[i] > a[i] ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.GE: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = b[i] >= a[i] ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.EQ: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = b[i] == a[i] ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.NE: {
+                    double[] b = stack[--top];
+                    double[] a = stack[top + 1];
+                    for (int i = 0; i < n; i++) {
+                        b[i] = b[i] != a[i] ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.TRUTH: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] == 1.0 ? 1 : 0;
+                    }
+                    break;
+                }
+                case Opcodes.ABS: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.abs(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.ACOS: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        escaped[i] |= a[i] < -1 || a[i] > 1;
+                        a[i] = Math.acos(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.ARG: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.atan2(0.0, a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.ASIN: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        escaped[i] |= a[i] < -1 || a[i] > 1;
+                        a[i] = Math.asin(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.ATAN: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.atan(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.CONJ:
+                case Opcodes.REAL:
+                    break;
+                case Opcodes.COS: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.cos(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.COSH: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.cosh(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.EXP: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.exp(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.IMAG:
+                    Arrays.fill(stack[top], 0, n, 0);
+                    break;
+                case Opcodes.LOG: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        escaped[i] |= a[i] <= 0;
+                        a[i] = Math.log(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.NEG: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = -a[i];
+                    }
+                    break;
+                }
+                case Opcodes.SIN: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.sin(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.SINH: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.sinh(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.SQRT: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        escaped[i] |= a[i] < 0;
+                        a[i] = Math.sqrt(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.TAN: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.tan(a[i]);
+                    }
+                    break;
+                }
+                case Opcodes.TANH: {
+                    double[] a = stack[top];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.tanh(a[i]);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + Opcodes.opcode(instruction));
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            anyEscaped |= escaped[i];
+        }
+        return anyEscaped;
+    }
+
+    /**
+     * Runs the program over the chunk of complex numbers
+     */
+    private static void execute(CompiledExpression expression, double[][] columns, int from, int n,
+                                double[][] re, double[][] im) {
+        double[] constantsRe = expression.constantsRe();
+        double[] constantsIm = expression.constantsIm();
+        int temporaries = expression.maxStackDepth();
+        int top = -1;
+        for (int instruction : expression.code()) {
+            int operand = Opcodes.operand(instruction);
+            int opcode = Opcodes.opcode(instruction);
+            switch (opcode) {
+                case Opcodes.CONST:
+                    top++;
+                    Arrays.fill(re[top], 0, n, constantsRe[operand]);
+                    Arrays.fill(im[top], 0, n, constantsIm[operand]);
+                    break;
+                case Opcodes.VAR:
+                    top++;
+                    System.arraycopy(columns[operand], from, re[top], 0, n);
+                    Arrays.fill(im[top], 0, n, 0);
+                    break;
+                case Opcodes.TEE:
+                    System.arraycopy(re[top], 0, re[temporaries + operand], 0, n);
+                    System.arraycopy(im[top], 0, im[temporaries + operand], 0, n);
+                    break;
+                case Opcodes.LOAD:
+                    top++;
+                    System.arraycopy(re[temporaries + operand], 0, re[top], 0, n);
+                    System.arraycopy(im[temporaries + operand], 0, im[top], 0, n);
+                    break;
+                case Opcodes.CALL: {
+                    UserFunction function = expression.functions()[operand];
+                    top -= function.arity() - 1;
+                    double[] argumentsRe = new double[Math.max(1, function.arity())];
+                    double[] argumentsIm = new double[argumentsRe.length];
+                    for (int i = 0; i < n; i++) {
+                        for (int k = 0; k < function.arity(); k++) {
+                            argumentsRe[k] = re[top + k][i];
+                            argumentsIm[k] = im[top + k][i];
+                        }
+                        function.applyComplex(argumentsRe, argumentsIm, 0);
+                        re[top][i] = argumentsRe[0];
+                        im[top][i] = argumentsIm[0];
+                    }
+                    break;
+                }
+                default:
+                    if (Opcodes.arity(opcode) == 2) {
+                        top--;
+                        binary(opcode, re[top], im[top], re[top + 1], im[top + 1], n);
+                    } else {
+                        unary(opcode, re[top], im[top], n);
+                    }
+            }
+        }
+    }
+
+    private static void binary(int opcode, double[] bRe, double[] bIm, double[] aRe, double[] aIm, int n) {
+        switch (opcode) {
+            case Opcodes.ADD:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.add(bRe[i], bIm[i], aRe[i], aIm[i], bRe, bIm, i);
+                }
+                break;
+            case Opcodes.SUB:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.subtract(bRe[i], bIm[i], aRe[i], aIm[i], bRe, bIm, i);
+                }
+                break;
+            case Opcodes.MUL:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.multiply(bRe[i], bIm[i], aRe[i], aIm[i], bRe, bIm, i);
+                }
+                break;
+            case Opcodes.DIV:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.divide(bRe[i], bIm[i], aRe[i], aIm[i], bRe, bIm, i);
+                }
+                break;
+            case Opcodes.POW:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.pow(bRe[i], bIm[i], aRe[i], aIm[i], bRe, bIm, i);
+                }
+                break;
+            case Opcodes.OR:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.isTrue(aRe[i]) || ComplexOps.isTrue(bRe[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.AND:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.isTrue(aRe[i]) && ComplexOps.isTrue(bRe[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.LT:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.less(bRe[i], bIm[i], aRe[i], aIm[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.LE:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.lessOrEqual(bRe[i], bIm[i], aRe[i], aIm[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.GT:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.less(aRe[i], aIm[i], bRe[i], bIm[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.GE:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.lessOrEqual(aRe[i], aIm[i], bRe[i], bIm[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.EQ:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.equal(bRe[i], bIm[i], aRe[i], aIm[i]), bRe, bIm, i);
+                }
+                break;
+            case Opcodes.NE:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(!ComplexOps.equal(bRe[i], bIm[i], aRe[i], aIm[i]), bRe, bIm, i);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcode);
+        }
+    }
+
+    private static void unary(int opcode, double[] re, double[] im, int n) {
+        switch (opcode) {
+            case Opcodes.NOT:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(!ComplexOps.isTrue(re[i]), re, im, i);
+                }
+                break;
+            case Opcodes.TRUTH:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.bool(ComplexOps.isTrue(re[i]), re, im, i);
+                }
+                break;
+            case Opcodes.ABS:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.set(ComplexOps.abs(re[i], im[i]), 0, re, im, i);
+                }
+                break;
+            case Opcodes.ACOS:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.acos(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.ARG:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.set(FastMath.atan2(im[i], re[i]), 0, re, im, i);
+                }
+                break;
+            case Opcodes.ASIN:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.asin(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.ATAN:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.atan(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.CONJ:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.conjugate(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.COS:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.cos(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.COSH:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.cosh(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.EXP:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.exp(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.IMAG:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.set(im[i], 0, re, im, i);
+                }
+                break;
+            case Opcodes.LOG:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.log(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.NEG:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.negate(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.REAL:
+                Arrays.fill(im, 0, n, 0);
+                break;
+            case Opcodes.SIN:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.sin(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.SINH:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.sinh(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.SQRT:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.sqrt(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.TAN:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.tan(re[i], im[i], re, im, i);
+                }
+                break;
+            case Opcodes.TANH:
+                for (int i = 0; i < n; i++) {
+                    ComplexOps.tanh(re[i], im[i], re, im, i);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcode);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Decimal arbitrary-precision backend: the arithmetic operators, the integer
+ * powers and the square root are rounded to the <code>MathContext</code>,
+ * negation and <code>abs</code> are exact. With
+ * <code>MathContext.UNLIMITED</code> all the operators are exact and the
+ * division that has no finite decimal result throws
+ * <code>ArithmeticException</code>. The transcendental functions are not
+ * supported.
+ * <p>
+ * The constants of the expression are the shortest decimal representations
+ * of their <code>double</code> values, which are the literals themselves as
+ * long as they have at most 15 significant digits, so "0.1" is exactly one
+ * tenth.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class BigDecimalBackend implements NumericBackend<BigDecimal> {
+
+    /* largest exponent of BigDecimal.pow */
+    private static final int MAX_EXPONENT = 999999999;
+    /* digits of the square root computed beyond the precision */
+    private static final int GUARD_DIGITS = 2;
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+    private final MathContext mathContext;
+
+    /**
+     * Creates the backend
+     *
+     * @param mathContext Precision and rounding of the operations
+     * @since 8.0
+     */
+    public BigDecimalBackend(MathContext mathContext) {
+        this.mathContext = mathContext;
+    }
+
+    /**
+     * Get the precision and rounding of the operations
+     *
+     * @return <code>MathContext</code> context
+     * @since 8.0
+     */
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ArithmeticException if the value is NaN or infinite
+     * @since 8.0
+     */
+    @Override
+    public BigDecimal valueOf(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new ArithmeticException("Not a decimal number: " + value);
+        }
+        BigDecimal decimal = BigDecimal.valueOf(value).stripTrailingZeros();
+        /* "1.0" and "1E+2" are printed as "1" and "100" */
+        return decimal.scale() < 0 ? decimal.setScale(0) : decimal;
+    }
+
+    @Override
+    public BigDecimal add(BigDecimal a, BigDecimal b) {
+        return a.add(b, mathContext);
+    }
+
+    @Override
+    public BigDecimal subtract(BigDecimal a, BigDecimal b) {
+        return a.subtract(b, mathContext);
+    }
+
+    @Override
+    public BigDecimal multiply(BigDecimal a, BigDecimal b) {
+        return a.multiply(b, mathContext);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ArithmeticException if the divisor is zero or the precision is
+     *                             unlimited and the quotient has no finite
+     *                             decimal representation
+     * @since 8.0
+     */
+    @Override
+    public BigDecimal divide(BigDecimal a, BigDecimal b) {
+        return a.divide(b, mathContext);
+    }
+
+    @Override
+    public BigDecimal negate(BigDecimal a) {
+        return a.negate();
+    }
+
+    @Override
+    public int compare(BigDecimal a, BigDecimal b) {
+        return a.compareTo(b);
+    }
+
+    /**
+     * Computes the power, the exponent must be an integer
+     *
+     * @param base     Base
+     * @param exponent Integer exponent
+     * @return number
+     * @throws UnsupportedOperationException if the exponent is not an integer
+     * @throws ArithmeticException           if the exponent is out of range,
+     *                                       or it is negative and the base
+     *                                       is zero
+     * @since 8.0
+     */
+    @Override
+    public BigDecimal pow(BigDecimal base, BigDecimal exponent) {
+        if (exponent.signum() != 0 && exponent.stripTrailingZeros().scale() > 0) {
+            throw unsupported("pow with fractional exponent " + exponent);
+        }
+        if (exponent.abs().compareTo(BigDecimal.valueOf(MAX_EXPONENT)) > 0) {
+            throw new ArithmeticException("Exponent is out of range: " + exponent);
+        }
+        int n = exponent.intValue();
+        if (n < 0 && base.signum() == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        if (n < 0 && mathContext.getPrecision() == 0) {
+            /* BigDecimal.pow does not take negative exponents with unlimited precision */
+            return BigDecimal.ONE.divide(base.pow(-n), mathContext);
+        }
+        return base.pow(n, mathContext);
+    }
+
+    @Override
+    public BigDecimal abs(BigDecimal a) {
+        return a.abs();
+    }
+
+    /**
+     * Computes the square root by Newton's iteration with two guard digits,
+     * the last digit may differ by one from the correctly rounded result
+     *
+     * @param a Operand
+     * @return number
+     * @throws ArithmeticException if the operand is negative or the precision
+     *                             is unlimited and the operand is not zero
+     * @since 8.0
+     */
+    @Override
+    public BigDecimal sqrt(BigDecimal a) {
+        if (a.signum() < 0) {
+            throw new ArithmeticException("Square root of negative number: " + a);
+        }
+        if (a.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        if (mathContext.getPrecision() == 0) {
+            throw new ArithmeticException("Square root requires limited precision");
+        }
+        MathContext working = new MathContext(mathContext.getPrecision() + GUARD_DIGITS, RoundingMode.HALF_EVEN);
+        /* a = m * 10^(2k) with m in [1, 100), so the double estimate of sqrt(m) neither overflows nor underflows */
+        int k = Math.floorDiv(a.precision() - a.scale() - 1, 2);
+        BigDecimal m = a.movePointLeft(2 * k);
+        BigDecimal x = new BigDecimal(Math.sqrt(m.doubleValue()), working);
+        /* the estimate has about 15 correct digits, every step doubles them */
+        for (int digits = 15; digits < working.getPrecision(); digits *= 2) {
+            x = x.add(m.divide(x, working), working).divide(TWO, working);
+        }
+        x = x.add(m.divide(x, working), working).divide(TWO, working);
+        return x.movePointRight(k).round(mathContext);
+    }
+
+}
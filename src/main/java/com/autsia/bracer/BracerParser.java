@@ -17,9 +17,7 @@
 package com.autsia.bracer;
 
 import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.complex.ComplexFormat;
 
-import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.*;
 
@@ -32,28 +30,28 @@ import java.util.*;
  */
 public class BracerParser {
 
-    /* list of available functions */
-    private final String[] FUNCTIONS = {"abs", "acos", "arg", "asin", "atan",
-            "conj", "cos", "cosh", "exp", "imag", "log", "neg", "pow", "real",
-            "sin", "sinh", "sqrt", "tan", "tanh", "not"};
-    /* list of available operators */
-    private final String OPERATORS = "+-*/&|!";
-    /* separator of arguments */
-    private final String SEPARATOR = ",";
-    /* imaginary symbol */
-    private final String IMAGINARY = "I";
-    /* variable token */
-    private final String VARIABLE = "var";
-    /* settings for complex formatting */
-    private ComplexFormat complexFormat = new ComplexFormat(IMAGINARY);
-    /* settings for numbers formatting */
-    private NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+    /* precedence of the prefix unary operators */
+    private static final byte UNARY_PRECEDENCE = 6;
+    /* formatter of the answers, only the output is rounded to the precision */
+    private ComplexFormatter formatter;
     /* temporary stack that holds operators, functions and brackets */
-    private Stack<String> stackOperations = new Stack<>();
+    private Deque<Operation> stackOperations = new ArrayDeque<>();
     /* stack for holding expression converted to reversed polish notation */
     private Stack<String> stackRPN = new Stack<>();
-    /* stack for holding the calculations result */
-    private Stack<String> stackAnswer = new Stack<>();
+    /* program compiled from the last parsed expression */
+    private CompiledExpression compiledExpression;
+    /* whether the parsed expressions are optimized */
+    private boolean optimizing;
+    /* user-defined functions, may be null */
+    private FunctionRegistry functionRegistry;
+    /* metrics of the operations, disabled by default */
+    private MetricsRecorder metricsRecorder = MetricsRecorder.NONE;
+    /* resource limits of the parsed expressions, none by default */
+    private ParseLimits limits = ParseLimits.NONE;
+    /* source text of the last parsed expression and its fingerprint, computed on demand */
+    private String expression;
+    private long fingerprint;
+    private boolean fingerprinted;
 
     /**
      * Class ctor for setting up the complex format of the parser
@@ -66,15 +64,15 @@ public class BracerParser {
     }
 
     /**
-     * Set the precision of the real and imaginary parts of numbers
+     * Set the precision of the real and imaginary parts of numbers. Only the
+     * answers are rounded, the computation always runs at full
+     * <code>double</code> precision.
      *
      * @param precision Number of digits after the dot
      * @since 2.0
      */
     public void setPrecision(int precision) {
-        numberFormat.setMinimumFractionDigits(precision);
-        numberFormat.setMaximumFractionDigits(precision);
-        complexFormat = new ComplexFormat(IMAGINARY, numberFormat, numberFormat);
+        formatter = new ComplexFormatter(precision);
     }
 
     /**
@@ -84,80 +82,487 @@ public class BracerParser {
      * @since 2.0
      */
     public int getPrecision() {
-        return numberFormat.getMinimumFractionDigits();
+        return formatter.getPrecision();
     }
 
     /**
-     * Parses the math expression (complicated formula) and stores the result
+     * Get the formatter of the answers, e.g. to format the results of
+     * {@link CompiledExpression} the same way as {@link #evaluate()} does
+     *
+     * @return <code>ComplexFormatter</code> formatter of the precision
+     * @since 8.0
+     */
+    public ComplexFormatter getFormatter() {
+        return formatter;
+    }
+
+    /**
+     * Set the registry of user-defined functions available in the parsed
+     * expressions
+     *
+     * @param functionRegistry Registry or <code>null</code> to use only the
+     *                         built-in functions
+     * @since 8.0
+     */
+    public void setFunctionRegistry(FunctionRegistry functionRegistry) {
+        this.functionRegistry = functionRegistry;
+    }
+
+    /**
+     * Get the registry of user-defined functions
+     *
+     * @return <code>FunctionRegistry</code> or <code>null</code> if only the
+     * built-in functions are available
+     * @since 8.0
+     */
+    public FunctionRegistry getFunctionRegistry() {
+        return functionRegistry;
+    }
+
+    /**
+     * Enable or disable the optimization of the parsed expressions, see
+     * {@link CompiledExpression#optimize()}. The reversed polish notation of
+     * the optimized program is available through {@link #getStackRPN()},
+     * the values computed by the common subexpressions are shown there as
+     * "=$0" (store to the temporary slot 0) and "$0" (load from it). The
+     * jumps of the conditional operations are shown with the index of their
+     * target: "goto 7", "if_false 7", "&amp;? 7" (jump if false or pop) and
+     * "|? 7" (jump if true or pop); "bool" converts the value to boolean.
+     *
+     * @param optimizing <code>true</code> to optimize
+     * @since 8.0
+     */
+    public void setOptimizing(boolean optimizing) {
+        this.optimizing = optimizing;
+    }
+
+    /**
+     * Check if the parsed expressions are optimized
+     *
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean isOptimizing() {
+        return optimizing;
+    }
+
+    /**
+     * Set the recorder of the metrics of <code>parse</code>,
+     * <code>evaluate</code> and <code>evaluateComplex</code>
+     *
+     * @param metricsRecorder Recorder or {@link MetricsRecorder#NONE} to
+     *                        disable the metrics
+     * @since 8.0
+     */
+    public void setMetricsRecorder(MetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder == null ? MetricsRecorder.NONE : metricsRecorder;
+    }
+
+    /**
+     * Get the recorder of the metrics
+     *
+     * @return <code>MetricsRecorder</code> recorder
+     * @since 8.0
+     */
+    public MetricsRecorder getMetricsRecorder() {
+        return metricsRecorder;
+    }
+
+    /**
+     * Set the resource limits of the parsed expressions, e.g. to accept the
+     * expressions of the untrusted users
+     *
+     * @param limits Limits or {@link ParseLimits#NONE} to accept any
+     *               expression the program format can hold
+     * @since 8.0
+     */
+    public void setLimits(ParseLimits limits) {
+        this.limits = limits == null ? ParseLimits.NONE : limits;
+    }
+
+    /**
+     * Get the resource limits of the parsed expressions
+     *
+     * @return <code>ParseLimits</code> limits
+     * @since 8.0
+     */
+    public ParseLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Parses the math expression (complicated formula), stores the result and
+     * compiles it into the immutable program
      *
      * @param expression <code>String</code> input expression (math formula)
-     * @throws ParseException if the input expression is not correct
+     * @return <code>CompiledExpression</code> program that can be evaluated
+     * independently of this parser
+     * @throws ParseException if the input expression is not correct or it
+     *                        exceeds the limits
      * @since 3.0
      */
-    public void parse(String expression) throws ParseException {
+    public CompiledExpression parse(String expression) throws ParseException {
+        this.expression = expression;
+        fingerprinted = false;
+        MetricsRecorder recorder = metricsRecorder;
+        if (!recorder.isEnabled()) {
+            return compile(expression);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            CompiledExpression compiled = compile(expression);
+            failed = false;
+            return compiled;
+        } finally {
+            recorder.record(MetricsRecorder.Operation.PARSE, expression, fingerprint(), System.nanoTime() - start,
+                    failed);
+        }
+    }
+
+    private CompiledExpression compile(String expression) throws ParseException {
         /* cleaning stacks */
         stackOperations.clear();
         stackRPN.clear();
-
-		/*
-         * make some preparations: remove spaces; handle unary + and -, handle
-		 * degree character
-		 */
-        expression = expression.replace(" ", "")
-                .replace("°", "*" + Double.toString(Math.PI) + "/180")
-                .replace("(-", "(0-").replace(",-", ",0-").replace("(+", "(0+")
-                .replace(",+", ",0+").replace("true", "1").replace("false", "0")
-                .replace("or", "|").replace("and", "&");
-        if (expression.charAt(0) == '-' || expression.charAt(0) == '+') {
-            expression = "0" + expression;
-        }
-        /* splitting input string into tokens */
-        StringTokenizer stringTokenizer = new StringTokenizer(expression, OPERATORS + SEPARATOR + "()", true);
+        compiledExpression = null;
+        ProgramBuilder program = new ProgramBuilder();
+        Lexer lexer = new Lexer(expression);
+        /* whether the next token starts an operand, e.g. "-" is unary then */
+        boolean operandExpected = true;
+        /* number of tokens read so far */
+        int tokens = 0;
 
 		/* loop for handling each token - shunting-yard algorithm */
-        while (stringTokenizer.hasMoreTokens()) {
-            String token = stringTokenizer.nextToken();
-            if (isSeparator(token)) {
-                while (!stackOperations.empty() && !isOpenBracket(stackOperations.lastElement())) {
-                    stackRPN.push(stackOperations.pop());
-                }
-            } else if (isOpenBracket(token)) {
-                stackOperations.push(token);
-            } else if (isCloseBracket(token)) {
-                while (!stackOperations.empty() && !isOpenBracket(stackOperations.lastElement())) {
-                    stackRPN.push(stackOperations.pop());
-                }
-                stackOperations.pop();
-                if (!stackOperations.empty() && isFunction(stackOperations.lastElement())) {
-                    stackRPN.push(stackOperations.pop());
-                }
-            } else if (isNumber(token)) {
-                if (token.equals(IMAGINARY)) {
-                    stackRPN.push(complexFormat.format(new Complex(0, 1)));
-                } else if (token.contains(IMAGINARY)) {
-                    stackRPN.push(complexFormat.format(complexFormat.parse("0+" + token)));
-                } else {
-                    stackRPN.push(token);
-                }
-            } else if (isOperator(token)) {
-                while (!stackOperations.empty()
-                        && isOperator(stackOperations.lastElement())
-                        && getPrecedence(token) <= getPrecedence(stackOperations.lastElement())) {
-                    stackRPN.push(stackOperations.pop());
-                }
-                stackOperations.push(token);
-            } else if (isFunction(token)) {
-                stackOperations.push(token);
-            } else {
-                throw new ParseException("Unrecognized token: " + token, 0);
+        for (int type = lexer.next(); type != Lexer.END; type = lexer.next()) {
+            if (++tokens > limits.getMaxTokens()) {
+                throw new ParseException("Expression is too long: more than " + limits.getMaxTokens() + " tokens",
+                        lexer.start());
+            }
+            switch (type) {
+                case Lexer.SEPARATOR:
+                    while (!stackOperations.isEmpty() && !stackOperations.peek().isOpenBracket()) {
+                        flushOperation(program);
+                    }
+                    Operation enclosing = enclosingFunction();
+                    if (enclosing != null && enclosing.opcode == Opcodes.JUMP_IF_FALSE) {
+                        branch(enclosing, lexer.start(), program);
+                    }
+                    operandExpected = true;
+                    break;
+                case Lexer.OPEN_BRACKET:
+                    checkOperandExpected(operandExpected, lexer);
+                    pushOperation(new Operation(lexer.text(), -1, 0, lexer.start()));
+                    break;
+                case Lexer.CLOSE_BRACKET:
+                    while (!stackOperations.isEmpty() && !stackOperations.peek().isOpenBracket()) {
+                        flushOperation(program);
+                    }
+                    if (stackOperations.isEmpty()) {
+                        throw new ParseException("Unexpected token: )", lexer.start());
+                    }
+                    stackOperations.pop();
+                    if (!stackOperations.isEmpty() && stackOperations.peek().isFunction()) {
+                        flushOperation(program);
+                    }
+                    operandExpected = false;
+                    break;
+                case Lexer.NUMBER:
+                    checkOperandExpected(operandExpected, lexer);
+                    stackRPN.push(lexer.text());
+                    program.emitConstant(lexer.value(), 0);
+                    operandExpected = false;
+                    break;
+                case Lexer.IMAGINARY:
+                    checkOperandExpected(operandExpected, lexer);
+                    stackRPN.push(formatter.format(0, lexer.value()));
+                    program.emitConstant(0, lexer.value());
+                    operandExpected = false;
+                    break;
+                case Lexer.OPERATOR:
+                    if (lexer.opcode() == Opcodes.NOT) {
+                        /* prefix unary operator binds to the operand that follows it */
+                        checkOperandExpected(operandExpected, lexer);
+                        pushOperation(new Operation(lexer.text(), Opcodes.NOT, UNARY_PRECEDENCE, lexer.start()));
+                    } else if (operandExpected && (lexer.opcode() == Opcodes.ADD || lexer.opcode() == Opcodes.SUB)) {
+                        /* unary sign is computed as subtraction from (addition to) zero */
+                        stackRPN.push("0");
+                        program.emitConstant(0, 0);
+                        pushOperation(new Operation(lexer.text(), lexer.opcode(), UNARY_PRECEDENCE, lexer.start()));
+                    } else {
+                        pushOperator(lexer.text(), lexer.opcode(), lexer.start(), program);
+                        operandExpected = true;
+                    }
+                    break;
+                case Lexer.DEGREE:
+                    /* degrees are converted to radians: "x\u00B0" is "x*pi/180" */
+                    pushOperator("*", Opcodes.MUL, lexer.start(), program);
+                    stackRPN.push(Double.toString(Math.PI));
+                    program.emitConstant(Math.PI, 0);
+                    pushOperator("/", Opcodes.DIV, lexer.start(), program);
+                    stackRPN.push("180");
+                    program.emitConstant(180, 0);
+                    break;
+                case Lexer.FUNCTION:
+                    checkOperandExpected(operandExpected, lexer);
+                    Operation function = new Operation(lexer.text(), lexer.opcode(), -1, lexer.start());
+                    /* the condition of "if" is evaluated above the current stack */
+                    function.depth = program.depth();
+                    pushOperation(function);
+                    break;
+                default:
+                    checkOperandExpected(operandExpected, lexer);
+                    UserFunction userFunction = functionRegistry == null ? null : functionRegistry.get(lexer.text());
+                    if (userFunction != null) {
+                        pushOperation(new Operation(lexer.text(), userFunction, lexer.start()));
+                    } else {
+                        stackRPN.push(lexer.text());
+                        program.emitVariable(lexer.text());
+                        operandExpected = false;
+                    }
+                    break;
             }
+            checkProgram(program, lexer.start());
         }
-        while (!stackOperations.empty()) {
-            stackRPN.push(stackOperations.pop());
+        while (!stackOperations.isEmpty()) {
+            flushOperation(program);
         }
+        checkProgram(program, expression.length());
 
 		/* reverse stack */
         Collections.reverse(stackRPN);
+
+        compiledExpression = program.build(expression.length());
+        if (optimizing) {
+            compiledExpression = compiledExpression.optimize();
+            disassemble(compiledExpression);
+        }
+        return compiledExpression;
+    }
+
+    /**
+     * Replaces the RPN stack with the tokens of the program
+     *
+     * @param program Compiled program
+     * @since 8.0
+     */
+    private void disassemble(CompiledExpression program) {
+        stackRPN.clear();
+        for (int instruction : program.code()) {
+            int operand = Opcodes.operand(instruction);
+            switch (Opcodes.opcode(instruction)) {
+                case Opcodes.CONST:
+                    stackRPN.push(formatConstant(program.constantsRe()[operand], program.constantsIm()[operand]));
+                    break;
+                case Opcodes.VAR:
+                    stackRPN.push(program.variables()[operand]);
+                    break;
+                case Opcodes.TEE:
+                    stackRPN.push("=$" + operand);
+                    break;
+                case Opcodes.LOAD:
+                    stackRPN.push("$" + operand);
+                    break;
+                case Opcodes.CALL:
+                    stackRPN.push(program.functions()[operand].name());
+                    break;
+                case Opcodes.JUMP:
+                    stackRPN.push("goto " + operand);
+                    break;
+                case Opcodes.JUMP_IF_FALSE:
+                    stackRPN.push("if_false " + operand);
+                    break;
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                    stackRPN.push("&? " + operand);
+                    break;
+                case Opcodes.JUMP_IF_TRUE_OR_POP:
+                    stackRPN.push("|? " + operand);
+                    break;
+                default:
+                    stackRPN.push(Opcodes.token(Opcodes.opcode(instruction)));
+            }
+        }
+        Collections.reverse(stackRPN);
+    }
+
+    /**
+     * Converts the constant to the RPN token, real integers are shown without
+     * the fractional part, other real numbers at full precision
+     */
+    private String formatConstant(double re, double im) {
+        if (im != 0) {
+            return formatter.format(re, im);
+        }
+        if (re == Math.rint(re) && Math.abs(re) < 1e15) {
+            return Long.toString((long) re);
+        }
+        return Double.toString(re);
+    }
+
+    /**
+     * Pushes the binary operator to the operations stack, the pending
+     * operators of the same or higher precedence are flushed first. The left
+     * operand of "&amp;" and "|" is complete at this point, so the jump over
+     * the right operand is emitted right away.
+     *
+     * @param token   Operator token
+     * @param opcode  Opcode of the operator
+     * @param offset  Offset of the operator in the source text
+     * @param program Program under construction
+     * @throws ParseException if some operation has not enough operands
+     * @since 8.0
+     */
+    private void pushOperator(String token, int opcode, int offset, ProgramBuilder program) throws ParseException {
+        byte precedence = getPrecedence(opcode);
+        while (!stackOperations.isEmpty()
+                && stackOperations.peek().isOperator()
+                && precedence <= stackOperations.peek().precedence) {
+            flushOperation(program);
+        }
+        Operation operation = new Operation(token, opcode, precedence, offset);
+        if (opcode == Opcodes.AND || opcode == Opcodes.OR) {
+            operation.jump = program.emitJump(opcode == Opcodes.AND
+                    ? Opcodes.JUMP_IF_FALSE_OR_POP : Opcodes.JUMP_IF_TRUE_OR_POP, offset);
+            operation.depth = program.depth();
+        }
+        pushOperation(operation);
+    }
+
+    /**
+     * Pushes the operation to the operations stack
+     *
+     * @param operation Operation, bracket or function
+     * @throws ParseException if the nesting exceeds the limit
+     * @since 8.0
+     */
+    private void pushOperation(Operation operation) throws ParseException {
+        if (stackOperations.size() >= limits.getMaxNesting()) {
+            throw new ParseException("Expression is nested too deeply: more than " + limits.getMaxNesting()
+                    + " pending operations", operation.offset);
+        }
+        stackOperations.push(operation);
+    }
+
+    /**
+     * Check that the program emitted so far is within the limits, so the
+     * expression is rejected as soon as it exceeds them
+     *
+     * @param program Program under construction
+     * @param offset  Offset of the current token, used for error reporting
+     * @throws ParseException if the program exceeds the limits
+     * @since 8.0
+     */
+    private void checkProgram(ProgramBuilder program, int offset) throws ParseException {
+        if (program.depth() > limits.getMaxStackDepth()) {
+            throw new ParseException("Expression is too deep: more than " + limits.getMaxStackDepth()
+                    + " operands on the stack", offset);
+        }
+        /* the instructions index the constants, the variables and the jump targets by 24-bit operands */
+        if (program.size() > Math.min(limits.getMaxSteps(), Opcodes.MAX_OPERAND)) {
+            throw new ParseException("Expression is too long: more than "
+                    + Math.min(limits.getMaxSteps(), Opcodes.MAX_OPERAND) + " instructions", offset);
+        }
+    }
+
+    /**
+     * Get the function whose argument list is the innermost open bracket
+     *
+     * @return <code>Operation</code> function or <code>null</code> if the
+     * bracket does not belong to a function
+     * @since 8.0
+     */
+    private Operation enclosingFunction() {
+        Iterator<Operation> operations = stackOperations.iterator();
+        if (!operations.hasNext() || !operations.next().isOpenBracket() || !operations.hasNext()) {
+            return null;
+        }
+        Operation operation = operations.next();
+        return operation.isFunction() ? operation : null;
+    }
+
+    /**
+     * Ends the argument of "if": the condition is followed by the jump to the
+     * second branch, the first branch is followed by the jump over the
+     * second one
+     *
+     * @param operation "if" operation
+     * @param offset    Offset of the separator in the source text
+     * @param program   Program under construction
+     * @throws ParseException if the argument is not a single value or there
+     *                        are too many arguments
+     * @since 8.0
+     */
+    private void branch(Operation operation, int offset, ProgramBuilder program) throws ParseException {
+        checkBranch(operation, offset, program);
+        switch (operation.arguments++) {
+            case 0:
+                operation.jump = program.emitJump(Opcodes.JUMP_IF_FALSE, offset);
+                break;
+            case 1:
+                int jump = program.emitJump(Opcodes.JUMP, offset);
+                program.patchJump(operation.jump);
+                operation.jump = jump;
+                break;
+            default:
+                throw new ParseException("Unexpected token: ,", offset);
+        }
+    }
+
+    /**
+     * Check that the branch of the conditional operation left exactly one
+     * value on the stack
+     *
+     * @param operation Conditional operation
+     * @param offset    Offset in the source text, used for error reporting
+     * @param program   Program under construction
+     * @throws ParseException if the branch is empty
+     * @since 8.0
+     */
+    private void checkBranch(Operation operation, int offset, ProgramBuilder program) throws ParseException {
+        if (program.depth() != operation.depth + 1) {
+            throw new ParseException("Some operand is missing", offset);
+        }
+    }
+
+    /**
+     * Check that the current token may start an operand
+     *
+     * @param operandExpected Whether an operand is expected
+     * @param lexer           Lexer positioned at the token
+     * @throws ParseException if the token follows another operand
+     * @since 8.0
+     */
+    private void checkOperandExpected(boolean operandExpected, Lexer lexer) throws ParseException {
+        if (!operandExpected) {
+            throw new ParseException("Some operator is missing", lexer.start());
+        }
+    }
+
+    /**
+     * Moves the operation from the top of the operations stack to the RPN
+     * stack and emits it into the program
+     *
+     * @param program Program under construction
+     * @throws ParseException if the operation has not enough operands
+     * @since 8.0
+     */
+    private void flushOperation(ProgramBuilder program) throws ParseException {
+        Operation operation = stackOperations.pop();
+        stackRPN.push(operation.token);
+        /* unclosed bracket is tolerated as if it was closed at the end */
+        if (operation.function != null) {
+            program.emitCall(operation.function, operation.offset);
+        } else if (operation.opcode == Opcodes.JUMP_IF_FALSE) {
+            if (operation.arguments != 2) {
+                throw new ParseException("Some operand is missing", operation.offset);
+            }
+            checkBranch(operation, operation.offset, program);
+            program.patchJump(operation.jump);
+        } else if (operation.jump >= 0) {
+            checkBranch(operation, operation.offset, program);
+            program.emitShortCircuit(operation.jump, operation.offset);
+        } else if (!operation.isOpenBracket()) {
+            program.emit(operation.opcode, operation.offset);
+        }
     }
 
     /**
@@ -168,14 +573,12 @@ public class BracerParser {
      * @since 1.0
      */
     public String evaluate() throws ParseException {
-        if (!stackRPN.contains("var")) {
-            return evaluate(0);
-        }
-        throw new ParseException("Unrecognized token: var", 0);
+        return evaluate(new double[0]);
     }
 
     /**
-     * Evaluates once parsed math expression with "var" variable included
+     * Evaluates once parsed math expression with the only variable (e.g.
+     * "var") included
      *
      * @param variableValue User-specified <code>Double</code> value
      * @return <code>String</code> representation of the result
@@ -183,143 +586,101 @@ public class BracerParser {
      * @since 3.0
      */
     public String evaluate(double variableValue) throws ParseException {
-        /* check if is there something to evaluate */
-        if (stackRPN.empty()) {
-            return "";
-        }
-        /* clean answer stack */
-        stackAnswer.clear();
-
-		/* get the clone of the RPN stack for further evaluating */
-        @SuppressWarnings("unchecked")
-        Stack<String> stackRPN = (Stack<String>) this.stackRPN.clone();
-
-		/* enroll the variable value into expression */
-        Collections.replaceAll(stackRPN, VARIABLE, Double.toString(variableValue));
-
-		/* evaluating the RPN expression */
-        while (!stackRPN.empty()) {
-            String token = stackRPN.pop();
-            if (isNumber(token)) {
-                stackAnswer.push(token);
-            } else if (isOperator(token)) {
-                Complex a = stackAnswer.isEmpty() ? null : complexFormat.parse(stackAnswer.pop());
-                Complex b = stackAnswer.isEmpty() ? null : complexFormat.parse(stackAnswer.pop());
-                boolean aBoolean = a != null && a.getReal() == 1.0;
-                boolean bBoolean = b != null && b.getReal() == 1.0;
-                switch (token) {
-                    case "+":
-                        stackAnswer.push(complexFormat.format(b.add(a)));
-                        break;
-                    case "-":
-                        stackAnswer.push(complexFormat.format(b.subtract(a)));
-                        break;
-                    case "*":
-                        stackAnswer.push(complexFormat.format(b.multiply(a)));
-                        break;
-                    case "/":
-                        stackAnswer.push(complexFormat.format(b.divide(a)));
-                        break;
-                    case "|":
-                        stackAnswer.push(String.valueOf(aBoolean || bBoolean ? "1" : "0"));
-                        break;
-                    case "&":
-                        stackAnswer.push(String.valueOf(aBoolean && bBoolean ? "1" : "0"));
-                        break;
-                    case "!":
-                        stackAnswer.push(String.valueOf(!aBoolean ? "1" : "0"));
-                        break;
-                }
-            } else if (isFunction(token)) {
-                Complex a = complexFormat.parse(stackAnswer.pop());
-                boolean aBoolean = a.getReal() == 1.0;
-                switch (token) {
-                    case "abs":
-                        stackAnswer.push(complexFormat.format(a.abs()));
-                        break;
-                    case "acos":
-                        stackAnswer.push(complexFormat.format(a.acos()));
-                        break;
-                    case "arg":
-                        stackAnswer.push(complexFormat.format(a.getArgument()));
-                        break;
-                    case "asin":
-                        stackAnswer.push(complexFormat.format(a.asin()));
-                        break;
-                    case "atan":
-                        stackAnswer.push(complexFormat.format(a.atan()));
-                        break;
-                    case "conj":
-                        stackAnswer.push(complexFormat.format(a.conjugate()));
-                        break;
-                    case "cos":
-                        stackAnswer.push(complexFormat.format(a.cos()));
-                        break;
-                    case "cosh":
-                        stackAnswer.push(complexFormat.format(a.cosh()));
-                        break;
-                    case "exp":
-                        stackAnswer.push(complexFormat.format(a.exp()));
-                        break;
-                    case "imag":
-                        stackAnswer.push(complexFormat.format(a.getImaginary()));
-                        break;
-                    case "log":
-                        stackAnswer.push(complexFormat.format(a.log()));
-                        break;
-                    case "neg":
-                        stackAnswer.push(complexFormat.format(a.negate()));
-                        break;
-                    case "real":
-                        stackAnswer.push(complexFormat.format(a.getReal()));
-                        break;
-                    case "sin":
-                        stackAnswer.push(complexFormat.format(a.sin()));
-                        break;
-                    case "sinh":
-                        stackAnswer.push(complexFormat.format(a.sinh()));
-                        break;
-                    case "sqrt":
-                        stackAnswer.push(complexFormat.format(a.sqrt()));
-                        break;
-                    case "tan":
-                        stackAnswer.push(complexFormat.format(a.tan()));
-                        break;
-                    case "tanh":
-                        stackAnswer.push(complexFormat.format(a.tanh()));
-                        break;
-                    case "pow":
-                        Complex b = complexFormat.parse(stackAnswer.pop());
-                        stackAnswer.push(complexFormat.format(b.pow(a)));
-                        break;
-                    case "not":
-                        stackAnswer.push(String.valueOf(!aBoolean ? "1" : "0"));
-                        break;
-                }
-            }
+        return evaluate(new double[]{variableValue});
+    }
+
+    /**
+     * Evaluates once parsed math expression with the variables included.
+     * The computation runs at full <code>double</code> precision, only the
+     * final answer is formatted.
+     *
+     * @param variableValues Values of the variables in the order of their
+     *                       first appearance in the expression
+     * @return <code>String</code> representation of the result
+     * @throws ParseException if the input expression is not correct
+     * @since 8.0
+     */
+    public String evaluate(double... variableValues) throws ParseException {
+        return evaluate(new StringBuilder(24), variableValues).toString();
+    }
+
+    /**
+     * Evaluates once parsed math expression with the variables included and
+     * appends the answer to the builder, so the caller may reuse the builder
+     * and avoid the intermediate strings
+     *
+     * @param output         Destination
+     * @param variableValues Values of the variables in the order of their
+     *                       first appearance in the expression
+     * @return <code>StringBuilder</code> the destination
+     * @throws ParseException if the input expression is not correct
+     * @since 8.0
+     */
+    public StringBuilder evaluate(StringBuilder output, double... variableValues) throws ParseException {
+        MetricsRecorder recorder = metricsRecorder;
+        if (!recorder.isEnabled() || compiledExpression == null) {
+            return format(variableValues, output);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            format(variableValues, output);
+            failed = false;
+            return output;
+        } finally {
+            recorder.record(MetricsRecorder.Operation.EVALUATE, expression, fingerprint(), System.nanoTime() - start,
+                    failed);
         }
+    }
 
-        if (stackAnswer.size() > 1) {
-            throw new ParseException("Some operator is missing", 0);
+    /* evaluates and formats the answer */
+    private StringBuilder format(double[] variableValues, StringBuilder output) throws ParseException {
+        /* check if is there something to evaluate */
+        if (compiledExpression == null) {
+            return output;
         }
+        checkVariables(variableValues);
+        Complex answer = compiledExpression.evaluateComplex(variableValues);
+        if (compiledExpression.isBoolean()) {
+            return output.append(answer.getReal() == 1.0 ? '1' : '0');
+        }
+        return formatter.formatTo(answer.getReal(), answer.getImaginary(), output);
+    }
 
-        return stackAnswer.pop();
+    /* evaluates and rounds the answer the same way as it is formatted */
+    private Complex round(double[] variableValues) throws ParseException {
+        if (compiledExpression == null) {
+            throw new ParseException("Nothing to evaluate", 0);
+        }
+        checkVariables(variableValues);
+        Complex answer = compiledExpression.evaluateComplex(variableValues);
+        if (compiledExpression.isBoolean()) {
+            return answer.getReal() == 1.0 ? Complex.ONE : Complex.ZERO;
+        }
+        /* the zero imaginary part is not printed at all, so it is never negative */
+        double im = answer.getImaginary();
+        return new Complex(formatter.round(answer.getReal()), im == 0 ? 0 : formatter.round(im));
     }
 
     /**
      * Evaluates non-variable expression and returns it's value as a Complex
-     * object
+     * object rounded to the precision. Use
+     * {@link CompiledExpression#evaluateComplex()} to get the unrounded value
+     * without any formatting involved.
      *
      * @return <code>Complex</code> representation of complex number
      * @throws ParseException if the input expression is not correct
      * @since 4.0
      */
     public Complex evaluateComplex() throws ParseException {
-        return complexFormat.parse(evaluate());
+        return evaluateComplex(new double[0]);
     }
 
     /**
      * Evaluates variable expression and returns it's value as a Complex object
+     * rounded to the precision. Use
+     * {@link CompiledExpression#evaluateComplex(double)} to get the unrounded
+     * value without any formatting involved.
      *
      * @param variableValue User-specified <code>Double</code> value
      * @return <code>Complex</code> representation of complex number
@@ -327,119 +688,179 @@ public class BracerParser {
      * @since 4.0
      */
     public Complex evaluateComplex(double variableValue) throws ParseException {
-        return complexFormat.parse(evaluate(variableValue));
+        return evaluateComplex(new double[]{variableValue});
     }
 
     /**
-     * Converts <code>Complex</code> object to it's <code>String</code>
-     * representation
+     * Evaluates multi-variable expression and returns it's value as a Complex
+     * object rounded to the precision
      *
-     * @param number Input <code>Complex</code> number to convert
-     * @return <code>String</code> representation of complex number
-     * @since 5.0
-     */
-    public String format(Complex number) {
-        return complexFormat.format(number);
-    }
-
-    /**
-     * Get back an <b>unmodifiable copy</b> of the stack
-     *
-     * @return Immutable copy of the stack
+     * @param variableValues Values of the variables in the order of their
+     *                       first appearance in the expression
+     * @return <code>Complex</code> representation of complex number
+     * @throws ParseException if the input expression is not correct
+     * @since 8.0
      */
-    public Collection<String> getStackRPN() {
-        return Collections.unmodifiableCollection(stackRPN);
+    public Complex evaluateComplex(double... variableValues) throws ParseException {
+        MetricsRecorder recorder = metricsRecorder;
+        if (!recorder.isEnabled() || compiledExpression == null) {
+            return round(variableValues);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Complex answer = round(variableValues);
+            failed = false;
+            return answer;
+        } finally {
+            recorder.record(MetricsRecorder.Operation.EVALUATE_COMPLEX, expression, fingerprint(),
+                    System.nanoTime() - start, failed);
+        }
     }
 
     /**
-     * Check if the token is number (0-9, <code>IMAGINARY</code> or
-     * <code>VARIABLE</code>)
+     * Computes the fingerprint of the last parsed expression: FNV-1a hash of
+     * the text with the whitespace runs collapsed to single spaces
      *
-     * @param token Input <code>String</code> token
-     * @return <code>boolean</code> output
-     * @since 1.0
+     * @return <code>long</code> fingerprint
      */
-    private boolean isNumber(String token) {
-        try {
-            Double.parseDouble(token);
-        } catch (Exception e) {
-            return token.contains(IMAGINARY) || token.equals(VARIABLE);
+    private long fingerprint() {
+        if (!fingerprinted) {
+            long hash = 0xcbf29ce484222325L;
+            String normalized = ExpressionCache.normalize(expression);
+            for (int i = 0; i < normalized.length(); i++) {
+                hash = (hash ^ normalized.charAt(i)) * 0x100000001b3L;
+            }
+            fingerprint = hash;
+            fingerprinted = true;
         }
-        return true;
+        return fingerprint;
     }
 
     /**
-     * Check if the token is function (e.g. "sin")
+     * Check that values of all the variables of the parsed expression are
+     * given
      *
-     * @param token Input <code>String</code> token
-     * @return <code>boolean</code> output
-     * @since 1.0
+     * @param variableValues Values of the variables
+     * @throws ParseException if some value is missing
+     * @since 8.0
      */
-    private boolean isFunction(String token) {
-        for (String item : FUNCTIONS) {
-            if (item.equals(token)) {
-                return true;
-            }
+    private void checkVariables(double[] variableValues) throws ParseException {
+        List<String> variables = compiledExpression.getVariables();
+        if (variableValues.length < variables.size()) {
+            throw new ParseException("Unrecognized token: " + variables.get(variableValues.length), 0);
         }
-        return false;
     }
 
     /**
-     * Check if the token is <code>SEPARATOR</code>
+     * Converts <code>Complex</code> object to it's <code>String</code>
+     * representation
      *
-     * @param token Input <code>String</code> token
-     * @return <code>boolean</code> output
-     * @since 1.0
+     * @param number Input <code>Complex</code> number to convert
+     * @return <code>String</code> representation of complex number
+     * @since 5.0
      */
-    private boolean isSeparator(String token) {
-        return token.equals(SEPARATOR);
+    public String format(Complex number) {
+        return formatter.format(number);
     }
 
     /**
-     * Check if the token is opening bracket
+     * Get the program compiled from the last parsed expression
      *
-     * @param token Input <code>String</code> token
-     * @return <code>boolean</code> output
-     * @since 1.0
+     * @return <code>CompiledExpression</code> or <code>null</code> if nothing
+     * has been parsed yet
+     * @since 8.0
      */
-    private boolean isOpenBracket(String token) {
-        return token.equals("(");
+    public CompiledExpression getCompiledExpression() {
+        return compiledExpression;
     }
 
     /**
-     * Check if the token is closing bracket
+     * Get back an <b>unmodifiable copy</b> of the stack
      *
-     * @param token Input <code>String</code> token
-     * @return <code>boolean</code> output
-     * @since 1.0
+     * @return Immutable copy of the stack
      */
-    private boolean isCloseBracket(String token) {
-        return token.equals(")");
+    public Collection<String> getStackRPN() {
+        return Collections.unmodifiableCollection(stackRPN);
     }
 
+
     /**
-     * Check if the token is operator (e.g. "+")
+     * Gets the precedence of the operator, from the lowest: "|", "&amp;",
+     * comparisons, "+" and "-", "*" and "/"
      *
-     * @param token Input <code>String</code> token
-     * @return <code>boolean</code> output
+     * @param opcode Opcode of the operator
+     * @return <code>byte</code> precedence
      * @since 1.0
      */
-    private boolean isOperator(String token) {
-        return OPERATORS.contains(token);
+    private byte getPrecedence(int opcode) {
+        switch (opcode) {
+            case Opcodes.OR:
+                return 1;
+            case Opcodes.AND:
+                return 2;
+            case Opcodes.LT:
+            case Opcodes.LE:
+            case Opcodes.GT:
+            case Opcodes.GE:
+            case Opcodes.EQ:
+            case Opcodes.NE:
+                return 3;
+            case Opcodes.ADD:
+            case Opcodes.SUB:
+                return 4;
+            default:
+                return 5;
+        }
     }
 
     /**
-     * Gets the precedence of the operator
-     *
-     * @param token Input <code>String</code> token
-     * @return <code>byte</code> precedence
-     * @since 1.0
+     * Entry of the operations stack: operator, function or opening bracket
+     * with its offset in the source text
      */
-    private byte getPrecedence(String token) {
-        if (token.equals("+") || token.equals("-")) {
-            return 1;
+    private static final class Operation {
+
+        private final String token;
+        private final int opcode;
+        /* positive for operators, negative for functions */
+        private final byte precedence;
+        private final int offset;
+        /* called user-defined function, null for the built-in operations */
+        private final UserFunction function;
+        /* pending jump of "&", "|" and "if", -1 if there is none */
+        private int jump = -1;
+        /* depth of the operand stack below the operands of the conditional operation */
+        private int depth;
+        /* number of the completed arguments of "if" */
+        private int arguments;
+
+        Operation(String token, int opcode, int precedence, int offset) {
+            this.token = token;
+            this.opcode = opcode;
+            this.precedence = (byte) precedence;
+            this.offset = offset;
+            this.function = null;
+        }
+
+        Operation(String token, UserFunction function, int offset) {
+            this.token = token;
+            this.opcode = Opcodes.CALL;
+            this.precedence = -1;
+            this.offset = offset;
+            this.function = function;
+        }
+
+        boolean isOpenBracket() {
+            return opcode < 0;
+        }
+
+        boolean isFunction() {
+            return opcode >= 0 && precedence < 0;
+        }
+
+        boolean isOperator() {
+            return precedence > 0;
         }
-        return 2;
     }
 
 }
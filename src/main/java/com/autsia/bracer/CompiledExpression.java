@@ -0,0 +1,834 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.util.FastMath;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable math expression compiled by {@link BracerParser#parse(String)}.
+ * Holds the program in reversed polish notation with all the tokens already
+ * resolved to opcodes and all the constants already converted to numbers, so
+ * the same instance can be evaluated any number of times from any number of
+ * threads without re-parsing.
+ * <p>
+ * Expressions without imaginary constants and complex user-defined functions
+ * are marked as real and evaluated by the <code>double</code>-only engine
+ * following IEEE 754 semantics. The complex engine is used as a fallback only
+ * when the real engine meets a value out of the real domain, e.g. square root
+ * of a negative number, or an operation the complex engine leaves undefined:
+ * the division by zero and the power of zero give NaN.
+ * <p>
+ * The two engines agree on the finite results of the finite operands, up to
+ * the rounding of the complex functions. Once an operation overflows or gets
+ * an infinite or NaN operand, the real engine keeps to the semantics of
+ * <code>double</code> and {@link Math}, e.g. "exp(1000)" is Infinity and
+ * "pow(x, 0)" is 1 for any x but zero, while the complex engine keeps to
+ * {@link Complex}, which gives "(Infinity) + (NaN)I" and NaN respectively.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class CompiledExpression {
+
+    /* packed instructions in postfix order */
+    private final int[] code;
+    /* constant pool, real and imaginary parts */
+    private final double[] constantsRe;
+    private final double[] constantsIm;
+    /* maximal depth of the operand stack */
+    private final int maxStackDepth;
+    /* names of the variables in the order of their slots */
+    private final String[] variables;
+    /* user-defined functions called by the program */
+    private final UserFunction[] functions;
+    /* whether the expression has no imaginary constants nor complex functions */
+    private final boolean real;
+    /* number of temporary slots, they are stored above the operand stack */
+    private final int temporaries;
+    /* whether the result is boolean */
+    private final boolean booleanResult;
+    /* program run by the complex engine when the real one leaves the domain */
+    private final CompiledExpression fallback;
+    /* whether the program has conditional operations */
+    private final boolean branching;
+
+    CompiledExpression(int[] code, double[] constantsRe, double[] constantsIm, int maxStackDepth,
+                       String[] variables, UserFunction[] functions, boolean real) {
+        this(code, constantsRe, constantsIm, maxStackDepth, 0, variables, functions, real,
+                Opcodes.isBoolean(Opcodes.opcode(code[code.length - 1])), null);
+    }
+
+    CompiledExpression(int[] code, double[] constantsRe, double[] constantsIm, int maxStackDepth, int temporaries,
+                       String[] variables, UserFunction[] functions, boolean real, boolean booleanResult,
+                       CompiledExpression fallback) {
+        this.code = code;
+        this.constantsRe = constantsRe;
+        this.constantsIm = constantsIm;
+        this.maxStackDepth = maxStackDepth;
+        this.temporaries = temporaries;
+        this.variables = variables;
+        this.functions = functions;
+        this.real = real;
+        this.booleanResult = booleanResult;
+        this.fallback = fallback == null ? this : fallback;
+        boolean jumps = false;
+        for (int instruction : code) {
+            jumps |= Opcodes.isJump(Opcodes.opcode(instruction));
+        }
+        this.branching = jumps;
+    }
+
+    /**
+     * Check if the expression references any variable
+     *
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean hasVariable() {
+        return variables.length > 0;
+    }
+
+    /**
+     * Get the names of the variables referenced by the expression. The
+     * position of the name is the slot of the variable, i.e. the index of its
+     * value in the array passed to the evaluation methods.
+     *
+     * @return Immutable list of variable names
+     * @since 8.0
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    /**
+     * Get the slot of the variable
+     *
+     * @param name Name of the variable
+     * @return <code>int</code> slot or <code>-1</code> if the expression does
+     * not reference the variable
+     * @since 8.0
+     */
+    public int getVariableIndex(String name) {
+        for (int slot = 0; slot < variables.length; slot++) {
+            if (variables[slot].equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the maximal depth of the operand stack, computed at compile time
+     *
+     * @return <code>int</code> number of stack slots
+     * @since 8.0
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    /**
+     * Creates the reusable context that evaluates this expression without
+     * allocation
+     *
+     * @return <code>EvaluationContext</code> new context
+     * @since 8.0
+     */
+    public EvaluationContext newContext() {
+        return new EvaluationContext(this);
+    }
+
+    /**
+     * Check if the expression is purely real, i.e. it has no imaginary
+     * constants and is evaluated by the <code>double</code>-only engine
+     *
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean isReal() {
+        return real;
+    }
+
+    /**
+     * Check if the result of the expression is boolean, i.e. the last
+     * operation is "&amp;", "|", "!", "not", a comparison or "if" with both
+     * branches boolean
+     *
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean isBoolean() {
+        return booleanResult;
+    }
+
+    /**
+     * Optimizes the expression: folds the constant subexpressions, applies
+     * the identities that do not change the result (e.g. "x*1") and computes
+     * the common subexpressions only once. The optimized expression gives
+     * exactly the same results as this one.
+     *
+     * @return <code>CompiledExpression</code> optimized program
+     * @since 8.0
+     */
+    public CompiledExpression optimize() {
+        return Optimizer.optimize(this);
+    }
+
+    /**
+     * Builds the program of the partial derivative of this expression by the
+     * variable. The derivative is a standalone expression over the same
+     * variables in the same slots, so it can be cached and evaluated like any
+     * other one. Boolean operations have zero derivatives.
+     *
+     * @param variable Name of the variable
+     * @return <code>CompiledExpression</code> derivative
+     * @throws IllegalArgumentException      if the expression does not
+     *                                       reference the variable
+     * @throws UnsupportedOperationException if some user-defined function
+     *                                       depends on the variable
+     * @since 8.0
+     */
+    public CompiledExpression derivative(String variable) {
+        int slot = getVariableIndex(variable);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown variable: " + variable);
+        }
+        return Optimizer.derivative(this, slot);
+    }
+
+    /**
+     * Creates the reusable evaluator of the value together with the partial
+     * derivatives by all the variables
+     *
+     * @return <code>GradientEvaluator</code> new evaluator
+     * @throws UnsupportedOperationException if some user-defined function
+     *                                       depends on the variables
+     * @since 8.0
+     */
+    public GradientEvaluator newGradientEvaluator() {
+        return new GradientEvaluator(this);
+    }
+
+    /**
+     * Creates the reusable evaluator of the expression in the number system
+     * of the backend, e.g. {@link BigDecimalBackend} or
+     * {@link IntervalBackend}
+     *
+     * @param backend Number system
+     * @param <T>     Type of the numbers
+     * @return <code>BackendEvaluator</code> new evaluator
+     * @throws UnsupportedOperationException if the expression calls a
+     *                                       user-defined function
+     * @since 8.0
+     */
+    public <T> BackendEvaluator<T> newEvaluator(NumericBackend<T> backend) {
+        return new BackendEvaluator<>(this, backend);
+    }
+
+    /**
+     * Evaluates the expression with no variable included
+     *
+     * @return <code>Complex</code> result
+     * @throws IllegalArgumentException if the expression references some
+     *                                  variable
+     * @since 8.0
+     */
+    public Complex evaluateComplex() {
+        return evaluateComplex(new double[0]);
+    }
+
+    /**
+     * Evaluates the expression with the only variable included
+     *
+     * @param variableValue User-specified <code>Double</code> value
+     * @return <code>Complex</code> result
+     * @throws IllegalArgumentException if the expression references more
+     *                                  than one variable
+     * @since 8.0
+     */
+    public Complex evaluateComplex(double variableValue) {
+        return evaluateComplex(new double[]{variableValue});
+    }
+
+    /**
+     * Evaluates the expression with the variables included. Intermediate
+     * results are kept in primitive stacks at full <code>double</code>
+     * precision, the only allocated object is the returned result.
+     *
+     * @param variableValues Values of the variables indexed by their slots
+     * @return <code>Complex</code> result
+     * @throws IllegalArgumentException if some variable value is missing
+     * @since 8.0
+     */
+    public Complex evaluateComplex(double... variableValues) {
+        checkVariables(variableValues);
+        if (real) {
+            double[] re = new double[frameSize()];
+            if (executeReal(variableValues, re)) {
+                return new Complex(re[0]);
+            }
+        }
+        double[] re = new double[fallback.frameSize()];
+        double[] im = new double[fallback.frameSize()];
+        fallback.execute(variableValues, re, im);
+        return new Complex(re[0], im[0]);
+    }
+
+    /**
+     * Evaluates the expression with no variable included and returns the real
+     * part of the result
+     *
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if the expression references some
+     *                                  variable
+     * @since 8.0
+     */
+    public double evaluateReal() {
+        return evaluateReal(new double[0]);
+    }
+
+    /**
+     * Evaluates the expression with the only variable included and returns
+     * the real part of the result
+     *
+     * @param variableValue User-specified <code>Double</code> value
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if the expression references more
+     *                                  than one variable
+     * @since 8.0
+     */
+    public double evaluateReal(double variableValue) {
+        return evaluateReal(new double[]{variableValue});
+    }
+
+    /**
+     * Evaluates the expression with the variables included and returns the
+     * real part of the result. Real expressions are evaluated without any
+     * allocation except the operand stack.
+     *
+     * @param variableValues Values of the variables indexed by their slots
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if some variable value is missing
+     * @since 8.0
+     */
+    public double evaluateReal(double... variableValues) {
+        checkVariables(variableValues);
+        if (real) {
+            double[] re = new double[frameSize()];
+            if (executeReal(variableValues, re)) {
+                return re[0];
+            }
+        }
+        double[] re = new double[fallback.frameSize()];
+        fallback.execute(variableValues, re, new double[fallback.frameSize()]);
+        return re[0];
+    }
+
+    /**
+     * Evaluates the expression for every row of the single column
+     *
+     * @param column Values of the only variable
+     * @param result Output column, its length is the number of rows
+     * @throws IllegalArgumentException if the expression references more
+     *                                  than one variable or the column is
+     *                                  too short
+     * @since 8.0
+     */
+    public void evaluateBatch(double[] column, double[] result) {
+        evaluateBatch(new double[][]{column}, result);
+    }
+
+    /**
+     * Evaluates the expression for every row of the columns and stores the
+     * real parts of the results. Every instruction is applied to a chunk of
+     * rows at once, so the interpretation overhead is paid once per
+     * instruction rather than once per row.
+     *
+     * @param columns Values of the variables, one column per slot
+     * @param result  Output column, its length is the number of rows
+     * @throws IllegalArgumentException if some column is missing or too short
+     * @since 8.0
+     */
+    public void evaluateBatch(double[][] columns, double[] result) {
+        checkColumns(columns, result.length);
+        BatchEvaluator.evaluate(this, columns, result.length, result, null);
+    }
+
+    /**
+     * Evaluates the expression for every row of the columns and stores the
+     * real and imaginary parts of the results
+     *
+     * @param columns  Values of the variables, one column per slot
+     * @param resultRe Output column of real parts, its length is the number
+     *                 of rows
+     * @param resultIm Output column of imaginary parts
+     * @throws IllegalArgumentException if some column is missing or too short
+     * @since 8.0
+     */
+    public void evaluateBatch(double[][] columns, double[] resultRe, double[] resultIm) {
+        checkColumns(columns, resultRe.length);
+        if (resultIm.length != resultRe.length) {
+            throw new IllegalArgumentException("Output columns have different lengths");
+        }
+        BatchEvaluator.evaluate(this, columns, resultRe.length, resultRe, resultIm);
+    }
+
+    private void checkColumns(double[][] columns, int rows) {
+        if (columns.length < variables.length) {
+            throw new IllegalArgumentException("Expected columns of " + variables.length
+                    + " variables " + Arrays.toString(variables) + " but got " + columns.length);
+        }
+        for (int slot = 0; slot < variables.length; slot++) {
+            if (columns[slot].length < rows) {
+                throw new IllegalArgumentException("Column of " + variables[slot] + " has " + columns[slot].length
+                        + " rows but " + rows + " expected");
+            }
+        }
+    }
+
+    int[] code() {
+        return code;
+    }
+
+    double[] constantsRe() {
+        return constantsRe;
+    }
+
+    double[] constantsIm() {
+        return constantsIm;
+    }
+
+    int maxStackDepth() {
+        return maxStackDepth;
+    }
+
+    int temporaries() {
+        return temporaries;
+    }
+
+    /* operand stack and temporary slots */
+    int frameSize() {
+        return maxStackDepth + temporaries;
+    }
+
+    /* whether the program has jumps, so different inputs may run different instructions */
+    boolean isBranching() {
+        return branching;
+    }
+
+    /* the program itself unless it was derived by the optimizer */
+    CompiledExpression fallback() {
+        return fallback;
+    }
+
+    String[] variables() {
+        return variables;
+    }
+
+    UserFunction[] functions() {
+        return functions;
+    }
+
+    int variableCount() {
+        return variables.length;
+    }
+
+    void checkVariables(double[] variableValues) {
+        if (variableValues.length < variables.length) {
+            throw new IllegalArgumentException("Expected values of " + variables.length
+                    + " variables " + Arrays.toString(variables) + " but got " + variableValues.length);
+        }
+    }
+
+    /**
+     * Runs the program over real numbers leaving the result at the bottom of
+     * the stack
+     *
+     * @param variableValues Values of the variables
+     * @param stack          Operand stack
+     * @return <code>false</code> if some value is out of the real domain and
+     * the complex engine has to be used instead
+     */
+    boolean executeReal(double[] variableValues, double[] stack) {
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instruction = code[pc];
+            switch (Opcodes.opcode(instruction)) {
+                case Opcodes.CONST:
+                    stack[++top] = constantsRe[Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.VAR:
+                    stack[++top] = variableValues[Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.TEE:
+                    stack[maxStackDepth + Opcodes.operand(instruction)] = stack[top];
+                    break;
+                case Opcodes.LOAD:
+                    stack[++top] = stack[maxStackDepth + Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.CALL: {
+                    UserFunction function = functions[Opcodes.operand(instruction)];
+                    top -= function.arity() - 1;
+                    stack[top] = function.applyReal(stack, top);
+                    break;
+                }
+                case Opcodes.ADD:
+                    top--;
+                    stack[top] += stack[top + 1];
+                    break;
+                case Opcodes.SUB:
+                    top--;
+                    stack[top] -= stack[top + 1];
+                    break;
+                case Opcodes.MUL:
+                    top--;
+                    stack[top] *= stack[top + 1];
+                    break;
+                case Opcodes.DIV:
+                    top--;
+                    /* the complex engine gives NaN for the zero divisor */
+                    if (stack[top + 1] == 0) {
+                        return false;
+                    }
+                    stack[top] /= stack[top + 1];
+                    break;
+                case Opcodes.POW:
+                    top--;
+                    /* negative base with fractional exponent gives complex result,
+                       zero base gives NaN in the complex engine */
+                    if (stack[top] == 0 || stack[top] < 0 && stack[top + 1] != Math.rint(stack[top + 1])) {
+                        return false;
+                    }
+                    stack[top] = Math.pow(stack[top], stack[top + 1]);
+                    break;
+                case Opcodes.OR:
+                    top--;
+                    stack[top] = stack[top + 1] == 1.0 || stack[top] == 1.0 ? 1 : 0;
+                    break;
+                case Opcodes.AND:
+                    top--;
+                    stack[top] = stack[top + 1] == 1.0 && stack[top] == 1.0 ? 1 : 0;
+                    break;
+                case Opcodes.NOT:
+                    stack[top] = stack[top] == 1.0 ? 0 : 1;
+                    break;
+                case Opcodes.LT:
+                    top--;
+                    stack[top] = stack[top] < stack[top + 1] ? 1 : 0;
+                    break;
+                case Opcodes.LE:
+                    top--;
+                    stack[top] = stack[top] <= stack[top + 1] ? 1 : 0;
+                    break;
+                case Opcodes.GT:
+                    top--;
+                    stack[top] = stack[top] > stack[top + 1] ? 1 : 0;
+                    break;
+                case Opcodes.GE:
+                    top--;
+                    stack[top] = stack[top] >= stack[top + 1] ? 1 : 0;
+                    break;
+                case Opcodes.EQ:
+                    top--;
+                    stack[top] = stack[top] == stack[top + 1] ? 1 : 0;
+                    break;
+                case Opcodes.NE:
+                    top--;
+                    stack[top] = stack[top] != stack[top + 1] ? 1 : 0;
+                    break;
+                case Opcodes.TRUTH:
+                    stack[top] = stack[top] == 1.0 ? 1 : 0;
+                    break;
+                case Opcodes.JUMP:
+                    pc = Opcodes.operand(instruction) - 1;
+                    break;
+                case Opcodes.JUMP_IF_FALSE:
+                    if (stack[top--] != 1.0) {
+                        pc = Opcodes.operand(instruction) - 1;
+                    }
+                    break;
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                    if (stack[top] != 1.0) {
+                        stack[top] = 0;
+                        pc = Opcodes.operand(instruction) - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case Opcodes.JUMP_IF_TRUE_OR_POP:
+                    if (stack[top] == 1.0) {
+                        pc = Opcodes.operand(instruction) - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case Opcodes.ABS:
+                    stack[top] = Math.abs(stack[top]);
+                    break;
+                case Opcodes.ACOS:
+                    if (stack[top] < -1 || stack[top] > 1) {
+                        return false;
+                    }
+                    stack[top] = Math.acos(stack[top]);
+                    break;
+                case Opcodes.ARG:
+                    stack[top] = Math.atan2(0.0, stack[top]);
+                    break;
+                case Opcodes.ASIN:
+                    if (stack[top] < -1 || stack[top] > 1) {
+                        return false;
+                    }
+                    stack[top] = Math.asin(stack[top]);
+                    break;
+                case Opcodes.ATAN:
+                    stack[top] = Math.atan(stack[top]);
+                    break;
+                case Opcodes.CONJ:
+                case Opcodes.REAL:
+                    break;
+                case Opcodes.COS:
+                    stack[top] = Math.cos(stack[top]);
+                    break;
+                case Opcodes.COSH:
+                    stack[top] = Math.cosh(stack[top]);
+                    break;
+                case Opcodes.EXP:
+                    stack[top] = Math.exp(stack[top]);
+                    break;
+                case Opcodes.IMAG:
+                    stack[top] = 0;
+                    break;
+                case Opcodes.LOG:
+                    if (stack[top] <= 0) {
+                        return false;
+                    }
+                    stack[top] = Math.log(stack[top]);
+                    break;
+                case Opcodes.NEG:
+                    stack[top] = -stack[top];
+                    break;
+                case Opcodes.SIN:
+                    stack[top] = Math.sin(stack[top]);
+                    break;
+                case Opcodes.SINH:
+                    stack[top] = Math.sinh(stack[top]);
+                    break;
+                case Opcodes.SQRT:
+                    if (stack[top] < 0) {
+                        return false;
+                    }
+                    stack[top] = Math.sqrt(stack[top]);
+                    break;
+                case Opcodes.TAN:
+                    stack[top] = Math.tan(stack[top]);
+                    break;
+                case Opcodes.TANH:
+                    stack[top] = Math.tanh(stack[top]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + Opcodes.opcode(instruction));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the program leaving the result at the bottom of the stacks
+     *
+     * @param variableValues Values of the variables
+     * @param re             Stack of real parts
+     * @param im             Stack of imaginary parts
+     */
+    void execute(double[] variableValues, double[] re, double[] im) {
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instruction = code[pc];
+            switch (Opcodes.opcode(instruction)) {
+                case Opcodes.CONST:
+                    top++;
+                    re[top] = constantsRe[Opcodes.operand(instruction)];
+                    im[top] = constantsIm[Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.VAR:
+                    top++;
+                    re[top] = variableValues[Opcodes.operand(instruction)];
+                    im[top] = 0;
+                    break;
+                case Opcodes.TEE:
+                    re[maxStackDepth + Opcodes.operand(instruction)] = re[top];
+                    im[maxStackDepth + Opcodes.operand(instruction)] = im[top];
+                    break;
+                case Opcodes.LOAD:
+                    top++;
+                    re[top] = re[maxStackDepth + Opcodes.operand(instruction)];
+                    im[top] = im[maxStackDepth + Opcodes.operand(instruction)];
+                    break;
+                case Opcodes.CALL: {
+                    UserFunction function = functions[Opcodes.operand(instruction)];
+                    top -= function.arity() - 1;
+                    function.applyComplex(re, im, top);
+                    break;
+                }
+                case Opcodes.ADD:
+                    top--;
+                    ComplexOps.add(re[top], im[top], re[top + 1], im[top + 1], re, im, top);
+                    break;
+                case Opcodes.SUB:
+                    top--;
+                    ComplexOps.subtract(re[top], im[top], re[top + 1], im[top + 1], re, im, top);
+                    break;
+                case Opcodes.MUL:
+                    top--;
+                    ComplexOps.multiply(re[top], im[top], re[top + 1], im[top + 1], re, im, top);
+                    break;
+                case Opcodes.DIV:
+                    top--;
+                    ComplexOps.divide(re[top], im[top], re[top + 1], im[top + 1], re, im, top);
+                    break;
+                case Opcodes.POW:
+                    top--;
+                    ComplexOps.pow(re[top], im[top], re[top + 1], im[top + 1], re, im, top);
+                    break;
+                case Opcodes.OR:
+                    top--;
+                    ComplexOps.bool(ComplexOps.isTrue(re[top + 1]) || ComplexOps.isTrue(re[top]), re, im, top);
+                    break;
+                case Opcodes.AND:
+                    top--;
+                    ComplexOps.bool(ComplexOps.isTrue(re[top + 1]) && ComplexOps.isTrue(re[top]), re, im, top);
+                    break;
+                case Opcodes.NOT:
+                    ComplexOps.bool(!ComplexOps.isTrue(re[top]), re, im, top);
+                    break;
+                case Opcodes.LT:
+                    top--;
+                    ComplexOps.bool(ComplexOps.less(re[top], im[top], re[top + 1], im[top + 1]), re, im, top);
+                    break;
+                case Opcodes.LE:
+                    top--;
+                    ComplexOps.bool(ComplexOps.lessOrEqual(re[top], im[top], re[top + 1], im[top + 1]), re, im, top);
+                    break;
+                case Opcodes.GT:
+                    top--;
+                    ComplexOps.bool(ComplexOps.less(re[top + 1], im[top + 1], re[top], im[top]), re, im, top);
+                    break;
+                case Opcodes.GE:
+                    top--;
+                    ComplexOps.bool(ComplexOps.lessOrEqual(re[top + 1], im[top + 1], re[top], im[top]), re, im, top);
+                    break;
+                case Opcodes.EQ:
+                    top--;
+                    ComplexOps.bool(ComplexOps.equal(re[top], im[top], re[top + 1], im[top + 1]), re, im, top);
+                    break;
+                case Opcodes.NE:
+                    top--;
+                    ComplexOps.bool(!ComplexOps.equal(re[top], im[top], re[top + 1], im[top + 1]), re, im, top);
+                    break;
+                case Opcodes.TRUTH:
+                    ComplexOps.bool(ComplexOps.isTrue(re[top]), re, im, top);
+                    break;
+                case Opcodes.JUMP:
+                    pc = Opcodes.operand(instruction) - 1;
+                    break;
+                case Opcodes.JUMP_IF_FALSE:
+                    if (!ComplexOps.isTrue(re[top--])) {
+                        pc = Opcodes.operand(instruction) - 1;
+                    }
+                    break;
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                    if (!ComplexOps.isTrue(re[top])) {
+                        ComplexOps.bool(false, re, im, top);
+                        pc = Opcodes.operand(instruction) - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case Opcodes.JUMP_IF_TRUE_OR_POP:
+                    if (ComplexOps.isTrue(re[top])) {
+                        ComplexOps.bool(true, re, im, top);
+                        pc = Opcodes.operand(instruction) - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case Opcodes.ABS:
+                    ComplexOps.set(ComplexOps.abs(re[top], im[top]), 0, re, im, top);
+                    break;
+                case Opcodes.ACOS:
+                    ComplexOps.acos(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.ARG:
+                    ComplexOps.set(FastMath.atan2(im[top], re[top]), 0, re, im, top);
+                    break;
+                case Opcodes.ASIN:
+                    ComplexOps.asin(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.ATAN:
+                    ComplexOps.atan(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.CONJ:
+                    ComplexOps.conjugate(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.COS:
+                    ComplexOps.cos(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.COSH:
+                    ComplexOps.cosh(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.EXP:
+                    ComplexOps.exp(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.IMAG:
+                    ComplexOps.set(im[top], 0, re, im, top);
+                    break;
+                case Opcodes.LOG:
+                    ComplexOps.log(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.NEG:
+                    ComplexOps.negate(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.REAL:
+                    ComplexOps.set(re[top], 0, re, im, top);
+                    break;
+                case Opcodes.SIN:
+                    ComplexOps.sin(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.SINH:
+                    ComplexOps.sinh(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.SQRT:
+                    ComplexOps.sqrt(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.TAN:
+                    ComplexOps.tan(re[top], im[top], re, im, top);
+                    break;
+                case Opcodes.TANH:
+                    ComplexOps.tanh(re[top], im[top], re, im, top);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + Opcodes.opcode(instruction));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import org.apache.commons.math3.complex.Complex;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Immutable thread-safe formatter of complex numbers. The output is the same
+ * as the one of <code>ComplexFormat</code> of commons-math3 with the
+ * <code>NumberFormat</code> of the US locale and the fixed number of digits
+ * after the dot: "1,234.500 - 2.000I", "(NaN)" for the special values and
+ * no imaginary part when it is zero.
+ * <p>
+ * <code>DecimalFormat</code> rounds half to even the shortest decimal
+ * digits of the value, i.e. the ones of <code>Double.toString</code>. When
+ * the scaled value is below <code>2<sup>50</sup></code> and is not within the
+ * unit in the last place from the halfway point, that gives the same result
+ * as rounding the exact binary value, which the formatter does with integer
+ * arithmetic and without allocation besides the growth of the destination.
+ * The rest, i.e. the large numbers, more than 18 digits after the dot and
+ * the values that are almost halfway, are passed to
+ * <code>DecimalFormat</code> itself.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class ComplexFormatter {
+
+    /* most digits after the dot of the fast path, 10^18 is the largest power of ten in long */
+    private static final int MAX_FAST_PRECISION = 18;
+    /* largest scaled value of the fast path, exclusive: the ulp is below a quarter of the last digit */
+    private static final long MAX_FAST_VALUE = 1L << 50;
+    private static final long[] POWERS_OF_TEN = new long[MAX_FAST_PRECISION + 1];
+    private static final int MANTISSA_BITS = 52;
+    private static final int EXPONENT_BIAS = 1075;
+    private static final char IMAGINARY = 'I';
+    private static final char GROUPING_SEPARATOR = ',';
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final int precision;
+    /* formats of the slow path, DecimalFormat is not thread-safe */
+    private final ThreadLocal<NumberFormat> numberFormat;
+
+    /**
+     * Creates the formatter
+     *
+     * @param precision Number of digits after the dot, the negative values
+     *                  mean zero
+     * @since 8.0
+     */
+    public ComplexFormatter(int precision) {
+        NumberFormat format = NumberFormat.getInstance(Locale.US);
+        format.setMinimumFractionDigits(precision);
+        format.setMaximumFractionDigits(precision);
+        this.precision = format.getMaximumFractionDigits();
+        this.numberFormat = ThreadLocal.withInitial(() -> (NumberFormat) format.clone());
+    }
+
+    /**
+     * Get the number of digits after the dot
+     *
+     * @return <code>int</code> precision
+     * @since 8.0
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Formats the complex number
+     *
+     * @param number Complex number
+     * @return <code>String</code> representation
+     * @since 8.0
+     */
+    public String format(Complex number) {
+        return format(number.getReal(), number.getImaginary());
+    }
+
+    /**
+     * Formats the complex number
+     *
+     * @param re Real part
+     * @param im Imaginary part
+     * @return <code>String</code> representation
+     * @since 8.0
+     */
+    public String format(double re, double im) {
+        return formatTo(re, im, new StringBuilder(24)).toString();
+    }
+
+    /**
+     * Appends the complex number to the builder
+     *
+     * @param re     Real part
+     * @param im     Imaginary part
+     * @param output Destination
+     * @return <code>StringBuilder</code> the destination
+     * @since 8.0
+     */
+    public StringBuilder formatTo(double re, double im, StringBuilder output) {
+        try {
+            append(re, im, output);
+        } catch (IOException e) {
+            /* StringBuilder does not throw */
+            throw new UncheckedIOException(e);
+        }
+        return output;
+    }
+
+    /**
+     * Appends the complex number to the destination, e.g. the writer of the
+     * response
+     *
+     * @param re     Real part
+     * @param im     Imaginary part
+     * @param output Destination
+     * @param <A>    Type of the destination
+     * @return the destination
+     * @throws IOException if the destination fails
+     * @since 8.0
+     */
+    public <A extends Appendable> A formatTo(double re, double im, A output) throws IOException {
+        append(re, im, output);
+        return output;
+    }
+
+    /**
+     * Rounds the value to the precision, the same as formatting and parsing
+     * it back
+     *
+     * @param value Value
+     * @return <code>double</code> rounded value
+     */
+    double round(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return value;
+        }
+        double sign = isNegative(value) ? -1 : 1;
+        long scaled = scale(Math.abs(value));
+        if (scaled >= 0) {
+            /* both are exact doubles, so the single division is correctly rounded */
+            return sign * (scaled / (double) POWERS_OF_TEN[precision]);
+        }
+        String digits = numberFormat.get().format(Math.abs(value));
+        return sign * Double.parseDouble(digits.replace(String.valueOf(GROUPING_SEPARATOR), ""));
+    }
+
+    private void append(double re, double im, Appendable output) throws IOException {
+        appendPart(re, output);
+        if (im < 0) {
+            output.append(" - ");
+            appendImaginary(-im, output);
+        } else if (im > 0 || Double.isNaN(im)) {
+            output.append(" + ");
+            appendImaginary(im, output);
+        }
+    }
+
+    /* the imaginary unit alone stands for "1I" */
+    private void appendImaginary(double im, Appendable output) throws IOException {
+        if (precision != 0 || Double.isNaN(im) || Double.isInfinite(im) || scale(im) != 1) {
+            appendPart(im, output);
+        }
+        output.append(IMAGINARY);
+    }
+
+    private void appendPart(double value, Appendable output) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            output.append('(').append(Double.toString(value)).append(')');
+            return;
+        }
+        if (isNegative(value)) {
+            output.append('-');
+            value = -value;
+        }
+        long scaled = scale(value);
+        if (scaled < 0) {
+            output.append(numberFormat.get().format(value));
+            return;
+        }
+        long power = POWERS_OF_TEN[precision];
+        appendInteger(scaled / power, output);
+        if (precision > 0) {
+            output.append('.');
+            long fraction = scaled % power;
+            for (int digit = precision - 1; digit >= 0; digit--) {
+                output.append((char) ('0' + fraction / POWERS_OF_TEN[digit] % 10));
+            }
+        }
+    }
+
+    /* digits of the integer part in groups of three */
+    private static void appendInteger(long value, Appendable output) throws IOException {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        for (int digit = digits - 1; digit >= 0; digit--) {
+            output.append((char) ('0' + value / POWERS_OF_TEN[digit] % 10));
+            if (digit > 0 && digit % 3 == 0) {
+                output.append(GROUPING_SEPARATOR);
+            }
+        }
+    }
+
+    /* negative zero is printed with the sign as well */
+    private static boolean isNegative(double value) {
+        return value < 0 || value == 0 && 1 / value < 0;
+    }
+
+    /**
+     * Computes the non-negative finite value times the power of ten of the
+     * precision, rounded half to even from the exact binary value
+     *
+     * @return <code>long</code> scaled value or <code>-1</code> if the value
+     * needs the slow path
+     */
+    private long scale(double value) {
+        if (precision > MAX_FAST_PRECISION) {
+            return -1;
+        }
+        long power = POWERS_OF_TEN[precision];
+        long bits = Double.doubleToRawLongBits(value);
+        int exponent = (int) (bits >>> MANTISSA_BITS);
+        long mantissa = bits & ((1L << MANTISSA_BITS) - 1);
+        if (exponent == 0) {
+            /* subnormal */
+            exponent = 1;
+        } else {
+            mantissa |= 1L << MANTISSA_BITS;
+        }
+        if (mantissa == 0) {
+            return 0;
+        }
+        /* value = mantissa / 2^k */
+        int k = EXPONENT_BIAS - exponent;
+        if (k <= 0) {
+            if (-k > 62 || mantissa > MAX_FAST_VALUE >>> -k) {
+                return -1;
+            }
+            long integer = mantissa << -k;
+            return integer < MAX_FAST_VALUE / power ? integer * power : -1;
+        }
+        if (k >= 128) {
+            /* the product is below 2^113, far from the half of 2^k */
+            return 0;
+        }
+        /* the 128-bit product divided by 2^k; one ulp of the value is the power in the units of the product */
+        long high = multiplyHigh(mantissa, power);
+        long low = mantissa * power;
+        long quotient;
+        /* sign of the remainder minus the half of the divisor */
+        int half;
+        boolean nearHalf;
+        if (k < 64) {
+            if (high >>> k != 0) {
+                return -1;
+            }
+            quotient = high << (64 - k) | low >>> k;
+            long distance = (low & ((1L << k) - 1)) - (1L << (k - 1));
+            half = Long.signum(distance);
+            nearHalf = Math.abs(distance) < power;
+        } else {
+            quotient = k == 64 ? high : high >>> (k - 64);
+            long remainderHigh = k == 64 ? 0 : high & ((1L << (k - 64)) - 1);
+            long halfHigh = k == 64 ? 0 : 1L << (k - 65);
+            long halfLow = k == 64 ? Long.MIN_VALUE : 0;
+            long distanceLow = low - halfLow;
+            long distanceHigh = remainderHigh - halfHigh - (Long.compareUnsigned(low, halfLow) < 0 ? 1 : 0);
+            half = distanceHigh < 0 ? -1 : (distanceHigh | distanceLow) == 0 ? 0 : 1;
+            nearHalf = distanceHigh == 0 && Long.compareUnsigned(distanceLow, power) < 0
+                    || distanceHigh == -1 && distanceLow != 0 && Long.compareUnsigned(-distanceLow, power) < 0;
+        }
+        if (half != 0 && nearHalf) {
+            /* the shortest digits may be exactly halfway, DecimalFormat decides */
+            return -1;
+        }
+        if (half > 0 || half == 0 && (quotient & 1) != 0) {
+            quotient++;
+        }
+        return quotient >= 0 && quotient < MAX_FAST_VALUE ? quotient : -1;
+    }
+
+    /* high half of the 128-bit product of the non-negative longs */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >>> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+        long z0 = t >>> 32;
+        return x1 * y1 + z0 + (z1 >>> 32);
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import org.apache.commons.math3.complex.Complex;
+
+/**
+ * User-defined function of complex arguments, see
+ * {@link FunctionRegistry#registerComplex(String, int, ComplexFunction, boolean)}.
+ * Expressions calling complex functions are always evaluated by the complex
+ * engine.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+@FunctionalInterface
+public interface ComplexFunction {
+
+    /**
+     * Computes the function
+     *
+     * @param arguments Values of the arguments, the length of the array is
+     *                  the arity of the function
+     * @return <code>Complex</code> result
+     * @since 8.0
+     */
+    Complex apply(Complex... arguments);
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Complex arithmetic over primitive real and imaginary parts. Every operation
+ * takes its operands by value and writes the result into the
+ * <code>k</code>-th element of the given real and imaginary arrays, so the
+ * evaluation never allocates. The formulas and the handling of NaN and
+ * infinite values mirror {@link org.apache.commons.math3.complex.Complex}.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class ComplexOps {
+
+    /* the complex functions of the real arguments, e.g. atan or acos, leave the
+       rounding residue of about 1e-16 in the imaginary part, such values are
+       compared as the real ones */
+    private static final double NEGLIGIBLE_IMAGINARY = 1e-12;
+
+    private ComplexOps() {
+    }
+
+    static boolean isNaN(double re, double im) {
+        return Double.isNaN(re) || Double.isNaN(im);
+    }
+
+    static boolean isInfinite(double re, double im) {
+        return !isNaN(re, im) && (Double.isInfinite(re) || Double.isInfinite(im));
+    }
+
+    static boolean isTrue(double re) {
+        return re == 1.0;
+    }
+
+    static boolean isNegligibleImaginary(double re, double im) {
+        return im == 0 || Math.abs(im) <= NEGLIGIBLE_IMAGINARY * Math.max(1, Math.abs(re));
+    }
+
+    /* complex numbers are equal if both parts are, NaN is not equal to anything */
+    static boolean equal(double bRe, double bIm, double aRe, double aIm) {
+        return bRe == aRe && (bIm == aIm || isNegligibleImaginary(bRe, bIm) && isNegligibleImaginary(aRe, aIm));
+    }
+
+    /* complex numbers are not ordered, only real ones can be less than each other */
+    static boolean less(double bRe, double bIm, double aRe, double aIm) {
+        return isNegligibleImaginary(bRe, bIm) && isNegligibleImaginary(aRe, aIm) && bRe < aRe;
+    }
+
+    static boolean lessOrEqual(double bRe, double bIm, double aRe, double aIm) {
+        return isNegligibleImaginary(bRe, bIm) && isNegligibleImaginary(aRe, aIm) && bRe <= aRe;
+    }
+
+    static void set(double re, double im, double[] outRe, double[] outIm, int k) {
+        outRe[k] = re;
+        outIm[k] = im;
+    }
+
+    static void nan(double[] outRe, double[] outIm, int k) {
+        set(Double.NaN, Double.NaN, outRe, outIm, k);
+    }
+
+    static void bool(boolean value, double[] outRe, double[] outIm, int k) {
+        set(value ? 1 : 0, 0, outRe, outIm, k);
+    }
+
+    static double abs(double re, double im) {
+        if (isNaN(re, im)) {
+            return Double.NaN;
+        }
+        if (isInfinite(re, im)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (FastMath.abs(re) < FastMath.abs(im)) {
+            if (im == 0.0) {
+                return FastMath.abs(re);
+            }
+            double q = re / im;
+            return FastMath.abs(im) * FastMath.sqrt(1 + q * q);
+        } else {
+            if (re == 0.0) {
+                return FastMath.abs(im);
+            }
+            double q = im / re;
+            return FastMath.abs(re) * FastMath.sqrt(1 + q * q);
+        }
+    }
+
+    static void add(double bRe, double bIm, double aRe, double aIm, double[] outRe, double[] outIm, int k) {
+        if (isNaN(bRe, bIm) || isNaN(aRe, aIm)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(bRe + aRe, bIm + aIm, outRe, outIm, k);
+    }
+
+    static void subtract(double bRe, double bIm, double aRe, double aIm, double[] outRe, double[] outIm, int k) {
+        if (isNaN(bRe, bIm) || isNaN(aRe, aIm)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(bRe - aRe, bIm - aIm, outRe, outIm, k);
+    }
+
+    static void multiply(double bRe, double bIm, double aRe, double aIm, double[] outRe, double[] outIm, int k) {
+        if (isNaN(bRe, bIm) || isNaN(aRe, aIm)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        if (Double.isInfinite(bRe) || Double.isInfinite(bIm) || Double.isInfinite(aRe) || Double.isInfinite(aIm)) {
+            set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, outRe, outIm, k);
+            return;
+        }
+        set(bRe * aRe - bIm * aIm, bRe * aIm + bIm * aRe, outRe, outIm, k);
+    }
+
+    static void divide(double bRe, double bIm, double aRe, double aIm, double[] outRe, double[] outIm, int k) {
+        if (isNaN(bRe, bIm) || isNaN(aRe, aIm)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        if (aRe == 0.0 && aIm == 0.0) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        if (isInfinite(aRe, aIm) && !isInfinite(bRe, bIm)) {
+            set(0, 0, outRe, outIm, k);
+            return;
+        }
+        if (FastMath.abs(aRe) < FastMath.abs(aIm)) {
+            double q = aRe / aIm;
+            double denominator = aRe * q + aIm;
+            set((bRe * q + bIm) / denominator, (bIm * q - bRe) / denominator, outRe, outIm, k);
+        } else {
+            double q = aIm / aRe;
+            double denominator = aIm * q + aRe;
+            set((bIm * q + bRe) / denominator, (bIm - bRe * q) / denominator, outRe, outIm, k);
+        }
+    }
+
+    static void pow(double bRe, double bIm, double aRe, double aIm, double[] outRe, double[] outIm, int k) {
+        log(bRe, bIm, outRe, outIm, k);
+        multiply(outRe[k], outIm[k], aRe, aIm, outRe, outIm, k);
+        exp(outRe[k], outIm[k], outRe, outIm, k);
+    }
+
+    static void conjugate(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(re, -im, outRe, outIm, k);
+    }
+
+    static void negate(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(-re, -im, outRe, outIm, k);
+    }
+
+    static void acos(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        /* log(z + sqrt(1 - z^2) * I) * -I */
+        sqrt1z(re, im, outRe, outIm, k);
+        multiply(outRe[k], outIm[k], 0.0, 1.0, outRe, outIm, k);
+        add(re, im, outRe[k], outIm[k], outRe, outIm, k);
+        log(outRe[k], outIm[k], outRe, outIm, k);
+        multiply(outRe[k], outIm[k], -0.0, -1.0, outRe, outIm, k);
+    }
+
+    static void asin(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        /* log(sqrt(1 - z^2) + z * I) * -I */
+        double zIRe;
+        double zIIm;
+        if (Double.isInfinite(re) || Double.isInfinite(im)) {
+            zIRe = Double.POSITIVE_INFINITY;
+            zIIm = Double.POSITIVE_INFINITY;
+        } else {
+            zIRe = re * 0.0 - im * 1.0;
+            zIIm = re * 1.0 + im * 0.0;
+        }
+        sqrt1z(re, im, outRe, outIm, k);
+        add(outRe[k], outIm[k], zIRe, zIIm, outRe, outIm, k);
+        log(outRe[k], outIm[k], outRe, outIm, k);
+        multiply(outRe[k], outIm[k], -0.0, -1.0, outRe, outIm, k);
+    }
+
+    static void atan(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        /* log((z + I) / (I - z)) * (I / 2) */
+        divide(re + 0.0, im + 1.0, 0.0 - re, 1.0 - im, outRe, outIm, k);
+        log(outRe[k], outIm[k], outRe, outIm, k);
+        multiply(outRe[k], outIm[k], 0.0, 0.5, outRe, outIm, k);
+    }
+
+    static void cos(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(FastMath.cos(re) * FastMath.cosh(im), -FastMath.sin(re) * FastMath.sinh(im), outRe, outIm, k);
+    }
+
+    static void cosh(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(FastMath.cosh(re) * FastMath.cos(im), FastMath.sinh(re) * FastMath.sin(im), outRe, outIm, k);
+    }
+
+    static void exp(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        double expReal = FastMath.exp(re);
+        set(expReal * FastMath.cos(im), expReal * FastMath.sin(im), outRe, outIm, k);
+    }
+
+    static void log(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(FastMath.log(abs(re, im)), FastMath.atan2(im, re), outRe, outIm, k);
+    }
+
+    static void sin(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(FastMath.sin(re) * FastMath.cosh(im), FastMath.cos(re) * FastMath.sinh(im), outRe, outIm, k);
+    }
+
+    static void sinh(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        set(FastMath.sinh(re) * FastMath.cos(im), FastMath.cosh(re) * FastMath.sin(im), outRe, outIm, k);
+    }
+
+    static void sqrt(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        if (re == 0.0 && im == 0.0) {
+            set(0.0, 0.0, outRe, outIm, k);
+            return;
+        }
+        double t = FastMath.sqrt((FastMath.abs(re) + abs(re, im)) / 2.0);
+        if (re >= 0.0) {
+            set(t, im / (2.0 * t), outRe, outIm, k);
+        } else {
+            set(FastMath.abs(im) / (2.0 * t), FastMath.copySign(1d, im) * t, outRe, outIm, k);
+        }
+    }
+
+    static void tan(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im) || Double.isInfinite(re)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        if (im > 20.0) {
+            set(0.0, 1.0, outRe, outIm, k);
+            return;
+        }
+        if (im < -20.0) {
+            set(0.0, -1.0, outRe, outIm, k);
+            return;
+        }
+        double re2 = 2.0 * re;
+        double im2 = 2.0 * im;
+        double d = FastMath.cos(re2) + FastMath.cosh(im2);
+        set(FastMath.sin(re2) / d, FastMath.sinh(im2) / d, outRe, outIm, k);
+    }
+
+    static void tanh(double re, double im, double[] outRe, double[] outIm, int k) {
+        if (isNaN(re, im) || Double.isInfinite(im)) {
+            nan(outRe, outIm, k);
+            return;
+        }
+        if (re > 20.0) {
+            set(1.0, 0.0, outRe, outIm, k);
+            return;
+        }
+        if (re < -20.0) {
+            set(-1.0, 0.0, outRe, outIm, k);
+            return;
+        }
+        double re2 = 2.0 * re;
+        double im2 = 2.0 * im;
+        double d = FastMath.cosh(re2) + FastMath.cos(im2);
+        set(FastMath.sinh(re2) / d, FastMath.sin(im2) / d, outRe, outIm, k);
+    }
+
+    /* sqrt(1 - z^2) */
+    private static void sqrt1z(double re, double im, double[] outRe, double[] outIm, int k) {
+        multiply(re, im, re, im, outRe, outIm, k);
+        subtract(1.0, 0.0, outRe[k], outIm[k], outRe, outIm, k);
+        sqrt(outRe[k], outIm[k], outRe, outIm, k);
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer;
+
+/**
+ * Reusable state of the evaluation of one {@link CompiledExpression}: the
+ * values of the variables and the primitive operand stacks, preallocated to
+ * the depth computed at compile time. The caller owns the context and reuses
+ * it for every evaluation, so the steady-state evaluation allocates nothing.
+ * The only exceptions are the user-defined functions of any number of
+ * arguments and the complex ones, which receive fresh arrays of the
+ * arguments, and the exponential, power, trigonometric and hyperbolic
+ * functions of complex arguments, which rely on <code>FastMath</code> of
+ * commons-math3 allocating its scratch objects until the JIT compiler
+ * eliminates them.
+ * <p>
+ * The context is not thread-safe, every thread needs its own one.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class EvaluationContext {
+
+    private final CompiledExpression expression;
+    /* values of the variables indexed by their slots */
+    private final double[] variableValues;
+    /* stacks of real and imaginary parts, large enough for the fallback */
+    private final double[] re;
+    private final double[] im;
+    /* imaginary part of the last result */
+    private double imaginary;
+
+    /**
+     * Creates the context of the expression, all the variables are zero
+     *
+     * @param expression Compiled expression
+     * @since 8.0
+     */
+    public EvaluationContext(CompiledExpression expression) {
+        this.expression = expression;
+        this.variableValues = new double[expression.variableCount()];
+        int depth = Math.max(expression.frameSize(), expression.fallback().frameSize());
+        this.re = new double[depth];
+        this.im = new double[depth];
+    }
+
+    /**
+     * Get the expression evaluated by this context
+     *
+     * @return <code>CompiledExpression</code> expression
+     * @since 8.0
+     */
+    public CompiledExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Sets the value of the variable
+     *
+     * @param slot  Slot of the variable, see
+     *              {@link CompiledExpression#getVariableIndex(String)}
+     * @param value User-specified <code>Double</code> value
+     * @return <code>EvaluationContext</code> this context
+     * @throws IndexOutOfBoundsException if there is no such slot
+     * @since 8.0
+     */
+    public EvaluationContext setVariable(int slot, double value) {
+        variableValues[slot] = value;
+        return this;
+    }
+
+    /**
+     * Sets the value of the variable
+     *
+     * @param name  Name of the variable
+     * @param value User-specified <code>Double</code> value
+     * @return <code>EvaluationContext</code> this context
+     * @throws IllegalArgumentException if the expression does not reference
+     *                                  the variable
+     * @since 8.0
+     */
+    public EvaluationContext setVariable(String name, double value) {
+        int slot = expression.getVariableIndex(name);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown variable: " + name);
+        }
+        variableValues[slot] = value;
+        return this;
+    }
+
+    /**
+     * Evaluates the expression with the current values of the variables
+     *
+     * @return <code>double</code> real part of the result, the imaginary
+     * part is available from {@link #getImaginary()}
+     * @since 8.0
+     */
+    public double evaluate() {
+        if (expression.isReal() && expression.executeReal(variableValues, re)) {
+            imaginary = 0;
+            return re[0];
+        }
+        expression.fallback().execute(variableValues, re, im);
+        imaginary = im[0];
+        return re[0];
+    }
+
+    /**
+     * Evaluates the expression with the only variable included
+     *
+     * @param variableValue User-specified <code>Double</code> value
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if the expression references more
+     *                                  than one variable
+     * @since 8.0
+     */
+    public double evaluate(double variableValue) {
+        if (variableValues.length > 1) {
+            expression.checkVariables(new double[]{variableValue});
+        }
+        if (variableValues.length == 1) {
+            variableValues[0] = variableValue;
+        }
+        return evaluate();
+    }
+
+    /**
+     * Evaluates the expression with the variables included
+     *
+     * @param variableValues Values of the variables indexed by their slots
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if some variable value is missing
+     * @since 8.0
+     */
+    public double evaluate(double... variableValues) {
+        expression.checkVariables(variableValues);
+        System.arraycopy(variableValues, 0, this.variableValues, 0, this.variableValues.length);
+        return evaluate();
+    }
+
+    /**
+     * Get the real part of the last result
+     *
+     * @return <code>double</code> real part
+     * @since 8.0
+     */
+    public double getReal() {
+        return re[0];
+    }
+
+    /**
+     * Get the imaginary part of the last result
+     *
+     * @return <code>double</code> imaginary part
+     * @since 8.0
+     */
+    public double getImaginary() {
+        return imaginary;
+    }
+
+}
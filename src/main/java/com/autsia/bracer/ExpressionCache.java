@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe bounded cache of compiled expressions keyed by the normalized
+ * source text. When the cache is full the least recently used expression is
+ * evicted. The compiled program does not depend on the precision of the
+ * parser, so one cache serves parsers of any precision.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public class ExpressionCache {
+
+    /* maximal number of cached expressions */
+    private final int maximumSize;
+    /* user-defined functions available in the expressions, may be null */
+    private final FunctionRegistry functionRegistry;
+    /* resource limits of the parsed expressions */
+    private final ParseLimits limits;
+    /* expressions in access order, guarded by itself */
+    private final Map<String, CompiledExpression> expressions;
+    /* statistics */
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Class ctor for setting up the size bound of the cache
+     *
+     * @param maximumSize Maximal number of cached expressions
+     * @since 8.0
+     */
+    public ExpressionCache(final int maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * Class ctor for setting up the size bound of the cache and the
+     * user-defined functions. The registry should not be changed while the
+     * cache is in use, the cached expressions keep the functions they were
+     * compiled with.
+     *
+     * @param maximumSize      Maximal number of cached expressions
+     * @param functionRegistry Registry of user-defined functions or
+     *                         <code>null</code>
+     * @since 8.0
+     */
+    public ExpressionCache(final int maximumSize, FunctionRegistry functionRegistry) {
+        this(maximumSize, functionRegistry, ParseLimits.NONE);
+    }
+
+    /**
+     * Class ctor for setting up the size bound of the cache, the
+     * user-defined functions and the resource limits of the parsed
+     * expressions, e.g. for the expressions of the untrusted users
+     *
+     * @param maximumSize      Maximal number of cached expressions
+     * @param functionRegistry Registry of user-defined functions or
+     *                         <code>null</code>
+     * @param limits           Resource limits, see {@link ParseLimits}
+     * @since 8.0
+     */
+    public ExpressionCache(final int maximumSize, FunctionRegistry functionRegistry, ParseLimits limits) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.functionRegistry = functionRegistry;
+        this.limits = limits == null ? ParseLimits.NONE : limits;
+        this.expressions = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                if (size() > maximumSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the compiled expression from the cache or parses it on a miss.
+     * Parsing happens outside of the lock, so a slow parse does not block
+     * the other threads.
+     *
+     * @param expression <code>String</code> input expression (math formula)
+     * @return <code>CompiledExpression</code> program
+     * @throws ParseException if the input expression is not correct or it
+     *                        exceeds the limits
+     * @since 8.0
+     */
+    public CompiledExpression get(String expression) throws ParseException {
+        String key = normalize(expression);
+        CompiledExpression compiledExpression;
+        synchronized (expressions) {
+            compiledExpression = expressions.get(key);
+        }
+        if (compiledExpression != null) {
+            hitCount.incrementAndGet();
+            return compiledExpression;
+        }
+        missCount.incrementAndGet();
+        BracerParser parser = new BracerParser(0);
+        parser.setFunctionRegistry(functionRegistry);
+        parser.setLimits(limits);
+        compiledExpression = parser.parse(expression);
+        synchronized (expressions) {
+            CompiledExpression concurrent = expressions.get(key);
+            if (concurrent != null) {
+                return concurrent;
+            }
+            expressions.put(key, compiledExpression);
+        }
+        return compiledExpression;
+    }
+
+    /**
+     * Removes all the expressions from the cache, the statistics is kept
+     *
+     * @since 8.0
+     */
+    public void clear() {
+        synchronized (expressions) {
+            expressions.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached expressions
+     *
+     * @return <code>int</code> size
+     * @since 8.0
+     */
+    public int size() {
+        synchronized (expressions) {
+            return expressions.size();
+        }
+    }
+
+    /**
+     * Get the maximal number of cached expressions
+     *
+     * @return <code>int</code> size bound
+     * @since 8.0
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Get the number of lookups that found the expression in the cache
+     *
+     * @return <code>long</code> count
+     * @since 8.0
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of lookups that had to parse the expression
+     *
+     * @return <code>long</code> count
+     * @since 8.0
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the number of expressions evicted to keep the size bound
+     *
+     * @return <code>long</code> count
+     * @since 8.0
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Normalizes the source text, so that formulas differing only in the
+     * kind and the length of the whitespaces share the cache entry. Every
+     * run of whitespaces is kept as a single space and the leading and
+     * trailing ones are dropped, since the whitespace may separate the
+     * tokens (e.g. "a b" or "&lt; =") and must not change whether the input
+     * parses.
+     *
+     * @param expression <code>String</code> input expression
+     * @return <code>String</code> key
+     */
+    static String normalize(String expression) {
+        StringBuilder key = null;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                if (key != null) {
+                    key.append(c);
+                }
+                continue;
+            }
+            if (key == null) {
+                key = new StringBuilder(expression.length()).append(expression, 0, i);
+            }
+            int next = i + 1;
+            while (next < expression.length() && Character.isWhitespace(expression.charAt(next))) {
+                next++;
+            }
+            if (key.length() > 0 && next < expression.length()) {
+                key.append(' ');
+            }
+            i = next - 1;
+        }
+        return key == null ? expression : key.toString();
+    }
+
+}
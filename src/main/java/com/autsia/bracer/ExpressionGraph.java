@@ -0,0 +1,393 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Graph of interdependent expressions that is re-evaluated incrementally.
+ * Every node is the compiled expression whose result is published under the
+ * name of the node, so the other expressions read it as a variable. The
+ * variables that are not defined by any node are the inputs of the graph,
+ * they are zero until they are set.
+ * <p>
+ * The graph caches the last value of every node. Setting an input marks only
+ * the nodes that read it, and {@link #recompute()} evaluates the marked nodes
+ * level by level in topological order: a node is evaluated after all the
+ * nodes it reads, and the nodes that read it are marked only if its value has
+ * actually changed. So the cost of the update is proportional to the part of
+ * the graph the change reaches, not to the size of the graph. The nodes of
+ * the same level do not depend on each other, {@link #recompute(Executor)}
+ * evaluates them in parallel.
+ * <p>
+ * Only the real parts of the results are passed between the nodes. The
+ * graph is not thread-safe, the parallel evaluation additionally requires
+ * the user-defined functions to be thread-safe.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class ExpressionGraph {
+
+    /* number of nodes evaluated by one parallel task */
+    private static final int PARALLEL_CHUNK = 16;
+
+    /* inputs and nodes by name */
+    private final Map<String, Symbol> symbols = new HashMap<>();
+    /* nodes to evaluate, not yet sorted by level */
+    private final List<Node> dirty = new ArrayList<>();
+    /* nodes to evaluate by level, reused between the updates */
+    private final List<List<Node>> levels = new ArrayList<>();
+    /* whether the levels of the nodes are valid */
+    private boolean ordered = true;
+
+    /**
+     * Defines the node or replaces the expression of the existing one. The
+     * node is evaluated by the next update.
+     *
+     * @param name       Name the result is published under
+     * @param expression Compiled expression
+     * @return <code>ExpressionGraph</code> this graph
+     * @throws IllegalArgumentException if the expression depends on the node
+     *                                  itself, directly or through the other
+     *                                  nodes
+     * @since 8.0
+     */
+    public ExpressionGraph define(String name, CompiledExpression expression) {
+        String[] variables = expression.variables();
+        checkCycle(name, variables);
+        Symbol symbol = symbol(name);
+        Node node = symbol.node;
+        if (node != null) {
+            for (Symbol source : node.sources) {
+                source.readers.remove(node);
+            }
+            if (node.dirty) {
+                dirty.remove(node);
+            }
+        }
+        node = new Node(symbol, expression);
+        for (int slot = 0; slot < variables.length; slot++) {
+            node.sources[slot] = symbol(variables[slot]);
+            node.sources[slot].readers.add(node);
+        }
+        /* the readers of the replaced node keep reading the symbol */
+        symbol.node = node;
+        ordered = false;
+        mark(node);
+        return this;
+    }
+
+    /**
+     * Sets the value of the input. The nodes that read it are evaluated by
+     * the next update, unless the value is the same.
+     *
+     * @param name  Name of the input
+     * @param value User-specified <code>Double</code> value
+     * @return <code>ExpressionGraph</code> this graph
+     * @throws IllegalArgumentException if the name is defined by a node
+     * @since 8.0
+     */
+    public ExpressionGraph set(String name, double value) {
+        Symbol symbol = symbol(name);
+        if (symbol.node != null) {
+            throw new IllegalArgumentException("Variable " + name + " is defined by an expression");
+        }
+        if (Double.doubleToLongBits(symbol.value) != Double.doubleToLongBits(value)) {
+            symbol.value = value;
+            for (Node reader : symbol.readers) {
+                mark(reader);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Evaluates the nodes affected by the inputs set since the last update
+     *
+     * @return <code>int</code> number of evaluated nodes
+     * @since 8.0
+     */
+    public int recompute() {
+        return recompute(null);
+    }
+
+    /**
+     * Evaluates the nodes affected by the inputs set since the last update,
+     * the independent nodes of the same level are evaluated in parallel
+     *
+     * @param executor Executor of the parallel tasks, <code>null</code> to
+     *                 evaluate in the calling thread
+     * @return <code>int</code> number of evaluated nodes
+     * @since 8.0
+     */
+    public int recompute(Executor executor) {
+        if (!ordered) {
+            order();
+        }
+        for (Node node : dirty) {
+            level(node.level).add(node);
+        }
+        dirty.clear();
+        int evaluated = 0;
+        for (int level = 0; level < levels.size(); level++) {
+            List<Node> nodes = levels.get(level);
+            if (nodes.isEmpty()) {
+                continue;
+            }
+            if (executor == null || nodes.size() < 2 * PARALLEL_CHUNK) {
+                evaluate(nodes, 0, nodes.size());
+            } else {
+                evaluateParallel(nodes, executor);
+            }
+            /* the readers are on the higher levels, so they are evaluated later in this update */
+            for (Node node : nodes) {
+                node.dirty = false;
+                if (node.changed) {
+                    for (Node reader : node.symbol.readers) {
+                        if (!reader.dirty) {
+                            reader.dirty = true;
+                            level(reader.level).add(reader);
+                        }
+                    }
+                }
+            }
+            evaluated += nodes.size();
+            nodes.clear();
+        }
+        return evaluated;
+    }
+
+    /**
+     * Get the value of the input or the value of the node as of the last
+     * update
+     *
+     * @param name Name of the input or the node
+     * @return <code>double</code> value
+     * @throws IllegalArgumentException if the graph has no such name
+     * @since 8.0
+     */
+    public double getValue(String name) {
+        Symbol symbol = symbols.get(name);
+        if (symbol == null) {
+            throw new IllegalArgumentException("Unknown variable: " + name);
+        }
+        return symbol.value;
+    }
+
+    /**
+     * Get the names of the nodes
+     *
+     * @return Immutable set of names
+     * @since 8.0
+     */
+    public Set<String> getNodes() {
+        Set<String> nodes = new HashSet<>();
+        for (Symbol symbol : symbols.values()) {
+            if (symbol.node != null) {
+                nodes.add(symbol.name);
+            }
+        }
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    /**
+     * Get the names of the inputs, i.e. the variables read by the nodes but
+     * not defined by any of them
+     *
+     * @return Immutable set of names
+     * @since 8.0
+     */
+    public Set<String> getInputs() {
+        Set<String> inputs = new HashSet<>();
+        for (Symbol symbol : symbols.values()) {
+            if (symbol.node == null) {
+                inputs.add(symbol.name);
+            }
+        }
+        return Collections.unmodifiableSet(inputs);
+    }
+
+    private Symbol symbol(String name) {
+        Symbol symbol = symbols.get(name);
+        if (symbol == null) {
+            symbol = new Symbol(name);
+            symbols.put(name, symbol);
+        }
+        return symbol;
+    }
+
+    private void mark(Node node) {
+        if (!node.dirty) {
+            node.dirty = true;
+            dirty.add(node);
+        }
+    }
+
+    private List<Node> level(int level) {
+        while (levels.size() <= level) {
+            levels.add(new ArrayList<Node>());
+        }
+        return levels.get(level);
+    }
+
+    /* the new node must not be reachable from itself through the variables it reads */
+    private void checkCycle(String name, String[] variables) {
+        Set<String> sources = new HashSet<>();
+        Collections.addAll(sources, variables);
+        if (sources.contains(name)) {
+            throw new IllegalArgumentException("Expression of " + name + " depends on itself");
+        }
+        Symbol symbol = symbols.get(name);
+        if (symbol == null) {
+            return;
+        }
+        Set<Symbol> visited = new HashSet<>();
+        Deque<Symbol> pending = new ArrayDeque<>();
+        pending.push(symbol);
+        while (!pending.isEmpty()) {
+            Symbol current = pending.pop();
+            if (sources.contains(current.name)) {
+                throw new IllegalArgumentException("Expression of " + name + " depends on "
+                        + name + " through " + current.name);
+            }
+            for (Node reader : current.readers) {
+                if (visited.add(reader.symbol)) {
+                    pending.push(reader.symbol);
+                }
+            }
+        }
+    }
+
+    /* level of the node is one more than the highest level of the nodes it reads, iterative for deep chains */
+    private void order() {
+        Map<Node, Integer> waiting = new HashMap<>();
+        Deque<Node> ready = new ArrayDeque<>();
+        for (Symbol symbol : symbols.values()) {
+            Node node = symbol.node;
+            if (node == null) {
+                continue;
+            }
+            int count = 0;
+            for (Symbol source : node.sources) {
+                if (source.node != null) {
+                    count++;
+                }
+            }
+            node.level = 0;
+            if (count == 0) {
+                ready.add(node);
+            } else {
+                waiting.put(node, count);
+            }
+        }
+        while (!ready.isEmpty()) {
+            Node node = ready.poll();
+            for (Node reader : node.symbol.readers) {
+                reader.level = Math.max(reader.level, node.level + 1);
+                int count = waiting.get(reader) - 1;
+                if (count == 0) {
+                    waiting.remove(reader);
+                    ready.add(reader);
+                } else {
+                    waiting.put(reader, count);
+                }
+            }
+        }
+        ordered = true;
+    }
+
+    private static void evaluate(List<Node> nodes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            nodes.get(i).evaluate();
+        }
+    }
+
+    private static void evaluateParallel(List<Node> nodes, Executor executor) {
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < nodes.size(); from += PARALLEL_CHUNK) {
+            int start = from;
+            int end = Math.min(from + PARALLEL_CHUNK, nodes.size());
+            tasks.add(CompletableFuture.runAsync(() -> evaluate(nodes, start, end), executor));
+        }
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /* input or the published result of the node */
+    private static final class Symbol {
+
+        private final String name;
+        /* nodes that read the symbol */
+        private final List<Node> readers = new ArrayList<>();
+        private double value;
+        /* node that defines the symbol, null for the inputs */
+        private Node node;
+
+        private Symbol(String name) {
+            this.name = name;
+        }
+
+    }
+
+    private static final class Node {
+
+        private final Symbol symbol;
+        private final EvaluationContext context;
+        /* symbols bound to the variable slots */
+        private final Symbol[] sources;
+        private int level;
+        private boolean dirty;
+        /* whether the last evaluation has changed the value */
+        private boolean changed;
+
+        private Node(Symbol symbol, CompiledExpression expression) {
+            this.symbol = symbol;
+            this.context = expression.newContext();
+            this.sources = new Symbol[expression.variableCount()];
+        }
+
+        private void evaluate() {
+            for (int slot = 0; slot < sources.length; slot++) {
+                context.setVariable(slot, sources[slot].value);
+            }
+            double value = context.evaluate();
+            changed = Double.doubleToLongBits(symbol.value) != Double.doubleToLongBits(value);
+            symbol.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one expression collected by
+ * {@link HistogramMetricsRecorder}. The latencies are counted in buckets of
+ * powers of two nanoseconds, so the percentiles are exact up to a factor of
+ * two and the recording is a couple of atomic increments.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class ExpressionMetrics {
+
+    /* bucket i counts the durations in [2^(i-1), 2^i) nanoseconds */
+    private static final int BUCKETS = 64;
+
+    private final String expression;
+    private final long fingerprint;
+    /* statistics indexed by the ordinals of the operations */
+    private final LongAdder[] counts = new LongAdder[MetricsRecorder.Operation.values().length];
+    private final LongAdder[] failures = new LongAdder[counts.length];
+    private final LongAdder[] totalNanos = new LongAdder[counts.length];
+    private final AtomicLongArray histograms = new AtomicLongArray(counts.length * BUCKETS);
+
+    ExpressionMetrics(String expression, long fingerprint) {
+        this.expression = expression;
+        this.fingerprint = fingerprint;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            failures[i] = new LongAdder();
+            totalNanos[i] = new LongAdder();
+        }
+    }
+
+    void record(MetricsRecorder.Operation operation, long durationNanos, boolean failed) {
+        int index = operation.ordinal();
+        counts[index].increment();
+        if (failed) {
+            failures[index].increment();
+        }
+        long nanos = Math.max(0, durationNanos);
+        totalNanos[index].add(nanos);
+        histograms.incrementAndGet(index * BUCKETS + BUCKETS - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /**
+     * Get the source text of the expression as it was first recorded
+     *
+     * @return <code>String</code> expression
+     * @since 8.0
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Get the fingerprint of the expression
+     *
+     * @return <code>long</code> fingerprint
+     * @since 8.0
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Get the number of the operations
+     *
+     * @param operation Operation
+     * @return <code>long</code> count
+     * @since 8.0
+     */
+    public long getCount(MetricsRecorder.Operation operation) {
+        return counts[operation.ordinal()].sum();
+    }
+
+    /**
+     * Get the number of the operations that have thrown an exception, e.g.
+     * <code>ParseException</code>
+     *
+     * @param operation Operation
+     * @return <code>long</code> count
+     * @since 8.0
+     */
+    public long getFailureCount(MetricsRecorder.Operation operation) {
+        return failures[operation.ordinal()].sum();
+    }
+
+    /**
+     * Get the total duration of the operations
+     *
+     * @param operation Operation
+     * @return <code>long</code> nanoseconds
+     * @since 8.0
+     */
+    public long getTotalNanos(MetricsRecorder.Operation operation) {
+        return totalNanos[operation.ordinal()].sum();
+    }
+
+    /**
+     * Get the latency histogram of the operation: the element i is the
+     * number of the durations from 2^(i-1) inclusive to 2^i exclusive
+     * nanoseconds, the element 0 counts the zero durations
+     *
+     * @param operation Operation
+     * @return <code>long[]</code> copy of the histogram
+     * @since 8.0
+     */
+    public long[] getHistogram(MetricsRecorder.Operation operation) {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = histograms.get(operation.ordinal() * BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Estimates the percentile of the latency by the upper bound of the
+     * histogram bucket it falls into
+     *
+     * @param operation Operation
+     * @param quantile  Quantile from 0 to 1, e.g. 0.99
+     * @return <code>long</code> nanoseconds or 0 if nothing was recorded
+     * @since 8.0
+     */
+    public long getPercentileNanos(MetricsRecorder.Operation operation, double quantile) {
+        long[] histogram = getHistogram(operation);
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary format of compiled expressions. The record holds the
+ * program as it is run by the engines: the instructions, the constant pool,
+ * the variable slot table and the names of the user-defined functions, so the
+ * expression is loaded without parsing. The optimized expressions keep the
+ * original program the complex engine falls back to.
+ * <p>
+ * The records are written one after another, so many expressions are stored
+ * in a single file and are loaded with one bulk read or straight from the
+ * memory-mapped file, see {@link #load(Path, FunctionRegistry)}. The layout
+ * of the record, all numbers are big-endian:
+ * <pre>
+ * int    magic "BRCX"
+ * short  version
+ * short  flags: 1 - the record holds the fallback program
+ * int    number of variables, then every name
+ * int    number of functions, then every name and int arity
+ * fallback program if flagged, then program
+ * </pre>
+ * where the name is a short length followed by the UTF-8 bytes, and the
+ * program is:
+ * <pre>
+ * byte   flags: 1 - real, 2 - boolean result
+ * int    maximal stack depth
+ * int    number of temporaries
+ * int    number of instructions, then int instructions
+ * int    number of constants, then double real parts and double imaginary parts
+ * </pre>
+ * The user-defined functions are not serialized, they are resolved by name in
+ * the registry given to the loader. The loaded programs are verified, so a
+ * damaged record is rejected instead of failing at evaluation.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class ExpressionSerializer {
+
+    /**
+     * Version of the format written by this class
+     */
+    public static final int VERSION = 1;
+
+    /* "BRCX" */
+    private static final int MAGIC = 0x42524358;
+    /* record flags */
+    private static final int HAS_FALLBACK = 1;
+    /* program flags */
+    private static final int REAL = 1;
+    private static final int BOOLEAN = 2;
+    /* magic, version, flags and the counts of variables and functions */
+    private static final int HEADER_BYTES = 4 + 2 + 2 + 4 + 4;
+    /* flags, stack depth, temporaries and the counts of instructions and constants */
+    private static final int PROGRAM_HEADER_BYTES = 1 + 4 + 4 + 4 + 4;
+    private static final int INT_BYTES = 4;
+    private static final int DOUBLE_BYTES = 8;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+
+    private ExpressionSerializer() {
+    }
+
+    /**
+     * Get the size of the serialized expression
+     *
+     * @param expression Compiled expression
+     * @return <code>int</code> number of bytes
+     * @since 8.0
+     */
+    public static int size(CompiledExpression expression) {
+        int size = HEADER_BYTES + programSize(expression);
+        for (String variable : expression.variables()) {
+            size += nameSize(variable);
+        }
+        for (UserFunction function : expression.functions()) {
+            size += nameSize(function.name()) + INT_BYTES;
+        }
+        if (expression.fallback() != expression) {
+            size += programSize(expression.fallback());
+        }
+        return size;
+    }
+
+    /**
+     * Serializes the expression to the byte array
+     *
+     * @param expression Compiled expression
+     * @return <code>byte[]</code> record
+     * @since 8.0
+     */
+    public static byte[] toByteArray(CompiledExpression expression) {
+        byte[] bytes = new byte[size(expression)];
+        write(expression, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Serializes the expressions to the byte array, one record after another
+     *
+     * @param expressions Compiled expressions
+     * @return <code>byte[]</code> records
+     * @since 8.0
+     */
+    public static byte[] toByteArray(Collection<CompiledExpression> expressions) {
+        int size = 0;
+        for (CompiledExpression expression : expressions) {
+            size += size(expression);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[size]);
+        for (CompiledExpression expression : expressions) {
+            write(expression, buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Writes the expression at the position of the buffer and advances the
+     * position past the record. The byte order of the buffer is not used and
+     * is left unchanged.
+     *
+     * @param expression Compiled expression
+     * @param buffer     Destination
+     * @throws BufferOverflowException if the buffer has less than
+     *                                 {@link #size(CompiledExpression)} bytes remaining
+     * @since 8.0
+     */
+    public static void write(CompiledExpression expression, ByteBuffer buffer) {
+        int size = size(expression);
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        ByteBuffer out = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        boolean hasFallback = expression.fallback() != expression;
+        out.putInt(MAGIC);
+        out.putShort((short) VERSION);
+        out.putShort((short) (hasFallback ? HAS_FALLBACK : 0));
+        out.putInt(expression.variables().length);
+        for (String variable : expression.variables()) {
+            putName(out, variable);
+        }
+        out.putInt(expression.functions().length);
+        for (UserFunction function : expression.functions()) {
+            putName(out, function.name());
+            out.putInt(function.arity());
+        }
+        if (hasFallback) {
+            putProgram(out, expression.fallback());
+        }
+        putProgram(out, expression);
+        buffer.position(buffer.position() + size);
+    }
+
+    /**
+     * Reads the expression at the position of the buffer and advances the
+     * position past the record. The byte order of the buffer is not used and
+     * is left unchanged.
+     *
+     * @param buffer           Source, e.g. the memory-mapped file
+     * @param functionRegistry Registry the user-defined functions are
+     *                         resolved in, may be <code>null</code> if the
+     *                         expression calls none
+     * @return <code>CompiledExpression</code> loaded expression
+     * @throws IllegalArgumentException if the record is damaged, has an
+     *                                  unsupported version or calls a
+     *                                  function that is not registered
+     * @since 8.0
+     */
+    public static CompiledExpression read(ByteBuffer buffer, FunctionRegistry functionRegistry) {
+        ByteBuffer in = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        CompiledExpression expression;
+        try {
+            expression = read(in, functionRegistry, buffer.position());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Record at " + buffer.position() + " is truncated", e);
+        }
+        buffer.position(buffer.position() + in.position());
+        return expression;
+    }
+
+    /**
+     * Reads all the expressions from the position of the buffer to its limit
+     *
+     * @param buffer           Source, e.g. the memory-mapped file
+     * @param functionRegistry Registry the user-defined functions are
+     *                         resolved in, may be <code>null</code> if the
+     *                         expressions call none
+     * @return List of loaded expressions in the order they were written
+     * @throws IllegalArgumentException if some record is damaged, has an
+     *                                  unsupported version or calls a
+     *                                  function that is not registered
+     * @since 8.0
+     */
+    public static List<CompiledExpression> readAll(ByteBuffer buffer, FunctionRegistry functionRegistry) {
+        List<CompiledExpression> expressions = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            expressions.add(read(buffer, functionRegistry));
+        }
+        return expressions;
+    }
+
+    /**
+     * Maps the file into memory and reads all the expressions stored in it
+     *
+     * @param file             File of records, at most 2 GB
+     * @param functionRegistry Registry the user-defined functions are
+     *                         resolved in, may be <code>null</code> if the
+     *                         expressions call none
+     * @return List of loaded expressions in the order they were written
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if some record is damaged, has an
+     *                                  unsupported version or calls a
+     *                                  function that is not registered
+     * @since 8.0
+     */
+    public static List<CompiledExpression> load(Path file, FunctionRegistry functionRegistry) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readAll(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), functionRegistry);
+        }
+    }
+
+    private static CompiledExpression read(ByteBuffer in, FunctionRegistry functionRegistry, int offset) {
+        if (in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("No expression record at " + offset);
+        }
+        int version = in.getShort() & 0xFFFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported format version: " + version);
+        }
+        int flags = in.getShort();
+        String[] variables = new String[count(in, 2)];
+        for (int slot = 0; slot < variables.length; slot++) {
+            variables[slot] = getName(in);
+        }
+        UserFunction[] functions = new UserFunction[count(in, 2 + INT_BYTES)];
+        for (int i = 0; i < functions.length; i++) {
+            String name = getName(in);
+            int arity = in.getInt();
+            UserFunction function = functionRegistry == null ? null : functionRegistry.get(name);
+            if (function == null) {
+                throw new IllegalArgumentException("Function is not registered: " + name);
+            }
+            if (function.arity() != arity) {
+                throw new IllegalArgumentException("Function " + name + " takes " + function.arity()
+                        + " arguments but the expression passes " + arity);
+            }
+            functions[i] = function;
+        }
+        CompiledExpression fallback = null;
+        if ((flags & HAS_FALLBACK) != 0) {
+            fallback = getProgram(in, variables, functions, null);
+        }
+        return getProgram(in, variables, functions, fallback);
+    }
+
+    private static CompiledExpression getProgram(ByteBuffer in, String[] variables, UserFunction[] functions,
+                                                 CompiledExpression fallback) {
+        int flags = in.get();
+        int maxStackDepth = in.getInt();
+        int temporaries = in.getInt();
+        int[] code = new int[count(in, INT_BYTES)];
+        in.asIntBuffer().get(code);
+        in.position(in.position() + code.length * INT_BYTES);
+        double[] constantsRe = new double[count(in, 2 * DOUBLE_BYTES)];
+        double[] constantsIm = new double[constantsRe.length];
+        in.asDoubleBuffer().get(constantsRe).get(constantsIm);
+        in.position(in.position() + 2 * constantsRe.length * DOUBLE_BYTES);
+        boolean real = (flags & REAL) != 0;
+        for (UserFunction function : functions) {
+            if (real && !function.isReal()) {
+                throw new IllegalArgumentException("Function " + function.name()
+                        + " is complex but the expression was compiled as real");
+            }
+        }
+        verify(code, constantsRe.length, maxStackDepth, temporaries, variables.length, functions);
+        return new CompiledExpression(code, constantsRe, constantsIm, maxStackDepth, temporaries, variables,
+                functions, real, (flags & BOOLEAN) != 0, fallback);
+    }
+
+    /*
+     * Checks that the program only references the existing constants, slots
+     * and functions, that the jumps go forward and that the stack never
+     * underflows nor exceeds its declared depth, so the engines may trust it
+     * like the program produced by the compiler.
+     */
+    private static void verify(int[] code, int constants, int maxStackDepth, int temporaries, int variables,
+                               UserFunction[] functions) {
+        if (code.length == 0 || maxStackDepth < 1 || temporaries < 0) {
+            throw invalid("empty program");
+        }
+        /* stack depth expected at the target of the jump, -1 if no jump ends there */
+        int[] targets = new int[code.length + 1];
+        Arrays.fill(targets, -1);
+        int depth = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            checkTarget(targets, pc, depth);
+            int opcode = Opcodes.opcode(code[pc]);
+            int operand = Opcodes.operand(code[pc]);
+            int arity = Opcodes.arity(opcode);
+            switch (opcode) {
+                case Opcodes.CONST:
+                    checkOperand(operand, constants, pc);
+                    break;
+                case Opcodes.VAR:
+                    checkOperand(operand, variables, pc);
+                    break;
+                case Opcodes.TEE:
+                case Opcodes.LOAD:
+                    checkOperand(operand, temporaries, pc);
+                    break;
+                case Opcodes.CALL:
+                    checkOperand(operand, functions.length, pc);
+                    arity = functions[operand].arity();
+                    break;
+                case Opcodes.JUMP:
+                case Opcodes.JUMP_IF_FALSE:
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                case Opcodes.JUMP_IF_TRUE_OR_POP:
+                    if (operand <= pc || operand > code.length) {
+                        throw invalid("jump from " + pc + " to " + operand);
+                    }
+                    break;
+                default:
+                    if (opcode > Opcodes.JUMP_IF_TRUE_OR_POP) {
+                        throw invalid("unknown opcode " + opcode + " at " + pc);
+                    }
+            }
+            if (depth < arity) {
+                throw invalid("stack underflow at " + pc);
+            }
+            if (opcode == Opcodes.TEE) {
+                continue;
+            }
+            depth -= arity;
+            if (Opcodes.isJump(opcode)) {
+                /* the value carried to the target is counted by the branch that ends there */
+                int expected = opcode == Opcodes.JUMP_IF_FALSE ? depth : depth + 1;
+                checkTarget(targets, operand, expected);
+                targets[operand] = expected;
+            } else {
+                depth++;
+            }
+            if (depth > maxStackDepth) {
+                throw invalid("stack overflow at " + pc);
+            }
+        }
+        checkTarget(targets, code.length, depth);
+        if (depth != 1) {
+            throw invalid("stack depth " + depth + " at the end");
+        }
+    }
+
+    private static void checkTarget(int[] targets, int pc, int depth) {
+        if (targets[pc] >= 0 && targets[pc] != depth) {
+            throw invalid("stack depth mismatch at " + pc);
+        }
+    }
+
+    private static void checkOperand(int operand, int size, int pc) {
+        if (operand >= size) {
+            throw invalid("operand " + operand + " out of range at " + pc);
+        }
+    }
+
+    private static IllegalArgumentException invalid(String reason) {
+        return new IllegalArgumentException("Invalid program: " + reason);
+    }
+
+    /* number of elements that can still fit in the buffer */
+    private static int count(ByteBuffer in, int elementBytes) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / elementBytes) {
+            throw new IllegalArgumentException("Invalid number of elements: " + count);
+        }
+        return count;
+    }
+
+    private static int programSize(CompiledExpression expression) {
+        return PROGRAM_HEADER_BYTES + expression.code().length * INT_BYTES
+                + expression.constantsRe().length * 2 * DOUBLE_BYTES;
+    }
+
+    private static void putProgram(ByteBuffer out, CompiledExpression expression) {
+        out.put((byte) ((expression.isReal() ? REAL : 0) | (expression.isBoolean() ? BOOLEAN : 0)));
+        out.putInt(expression.maxStackDepth());
+        out.putInt(expression.temporaries());
+        out.putInt(expression.code().length);
+        out.asIntBuffer().put(expression.code());
+        out.position(out.position() + expression.code().length * INT_BYTES);
+        out.putInt(expression.constantsRe().length);
+        out.asDoubleBuffer().put(expression.constantsRe()).put(expression.constantsIm());
+        out.position(out.position() + 2 * expression.constantsRe().length * DOUBLE_BYTES);
+    }
+
+    private static int nameSize(String name) {
+        int size = name.getBytes(StandardCharsets.UTF_8).length;
+        if (size > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name is too long: " + name.substring(0, 32) + "...");
+        }
+        return 2 + size;
+    }
+
+    private static void putName(ByteBuffer out, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getName(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid name length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Thread-safe registry of user-defined functions, see
+ * {@link BracerParser#setFunctionRegistry(FunctionRegistry)}. Every function
+ * has a fixed arity and is either pure or not. Calls of pure functions with
+ * constant arguments are folded by the optimizer, and equal calls are
+ * computed once; calls of impure functions are always kept.
+ * <p>
+ * The compiled expressions keep the functions they were compiled with, so
+ * changes of the registry affect only the expressions parsed afterwards.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class FunctionRegistry {
+
+    /* functions by name */
+    private final Map<String, UserFunction> functions = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the function of one real argument
+     *
+     * @param name     Name of the function
+     * @param function Implementation
+     * @param pure     Whether the function always gives the same result for
+     *                 the same argument and has no side effects
+     * @return <code>FunctionRegistry</code> this registry
+     * @throws IllegalArgumentException if the name is not valid or is
+     *                                  reserved by a built-in function
+     * @since 8.0
+     */
+    public FunctionRegistry register(String name, DoubleUnaryOperator function, boolean pure) {
+        return add(new UserFunction(name, 1, pure, UserFunction.UNARY, function));
+    }
+
+    /**
+     * Registers the function of two real arguments
+     *
+     * @param name     Name of the function
+     * @param function Implementation
+     * @param pure     Whether the function always gives the same result for
+     *                 the same arguments and has no side effects
+     * @return <code>FunctionRegistry</code> this registry
+     * @throws IllegalArgumentException if the name is not valid or is
+     *                                  reserved by a built-in function
+     * @since 8.0
+     */
+    public FunctionRegistry register(String name, DoubleBinaryOperator function, boolean pure) {
+        return add(new UserFunction(name, 2, pure, UserFunction.BINARY, function));
+    }
+
+    /**
+     * Registers the function of any number of real arguments
+     *
+     * @param name     Name of the function
+     * @param arity    Number of arguments
+     * @param function Implementation
+     * @param pure     Whether the function always gives the same result for
+     *                 the same arguments and has no side effects
+     * @return <code>FunctionRegistry</code> this registry
+     * @throws IllegalArgumentException if the name is not valid or is
+     *                                  reserved by a built-in function
+     * @since 8.0
+     */
+    public FunctionRegistry register(String name, int arity, RealFunction function, boolean pure) {
+        return add(new UserFunction(name, arity, pure, UserFunction.REAL, function));
+    }
+
+    /**
+     * Registers the function of any number of complex arguments
+     *
+     * @param name     Name of the function
+     * @param arity    Number of arguments
+     * @param function Implementation
+     * @param pure     Whether the function always gives the same result for
+     *                 the same arguments and has no side effects
+     * @return <code>FunctionRegistry</code> this registry
+     * @throws IllegalArgumentException if the name is not valid or is
+     *                                  reserved by a built-in function
+     * @since 8.0
+     */
+    public FunctionRegistry registerComplex(String name, int arity, ComplexFunction function, boolean pure) {
+        return add(new UserFunction(name, arity, pure, UserFunction.COMPLEX, function));
+    }
+
+    /**
+     * Removes the function from the registry
+     *
+     * @param name Name of the function
+     * @return <code>boolean</code> whether the function was registered
+     * @since 8.0
+     */
+    public boolean unregister(String name) {
+        return functions.remove(name) != null;
+    }
+
+    /**
+     * Check if the function is registered
+     *
+     * @param name Name of the function
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean contains(String name) {
+        return functions.containsKey(name);
+    }
+
+    /**
+     * Get the names of the registered functions
+     *
+     * @return Immutable set of names
+     * @since 8.0
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(functions.keySet());
+    }
+
+    UserFunction get(String name) {
+        return functions.get(name);
+    }
+
+    private FunctionRegistry add(UserFunction function) {
+        if (function.implementation() == null) {
+            throw new IllegalArgumentException("Implementation of " + function.name() + " is missing");
+        }
+        if (function.arity() < 0 || function.arity() > Opcodes.MAX_OPERAND) {
+            throw new IllegalArgumentException("Invalid arity of " + function.name() + ": " + function.arity());
+        }
+        if (!isValidName(function.name())) {
+            throw new IllegalArgumentException("Invalid function name: " + function.name());
+        }
+        functions.put(function.name(), function);
+        return this;
+    }
+
+    /* identifier that is neither built-in function nor keyword */
+    private static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || !Character.isLetter(name.charAt(0)) && name.charAt(0) != '_') {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isLetterOrDigit(name.charAt(i)) && name.charAt(i) != '_') {
+                return false;
+            }
+        }
+        return Opcodes.function(name, 0, name.length()) < 0 && !Lexer.isKeyword(name);
+    }
+
+}
@@ -0,0 +1,772 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Forward-mode automatic differentiation of {@link CompiledExpression}. Every
+ * value on the operand stack carries its partial derivatives by all the
+ * variables, so the value and the whole gradient are computed in a single
+ * pass over the program. The values are computed by the same engines as
+ * {@link CompiledExpression#evaluateComplex(double...)}, so they are
+ * identical to its results. The derivatives follow the chain rule with the
+ * complex-analytic derivatives of the functions; the derivatives of
+ * <code>abs</code>, <code>arg</code>, <code>conj</code>, <code>real</code>
+ * and <code>imag</code> are the directional ones along the real variables.
+ * Boolean operations have zero derivatives, and derivatives that are exactly
+ * zero stay zero, so infinite factors do not turn them into NaN.
+ * <p>
+ * The buffers are allocated once, so the evaluator is reusable but not
+ * thread-safe.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class GradientEvaluator {
+
+    private final CompiledExpression expression;
+    /* number of variables */
+    private final int n;
+    private final double[] variableValues;
+    /* stacks of values */
+    private final double[] re;
+    private final double[] im;
+    /* stacks of derivatives, n per stack slot */
+    private final double[] dRe;
+    private final double[] dIm;
+    /* scratch for the complex factors */
+    private final double[] factorRe = new double[1];
+    private final double[] factorIm = new double[1];
+    /* whether the last evaluation was done by the complex engine */
+    private boolean complex;
+
+    /**
+     * Creates the evaluator of the expression, all the variables are zero
+     *
+     * @param expression Compiled expression
+     * @throws UnsupportedOperationException if some user-defined function
+     *                                       depends on the variables
+     * @since 8.0
+     */
+    public GradientEvaluator(CompiledExpression expression) {
+        checkFunctions(expression);
+        checkFunctions(expression.fallback());
+        this.expression = expression;
+        this.n = expression.variableCount();
+        this.variableValues = new double[n];
+        int depth = Math.max(expression.frameSize(), expression.fallback().frameSize());
+        this.re = new double[depth];
+        this.im = new double[depth];
+        this.dRe = new double[depth * n];
+        this.dIm = new double[depth * n];
+    }
+
+    /**
+     * Get the expression differentiated by this evaluator
+     *
+     * @return <code>CompiledExpression</code> expression
+     * @since 8.0
+     */
+    public CompiledExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Sets the value of the variable
+     *
+     * @param slot  Slot of the variable
+     * @param value User-specified <code>Double</code> value
+     * @return <code>GradientEvaluator</code> this evaluator
+     * @throws IndexOutOfBoundsException if there is no such slot
+     * @since 8.0
+     */
+    public GradientEvaluator setVariable(int slot, double value) {
+        variableValues[slot] = value;
+        return this;
+    }
+
+    /**
+     * Sets the value of the variable
+     *
+     * @param name  Name of the variable
+     * @param value User-specified <code>Double</code> value
+     * @return <code>GradientEvaluator</code> this evaluator
+     * @throws IllegalArgumentException if the expression does not reference
+     *                                  the variable
+     * @since 8.0
+     */
+    public GradientEvaluator setVariable(String name, double value) {
+        variableValues[slot(name)] = value;
+        return this;
+    }
+
+    /**
+     * Evaluates the value and the derivatives with the current values of the
+     * variables
+     *
+     * @return <code>double</code> real part of the value
+     * @since 8.0
+     */
+    public double evaluate() {
+        complex = !expression.isReal() || !run(expression, false);
+        if (complex) {
+            run(expression.fallback(), true);
+        }
+        return re[0];
+    }
+
+    /**
+     * Evaluates the value and the derivatives with the variables included
+     *
+     * @param variableValues Values of the variables indexed by their slots
+     * @return <code>double</code> real part of the value
+     * @throws IllegalArgumentException if some variable value is missing
+     * @since 8.0
+     */
+    public double evaluate(double... variableValues) {
+        expression.checkVariables(variableValues);
+        System.arraycopy(variableValues, 0, this.variableValues, 0, n);
+        return evaluate();
+    }
+
+    /**
+     * Get the real part of the last value
+     *
+     * @return <code>double</code> real part
+     * @since 8.0
+     */
+    public double getReal() {
+        return re[0];
+    }
+
+    /**
+     * Get the imaginary part of the last value
+     *
+     * @return <code>double</code> imaginary part
+     * @since 8.0
+     */
+    public double getImaginary() {
+        return complex ? im[0] : 0;
+    }
+
+    /**
+     * Get the real part of the last partial derivative by the variable
+     *
+     * @param slot Slot of the variable
+     * @return <code>double</code> real part of the derivative
+     * @throws IndexOutOfBoundsException if there is no such slot
+     * @since 8.0
+     */
+    public double getDerivative(int slot) {
+        checkSlot(slot);
+        return dRe[slot];
+    }
+
+    /**
+     * Get the real part of the last partial derivative by the variable
+     *
+     * @param name Name of the variable
+     * @return <code>double</code> real part of the derivative
+     * @throws IllegalArgumentException if the expression does not reference
+     *                                  the variable
+     * @since 8.0
+     */
+    public double getDerivative(String name) {
+        return dRe[slot(name)];
+    }
+
+    /**
+     * Get the imaginary part of the last partial derivative by the variable
+     *
+     * @param slot Slot of the variable
+     * @return <code>double</code> imaginary part of the derivative
+     * @throws IndexOutOfBoundsException if there is no such slot
+     * @since 8.0
+     */
+    public double getDerivativeImaginary(int slot) {
+        checkSlot(slot);
+        return complex ? dIm[slot] : 0;
+    }
+
+    /**
+     * Get the real parts of the last partial derivatives by all the variables
+     *
+     * @return <code>double[]</code> gradient indexed by the slots
+     * @since 8.0
+     */
+    public double[] getGradient() {
+        double[] gradient = new double[n];
+        System.arraycopy(dRe, 0, gradient, 0, n);
+        return gradient;
+    }
+
+    private int slot(String name) {
+        int slot = expression.getVariableIndex(name);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown variable: " + name);
+        }
+        return slot;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= n) {
+            throw new IndexOutOfBoundsException("No variable in slot " + slot);
+        }
+    }
+
+    /**
+     * Runs the program over the values with derivatives
+     *
+     * @param program Program to run
+     * @param complex Whether the complex engine is used
+     * @return <code>false</code> if the real engine left the real domain
+     */
+    private boolean run(CompiledExpression program, boolean complex) {
+        int[] code = program.code();
+        double[] constantsRe = program.constantsRe();
+        double[] constantsIm = program.constantsIm();
+        int base = program.maxStackDepth();
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int opcode = Opcodes.opcode(code[pc]);
+            int operand = Opcodes.operand(code[pc]);
+            switch (opcode) {
+                case Opcodes.CONST:
+                    top++;
+                    re[top] = constantsRe[operand];
+                    im[top] = complex ? constantsIm[operand] : 0;
+                    clear(top);
+                    continue;
+                case Opcodes.VAR:
+                    top++;
+                    re[top] = variableValues[operand];
+                    im[top] = 0;
+                    clear(top);
+                    dRe[top * n + operand] = 1;
+                    continue;
+                case Opcodes.TEE:
+                    copy(top, base + operand);
+                    continue;
+                case Opcodes.LOAD:
+                    copy(base + operand, ++top);
+                    continue;
+                case Opcodes.CALL: {
+                    /* the arguments do not depend on the variables, see checkFunctions */
+                    UserFunction function = program.functions()[operand];
+                    top -= function.arity() - 1;
+                    if (complex) {
+                        function.applyComplex(re, im, top);
+                    } else {
+                        re[top] = function.applyReal(re, top);
+                    }
+                    clear(top);
+                    continue;
+                }
+                case Opcodes.JUMP:
+                    pc = operand - 1;
+                    continue;
+                case Opcodes.JUMP_IF_FALSE:
+                    /* the derivatives follow the taken branch */
+                    if (!ComplexOps.isTrue(re[top--])) {
+                        pc = operand - 1;
+                    }
+                    continue;
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                case Opcodes.JUMP_IF_TRUE_OR_POP: {
+                    boolean value = ComplexOps.isTrue(re[top]);
+                    if (value == (opcode == Opcodes.JUMP_IF_TRUE_OR_POP)) {
+                        ComplexOps.bool(value, re, im, top);
+                        clear(top);
+                        pc = operand - 1;
+                    } else {
+                        top--;
+                    }
+                    continue;
+                }
+                default:
+                    break;
+            }
+            if (Opcodes.arity(opcode) == 2) {
+                top--;
+                if (!binary(opcode, top, complex)) {
+                    return false;
+                }
+            } else if (!unary(opcode, top, complex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean binary(int opcode, int k, boolean complex) {
+        double aRe = re[k];
+        double aIm = im[k];
+        double bRe = re[k + 1];
+        double bIm = im[k + 1];
+        switch (opcode) {
+            case Opcodes.ADD:
+                if (complex) {
+                    ComplexOps.add(aRe, aIm, bRe, bIm, re, im, k);
+                } else {
+                    re[k] = aRe + bRe;
+                }
+                combine(k, 1, 0, 1, 0, complex);
+                return true;
+            case Opcodes.SUB:
+                if (complex) {
+                    ComplexOps.subtract(aRe, aIm, bRe, bIm, re, im, k);
+                } else {
+                    re[k] = aRe - bRe;
+                }
+                combine(k, 1, 0, -1, 0, complex);
+                return true;
+            case Opcodes.MUL:
+                if (complex) {
+                    ComplexOps.multiply(aRe, aIm, bRe, bIm, re, im, k);
+                } else {
+                    re[k] = aRe * bRe;
+                }
+                combine(k, bRe, bIm, aRe, aIm, complex);
+                return true;
+            case Opcodes.DIV:
+                /* (da - q * db) / b */
+                if (complex) {
+                    ComplexOps.divide(aRe, aIm, bRe, bIm, re, im, k);
+                    ComplexOps.divide(1, 0, bRe, bIm, factorRe, factorIm, 0);
+                    double inverseRe = factorRe[0];
+                    double inverseIm = factorIm[0];
+                    ComplexOps.multiply(-re[k], -im[k], inverseRe, inverseIm, factorRe, factorIm, 0);
+                    combine(k, inverseRe, inverseIm, factorRe[0], factorIm[0], true);
+                } else {
+                    if (bRe == 0) {
+                        return false;
+                    }
+                    re[k] = aRe / bRe;
+                    combine(k, 1 / bRe, 0, -re[k] / bRe, 0, false);
+                }
+                return true;
+            case Opcodes.POW:
+                /* b * a^(b - 1) * da + q * log(a) * db */
+                if (complex) {
+                    ComplexOps.pow(aRe, aIm, bRe, bIm, re, im, k);
+                    ComplexOps.pow(aRe, aIm, bRe - 1, bIm, factorRe, factorIm, 0);
+                    ComplexOps.multiply(bRe, bIm, factorRe[0], factorIm[0], factorRe, factorIm, 0);
+                    double baseRe = factorRe[0];
+                    double baseIm = factorIm[0];
+                    ComplexOps.log(aRe, aIm, factorRe, factorIm, 0);
+                    ComplexOps.multiply(re[k], im[k], factorRe[0], factorIm[0], factorRe, factorIm, 0);
+                    combine(k, baseRe, baseIm, factorRe[0], factorIm[0], true);
+                } else {
+                    /* log(a) of the negative base is complex, so is the derivative by the exponent */
+                    if (aRe == 0 || aRe < 0 && (bRe != Math.rint(bRe) || hasDerivative(k + 1))) {
+                        return false;
+                    }
+                    re[k] = Math.pow(aRe, bRe);
+                    combine(k, bRe * Math.pow(aRe, bRe - 1), 0, re[k] * Math.log(aRe), 0, false);
+                }
+                return true;
+            case Opcodes.OR:
+                if (complex) {
+                    ComplexOps.bool(ComplexOps.isTrue(bRe) || ComplexOps.isTrue(aRe), re, im, k);
+                } else {
+                    re[k] = bRe == 1.0 || aRe == 1.0 ? 1 : 0;
+                }
+                clear(k);
+                return true;
+            case Opcodes.AND:
+                if (complex) {
+                    ComplexOps.bool(ComplexOps.isTrue(bRe) && ComplexOps.isTrue(aRe), re, im, k);
+                } else {
+                    re[k] = bRe == 1.0 && aRe == 1.0 ? 1 : 0;
+                }
+                clear(k);
+                return true;
+            case Opcodes.LT:
+            case Opcodes.LE:
+            case Opcodes.GT:
+            case Opcodes.GE:
+            case Opcodes.EQ:
+            case Opcodes.NE:
+                ComplexOps.bool(compare(opcode, aRe, aIm, bRe, bIm), re, im, k);
+                clear(k);
+                return true;
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcode);
+        }
+    }
+
+    /* comparison of the first operand with the second one, both engines agree on real values */
+    private static boolean compare(int opcode, double aRe, double aIm, double bRe, double bIm) {
+        switch (opcode) {
+            case Opcodes.LT:
+                return ComplexOps.less(aRe, aIm, bRe, bIm);
+            case Opcodes.LE:
+                return ComplexOps.lessOrEqual(aRe, aIm, bRe, bIm);
+            case Opcodes.GT:
+                return ComplexOps.less(bRe, bIm, aRe, aIm);
+            case Opcodes.GE:
+                return ComplexOps.lessOrEqual(bRe, bIm, aRe, aIm);
+            case Opcodes.EQ:
+                return ComplexOps.equal(aRe, aIm, bRe, bIm);
+            default:
+                return !ComplexOps.equal(aRe, aIm, bRe, bIm);
+        }
+    }
+
+    private boolean unary(int opcode, int k, boolean complex) {
+        double aRe = re[k];
+        double aIm = im[k];
+        if (!complex) {
+            return unaryReal(opcode, k, aRe);
+        }
+        switch (opcode) {
+            case Opcodes.NOT:
+                ComplexOps.bool(!ComplexOps.isTrue(aRe), re, im, k);
+                clear(k);
+                return true;
+            case Opcodes.TRUTH:
+                ComplexOps.bool(ComplexOps.isTrue(aRe), re, im, k);
+                clear(k);
+                return true;
+            case Opcodes.ABS: {
+                /* re(conj(a) * da) / |a| */
+                double abs = ComplexOps.abs(aRe, aIm);
+                ComplexOps.set(abs, 0, re, im, k);
+                for (int i = k * n; i < k * n + n; i++) {
+                    if (dRe[i] != 0 || dIm[i] != 0) {
+                        dRe[i] = (aRe * dRe[i] + aIm * dIm[i]) / abs;
+                        dIm[i] = 0;
+                    }
+                }
+                return true;
+            }
+            case Opcodes.ARG: {
+                /* im(conj(a) * da) / |a|^2 */
+                double abs = ComplexOps.abs(aRe, aIm);
+                ComplexOps.set(FastMath.atan2(aIm, aRe), 0, re, im, k);
+                for (int i = k * n; i < k * n + n; i++) {
+                    if (dRe[i] != 0 || dIm[i] != 0) {
+                        dRe[i] = (aRe * dIm[i] - aIm * dRe[i]) / (abs * abs);
+                        dIm[i] = 0;
+                    }
+                }
+                return true;
+            }
+            case Opcodes.CONJ:
+                ComplexOps.conjugate(aRe, aIm, re, im, k);
+                for (int i = k * n; i < k * n + n; i++) {
+                    dIm[i] = -dIm[i];
+                }
+                return true;
+            case Opcodes.REAL:
+                ComplexOps.set(aRe, 0, re, im, k);
+                for (int i = k * n; i < k * n + n; i++) {
+                    dIm[i] = 0;
+                }
+                return true;
+            case Opcodes.IMAG:
+                ComplexOps.set(aIm, 0, re, im, k);
+                for (int i = k * n; i < k * n + n; i++) {
+                    dRe[i] = dIm[i];
+                    dIm[i] = 0;
+                }
+                return true;
+            case Opcodes.NEG:
+                ComplexOps.negate(aRe, aIm, re, im, k);
+                scale(k, -1, 0, true);
+                return true;
+            case Opcodes.ACOS:
+            case Opcodes.ASIN:
+                if (opcode == Opcodes.ACOS) {
+                    ComplexOps.acos(aRe, aIm, re, im, k);
+                } else {
+                    ComplexOps.asin(aRe, aIm, re, im, k);
+                }
+                /* -+1 / sqrt(1 - a^2) */
+                ComplexOps.multiply(aRe, aIm, aRe, aIm, factorRe, factorIm, 0);
+                ComplexOps.subtract(1, 0, factorRe[0], factorIm[0], factorRe, factorIm, 0);
+                ComplexOps.sqrt(factorRe[0], factorIm[0], factorRe, factorIm, 0);
+                ComplexOps.divide(opcode == Opcodes.ACOS ? -1 : 1, 0, factorRe[0], factorIm[0],
+                        factorRe, factorIm, 0);
+                break;
+            case Opcodes.ATAN:
+                ComplexOps.atan(aRe, aIm, re, im, k);
+                /* 1 / (1 + a^2) */
+                ComplexOps.multiply(aRe, aIm, aRe, aIm, factorRe, factorIm, 0);
+                ComplexOps.divide(1, 0, 1 + factorRe[0], factorIm[0], factorRe, factorIm, 0);
+                break;
+            case Opcodes.COS:
+                ComplexOps.cos(aRe, aIm, re, im, k);
+                ComplexOps.sin(aRe, aIm, factorRe, factorIm, 0);
+                ComplexOps.negate(factorRe[0], factorIm[0], factorRe, factorIm, 0);
+                break;
+            case Opcodes.COSH:
+                ComplexOps.cosh(aRe, aIm, re, im, k);
+                ComplexOps.sinh(aRe, aIm, factorRe, factorIm, 0);
+                break;
+            case Opcodes.EXP:
+                ComplexOps.exp(aRe, aIm, re, im, k);
+                ComplexOps.set(re[k], im[k], factorRe, factorIm, 0);
+                break;
+            case Opcodes.LOG:
+                ComplexOps.log(aRe, aIm, re, im, k);
+                ComplexOps.divide(1, 0, aRe, aIm, factorRe, factorIm, 0);
+                break;
+            case Opcodes.SIN:
+                ComplexOps.sin(aRe, aIm, re, im, k);
+                ComplexOps.cos(aRe, aIm, factorRe, factorIm, 0);
+                break;
+            case Opcodes.SINH:
+                ComplexOps.sinh(aRe, aIm, re, im, k);
+                ComplexOps.cosh(aRe, aIm, factorRe, factorIm, 0);
+                break;
+            case Opcodes.SQRT:
+                ComplexOps.sqrt(aRe, aIm, re, im, k);
+                /* 1 / (2 * sqrt(a)) */
+                ComplexOps.divide(1, 0, 2 * re[k], 2 * im[k], factorRe, factorIm, 0);
+                break;
+            case Opcodes.TAN:
+            case Opcodes.TANH:
+                if (opcode == Opcodes.TAN) {
+                    ComplexOps.tan(aRe, aIm, re, im, k);
+                } else {
+                    ComplexOps.tanh(aRe, aIm, re, im, k);
+                }
+                /* 1 +- q^2 */
+                ComplexOps.multiply(re[k], im[k], re[k], im[k], factorRe, factorIm, 0);
+                double sign = opcode == Opcodes.TAN ? 1 : -1;
+                ComplexOps.set(1 + sign * factorRe[0], sign * factorIm[0], factorRe, factorIm, 0);
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcode);
+        }
+        scale(k, factorRe[0], factorIm[0], true);
+        return true;
+    }
+
+    /* mirrors the real engine of CompiledExpression */
+    private boolean unaryReal(int opcode, int k, double a) {
+        double factor;
+        switch (opcode) {
+            case Opcodes.NOT:
+                re[k] = a == 1.0 ? 0 : 1;
+                clear(k);
+                return true;
+            case Opcodes.TRUTH:
+                re[k] = a == 1.0 ? 1 : 0;
+                clear(k);
+                return true;
+            case Opcodes.ABS:
+                re[k] = Math.abs(a);
+                factor = a / re[k];
+                break;
+            case Opcodes.ARG:
+                re[k] = Math.atan2(0.0, a);
+                clear(k);
+                return true;
+            case Opcodes.CONJ:
+            case Opcodes.REAL:
+                return true;
+            case Opcodes.IMAG:
+                re[k] = 0;
+                clear(k);
+                return true;
+            case Opcodes.NEG:
+                re[k] = -a;
+                factor = -1;
+                break;
+            case Opcodes.ACOS:
+            case Opcodes.ASIN:
+                if (a < -1 || a > 1) {
+                    return false;
+                }
+                re[k] = opcode == Opcodes.ACOS ? Math.acos(a) : Math.asin(a);
+                factor = (opcode == Opcodes.ACOS ? -1 : 1) / Math.sqrt(1 - a * a);
+                break;
+            case Opcodes.ATAN:
+                re[k] = Math.atan(a);
+                factor = 1 / (1 + a * a);
+                break;
+            case Opcodes.COS:
+                re[k] = Math.cos(a);
+                factor = -Math.sin(a);
+                break;
+            case Opcodes.COSH:
+                re[k] = Math.cosh(a);
+                factor = Math.sinh(a);
+                break;
+            case Opcodes.EXP:
+                re[k] = Math.exp(a);
+                factor = re[k];
+                break;
+            case Opcodes.LOG:
+                if (a <= 0) {
+                    return false;
+                }
+                re[k] = Math.log(a);
+                factor = 1 / a;
+                break;
+            case Opcodes.SIN:
+                re[k] = Math.sin(a);
+                factor = Math.cos(a);
+                break;
+            case Opcodes.SINH:
+                re[k] = Math.sinh(a);
+                factor = Math.cosh(a);
+                break;
+            case Opcodes.SQRT:
+                if (a < 0) {
+                    return false;
+                }
+                re[k] = Math.sqrt(a);
+                factor = 1 / (2 * re[k]);
+                break;
+            case Opcodes.TAN:
+                re[k] = Math.tan(a);
+                factor = 1 + re[k] * re[k];
+                break;
+            case Opcodes.TANH:
+                re[k] = Math.tanh(a);
+                factor = 1 - re[k] * re[k];
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcode);
+        }
+        scale(k, factor, 0, false);
+        return true;
+    }
+
+    private boolean hasDerivative(int k) {
+        for (int i = k * n; i < k * n + n; i++) {
+            if (dRe[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clear(int k) {
+        for (int i = k * n; i < k * n + n; i++) {
+            dRe[i] = 0;
+            dIm[i] = 0;
+        }
+    }
+
+    private void copy(int from, int to) {
+        re[to] = re[from];
+        im[to] = im[from];
+        System.arraycopy(dRe, from * n, dRe, to * n, n);
+        System.arraycopy(dIm, from * n, dIm, to * n, n);
+    }
+
+    /* d[k] = f * d[k], the zero derivatives stay zero */
+    private void scale(int k, double fRe, double fIm, boolean complex) {
+        for (int i = k * n; i < k * n + n; i++) {
+            double derivativeRe = dRe[i];
+            double derivativeIm = dIm[i];
+            if (derivativeRe == 0 && derivativeIm == 0) {
+                continue;
+            }
+            if (complex) {
+                dRe[i] = fRe * derivativeRe - fIm * derivativeIm;
+                dIm[i] = fRe * derivativeIm + fIm * derivativeRe;
+            } else {
+                dRe[i] = fRe * derivativeRe;
+            }
+        }
+    }
+
+    /* d[k] = f * d[k] + g * d[k + 1], the zero derivatives give zero terms */
+    private void combine(int k, double fRe, double fIm, double gRe, double gIm, boolean complex) {
+        for (int i = k * n, j = i + n; i < k * n + n; i++, j++) {
+            double aRe = dRe[i];
+            double aIm = dIm[i];
+            double bRe = dRe[j];
+            double bIm = dIm[j];
+            double resultRe = 0;
+            double resultIm = 0;
+            if (aRe != 0 || aIm != 0) {
+                resultRe = fRe * aRe - fIm * aIm;
+                resultIm = fRe * aIm + fIm * aRe;
+            }
+            if (bRe != 0 || bIm != 0) {
+                resultRe += gRe * bRe - gIm * bIm;
+                resultIm += gRe * bIm + gIm * bRe;
+            }
+            dRe[i] = resultRe;
+            dIm[i] = complex ? resultIm : 0;
+        }
+    }
+
+    /**
+     * Checks that the arguments of the user-defined functions do not depend
+     * on the variables, since the derivatives of the functions are unknown
+     */
+    private static void checkFunctions(CompiledExpression program) {
+        int[] code = program.code();
+        boolean[] dependent = new boolean[program.frameSize()];
+        /* the first branch of "if" carries its value over the second one */
+        boolean[] carried = new boolean[code.length + 1];
+        int base = program.maxStackDepth();
+        int top = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            if (carried[pc]) {
+                dependent[top] = true;
+            }
+            int opcode = Opcodes.opcode(code[pc]);
+            int operand = Opcodes.operand(code[pc]);
+            switch (opcode) {
+                case Opcodes.CONST:
+                    dependent[++top] = false;
+                    break;
+                case Opcodes.VAR:
+                    dependent[++top] = true;
+                    break;
+                case Opcodes.TEE:
+                    dependent[base + operand] = dependent[top];
+                    break;
+                case Opcodes.LOAD:
+                    dependent[++top] = dependent[base + operand];
+                    break;
+                case Opcodes.CALL: {
+                    UserFunction function = program.functions()[operand];
+                    top -= function.arity() - 1;
+                    for (int i = top; i < top + function.arity(); i++) {
+                        if (dependent[i]) {
+                            throw new UnsupportedOperationException("Derivative of the user-defined function "
+                                    + function.name() + " is unknown");
+                        }
+                    }
+                    /* zero-argument functions push a new value */
+                    dependent[top] = false;
+                    break;
+                }
+                default:
+                    if (Opcodes.isJump(opcode)) {
+                        /* the value is consumed on the path that falls through */
+                        carried[operand] |= opcode == Opcodes.JUMP && dependent[top];
+                        top--;
+                    } else if (Opcodes.arity(opcode) == 2) {
+                        top--;
+                        dependent[top] |= dependent[top + 1];
+                    }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe recorder that keeps the counters and latency histograms of
+ * every expression in memory, see {@link ExpressionMetrics}. The number of
+ * tracked expressions is bounded; once the bound is reached the operations of
+ * the new expressions are not recorded.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class HistogramMetricsRecorder implements MetricsRecorder {
+
+    /* maximal number of tracked expressions */
+    private final int maximumExpressions;
+    /* metrics by fingerprint */
+    private final Map<Long, ExpressionMetrics> expressions = new ConcurrentHashMap<>();
+
+    /**
+     * Class ctor for setting up the bound of the tracked expressions
+     *
+     * @param maximumExpressions Maximal number of tracked expressions
+     * @since 8.0
+     */
+    public HistogramMetricsRecorder(int maximumExpressions) {
+        if (maximumExpressions <= 0) {
+            throw new IllegalArgumentException("Maximal number of expressions must be positive: "
+                    + maximumExpressions);
+        }
+        this.maximumExpressions = maximumExpressions;
+    }
+
+    @Override
+    public void record(Operation operation, String expression, long fingerprint, long durationNanos,
+                       boolean failed) {
+        ExpressionMetrics metrics = expressions.get(fingerprint);
+        if (metrics == null) {
+            if (expressions.size() >= maximumExpressions) {
+                return;
+            }
+            metrics = expressions.computeIfAbsent(fingerprint, key -> new ExpressionMetrics(expression, key));
+        }
+        metrics.record(operation, durationNanos, failed);
+    }
+
+    /**
+     * Get the metrics of the expression
+     *
+     * @param fingerprint Fingerprint of the expression
+     * @return <code>ExpressionMetrics</code> or <code>null</code> if nothing
+     * has been recorded for the expression
+     * @since 8.0
+     */
+    public ExpressionMetrics get(long fingerprint) {
+        return expressions.get(fingerprint);
+    }
+
+    /**
+     * Get the metrics of all the tracked expressions
+     *
+     * @return Copy of the metrics
+     * @since 8.0
+     */
+    public Collection<ExpressionMetrics> getExpressions() {
+        return new ArrayList<>(expressions.values());
+    }
+
+    /**
+     * Forgets all the recorded metrics
+     *
+     * @since 8.0
+     */
+    public void clear() {
+        expressions.clear();
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+/**
+ * Immutable closed interval of real numbers, the value of
+ * {@link IntervalBackend}. The bounds may be infinite.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class Interval {
+
+    /**
+     * Interval of all the real numbers
+     *
+     * @since 8.0
+     */
+    public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+    private final double lower;
+    private final double upper;
+
+    private Interval(double lower, double upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Creates the interval
+     *
+     * @param lower Lower bound
+     * @param upper Upper bound
+     * @return <code>Interval</code> interval
+     * @throws IllegalArgumentException if some bound is NaN or the lower
+     *                                  bound is greater than the upper one
+     * @since 8.0
+     */
+    public static Interval of(double lower, double upper) {
+        if (!(lower <= upper)) {
+            throw new IllegalArgumentException("Invalid interval: [" + lower + ", " + upper + "]");
+        }
+        /* negative zero would make the equal intervals unequal */
+        return new Interval(lower + 0.0, upper + 0.0);
+    }
+
+    /**
+     * Creates the interval of the single number
+     *
+     * @param value Number
+     * @return <code>Interval</code> interval
+     * @throws IllegalArgumentException if the number is NaN
+     * @since 8.0
+     */
+    public static Interval point(double value) {
+        return of(value, value);
+    }
+
+    /**
+     * Get the lower bound
+     *
+     * @return <code>double</code> lower bound
+     * @since 8.0
+     */
+    public double getLower() {
+        return lower;
+    }
+
+    /**
+     * Get the upper bound
+     *
+     * @return <code>double</code> upper bound
+     * @since 8.0
+     */
+    public double getUpper() {
+        return upper;
+    }
+
+    /**
+     * Get the width of the interval, rounded up
+     *
+     * @return <code>double</code> width
+     * @since 8.0
+     */
+    public double getWidth() {
+        return lower == upper ? 0 : Math.nextUp(upper - lower);
+    }
+
+    /**
+     * Check if the interval holds a single number
+     *
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean isPoint() {
+        return lower == upper;
+    }
+
+    /**
+     * Check if the interval holds the number
+     *
+     * @param value Number
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    public boolean contains(double value) {
+        return lower <= value && value <= upper;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Interval)) {
+            return false;
+        }
+        Interval interval = (Interval) o;
+        return lower == interval.lower && upper == interval.upper;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Double.hashCode(lower) + Double.hashCode(upper);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + lower + ", " + upper + "]";
+    }
+
+}
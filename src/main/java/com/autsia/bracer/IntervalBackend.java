@@ -0,0 +1,363 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+/**
+ * Interval arithmetic backend: the result of every operation is an interval
+ * that is guaranteed to hold all the values of the operation over all the
+ * numbers of the operand intervals, so the result of the expression bounds
+ * the exact result for any values of the variables within their intervals.
+ * <p>
+ * The bounds are rounded outwards. The sums and the differences are moved
+ * by one unit in the last place only when they are inexact, so the integer
+ * arithmetic keeps the single numbers single. The other operators and the
+ * square root of <code>double</code> are correctly rounded, so their bounds
+ * are moved by one unit, the functions of <code>Math</code> are accurate to
+ * one or 2.5 units, so their bounds are moved by two or three units. The constants that are not integers are
+ * widened in the same way, as the literal may not be a <code>double</code>.
+ * <p>
+ * Division by an interval holding zero gives {@link Interval#ENTIRE}. The
+ * operations whose operands are not entirely in the real domain, e.g. the
+ * logarithm of an interval holding zero, throw
+ * <code>ArithmeticException</code>, as do the comparisons of the
+ * overlapping intervals, whose order is not known.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class IntervalBackend implements NumericBackend<Interval> {
+
+    /* outward rounding of Math functions accurate to 1 and 2.5 ulps */
+    private static final int ULPS = 2;
+    private static final int HYPERBOLIC_ULPS = 3;
+    private static final double TWO_PI = 2 * Math.PI;
+    /* beyond this the periods of the trigonometric functions are not resolved */
+    private static final double MAX_PERIODIC_ARGUMENT = 1e6;
+    /* slack of the extremum search in periods, far above the rounding errors */
+    private static final double PERIOD_SLACK = 1e-9;
+    private static final Interval UNIT = Interval.of(-1, 1);
+    private static final Interval PI = Interval.of(Math.nextDown(Math.PI), Math.nextUp(Math.PI));
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if the value is NaN
+     * @since 8.0
+     */
+    @Override
+    public Interval valueOf(double value) {
+        if (value == Math.rint(value) || Double.isInfinite(value)) {
+            return Interval.point(value);
+        }
+        return Interval.of(Math.nextDown(value), Math.nextUp(value));
+    }
+
+    @Override
+    public Interval add(Interval a, Interval b) {
+        return Interval.of(sumDown(a.getLower(), b.getLower()), sumUp(a.getUpper(), b.getUpper()));
+    }
+
+    @Override
+    public Interval subtract(Interval a, Interval b) {
+        return Interval.of(sumDown(a.getLower(), -b.getUpper()), sumUp(a.getUpper(), -b.getLower()));
+    }
+
+    @Override
+    public Interval multiply(Interval a, Interval b) {
+        double p1 = product(a.getLower(), b.getLower());
+        double p2 = product(a.getLower(), b.getUpper());
+        double p3 = product(a.getUpper(), b.getLower());
+        double p4 = product(a.getUpper(), b.getUpper());
+        return outward(Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                Math.max(Math.max(p1, p2), Math.max(p3, p4)), 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return <code>Interval</code> quotient, {@link Interval#ENTIRE} if the
+     * divisor holds zero
+     * @since 8.0
+     */
+    @Override
+    public Interval divide(Interval a, Interval b) {
+        if (b.contains(0)) {
+            return Interval.ENTIRE;
+        }
+        double q1 = quotient(a.getLower(), b.getLower());
+        double q2 = quotient(a.getLower(), b.getUpper());
+        double q3 = quotient(a.getUpper(), b.getLower());
+        double q4 = quotient(a.getUpper(), b.getUpper());
+        return outward(Math.min(Math.min(q1, q2), Math.min(q3, q4)),
+                Math.max(Math.max(q1, q2), Math.max(q3, q4)), 1);
+    }
+
+    @Override
+    public Interval negate(Interval a) {
+        return Interval.of(-a.getUpper(), -a.getLower());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ArithmeticException if the intervals overlap and are not the
+     *                             same single number
+     * @since 8.0
+     */
+    @Override
+    public int compare(Interval a, Interval b) {
+        if (a.getUpper() < b.getLower()) {
+            return -1;
+        }
+        if (a.getLower() > b.getUpper()) {
+            return 1;
+        }
+        if (a.isPoint() && a.equals(b)) {
+            return 0;
+        }
+        throw new ArithmeticException("Order of " + a + " and " + b + " is not known");
+    }
+
+    /**
+     * Computes the power: an integer exponent takes any base, the other
+     * exponents take the positive bases only
+     *
+     * @param base     Base
+     * @param exponent Exponent
+     * @return number
+     * @throws ArithmeticException if the exponent is not a single integer
+     *                             and the base is not positive
+     * @since 8.0
+     */
+    @Override
+    public Interval pow(Interval base, Interval exponent) {
+        double n = exponent.getLower();
+        if (exponent.isPoint() && n == Math.rint(n) && !Double.isInfinite(n)) {
+            return integerPow(base, n);
+        }
+        if (base.getLower() <= 0) {
+            throw new ArithmeticException("Power of " + base + " to " + exponent + " is not real");
+        }
+        return exp(multiply(exponent, log(base)));
+    }
+
+    @Override
+    public Interval abs(Interval a) {
+        if (a.getLower() >= 0) {
+            return a;
+        }
+        if (a.getUpper() <= 0) {
+            return negate(a);
+        }
+        return Interval.of(0, Math.max(-a.getLower(), a.getUpper()));
+    }
+
+    @Override
+    public Interval sqrt(Interval a) {
+        checkDomain("sqrt", a, a.getLower() >= 0);
+        return Interval.of(Math.max(0, Math.nextDown(Math.sqrt(a.getLower()))), Math.nextUp(Math.sqrt(a.getUpper())));
+    }
+
+    @Override
+    public Interval exp(Interval a) {
+        Interval result = outward(Math.exp(a.getLower()), Math.exp(a.getUpper()), ULPS);
+        return Interval.of(Math.max(0, result.getLower()), result.getUpper());
+    }
+
+    @Override
+    public Interval log(Interval a) {
+        checkDomain("log", a, a.getLower() > 0);
+        return outward(Math.log(a.getLower()), Math.log(a.getUpper()), ULPS);
+    }
+
+    @Override
+    public Interval sin(Interval a) {
+        return periodic(a, Math.sin(a.getLower()), Math.sin(a.getUpper()), Math.PI / 2);
+    }
+
+    @Override
+    public Interval cos(Interval a) {
+        return periodic(a, Math.cos(a.getLower()), Math.cos(a.getUpper()), 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return <code>Interval</code> tangent, {@link Interval#ENTIRE} if the
+     * interval may hold a pole
+     * @since 8.0
+     */
+    @Override
+    public Interval tan(Interval a) {
+        if (!isResolved(a) || hasCriticalPoint(a, Math.PI / 2, Math.PI)) {
+            return Interval.ENTIRE;
+        }
+        return outward(Math.tan(a.getLower()), Math.tan(a.getUpper()), ULPS);
+    }
+
+    @Override
+    public Interval asin(Interval a) {
+        checkDomain("asin", a, a.getLower() >= -1 && a.getUpper() <= 1);
+        return outward(Math.asin(a.getLower()), Math.asin(a.getUpper()), ULPS);
+    }
+
+    @Override
+    public Interval acos(Interval a) {
+        checkDomain("acos", a, a.getLower() >= -1 && a.getUpper() <= 1);
+        /* decreasing */
+        return outward(Math.acos(a.getUpper()), Math.acos(a.getLower()), ULPS);
+    }
+
+    @Override
+    public Interval atan(Interval a) {
+        return outward(Math.atan(a.getLower()), Math.atan(a.getUpper()), ULPS);
+    }
+
+    @Override
+    public Interval sinh(Interval a) {
+        return outward(Math.sinh(a.getLower()), Math.sinh(a.getUpper()), HYPERBOLIC_ULPS);
+    }
+
+    @Override
+    public Interval cosh(Interval a) {
+        Interval magnitude = abs(a);
+        Interval result = outward(Math.cosh(magnitude.getLower()), Math.cosh(magnitude.getUpper()), HYPERBOLIC_ULPS);
+        return Interval.of(Math.max(1, result.getLower()), result.getUpper());
+    }
+
+    @Override
+    public Interval tanh(Interval a) {
+        Interval result = outward(Math.tanh(a.getLower()), Math.tanh(a.getUpper()), HYPERBOLIC_ULPS);
+        return Interval.of(Math.max(-1, result.getLower()), Math.min(1, result.getUpper()));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return <code>Interval</code> zero for the non-negative numbers, pi for
+     * the negative ones
+     * @since 8.0
+     */
+    @Override
+    public Interval arg(Interval a) {
+        if (a.getLower() >= 0) {
+            return valueOf(0);
+        }
+        if (a.getUpper() < 0) {
+            return PI;
+        }
+        return Interval.of(0, PI.getUpper());
+    }
+
+    private Interval integerPow(Interval base, double n) {
+        if (n == 0) {
+            return valueOf(1);
+        }
+        if (n < 0) {
+            return divide(valueOf(1), integerPow(base, -n));
+        }
+        if (n % 2 != 0) {
+            /* odd powers are increasing */
+            return outward(Math.pow(base.getLower(), n), Math.pow(base.getUpper(), n), ULPS);
+        }
+        Interval magnitude = abs(base);
+        Interval result = outward(Math.pow(magnitude.getLower(), n), Math.pow(magnitude.getUpper(), n), ULPS);
+        return Interval.of(Math.max(0, result.getLower()), result.getUpper());
+    }
+
+    /* the maxima are at offset + 2 pi k, the minima at offset + pi + 2 pi k */
+    private static Interval periodic(Interval a, double first, double last, double offset) {
+        if (!isResolved(a)) {
+            return UNIT;
+        }
+        Interval result = outward(Math.min(first, last), Math.max(first, last), ULPS);
+        double lower = hasCriticalPoint(a, offset + Math.PI, TWO_PI) ? -1 : Math.max(-1, result.getLower());
+        double upper = hasCriticalPoint(a, offset, TWO_PI) ? 1 : Math.min(1, result.getUpper());
+        return Interval.of(lower, upper);
+    }
+
+    private static boolean isResolved(Interval a) {
+        return a.getWidth() < TWO_PI
+                && Math.abs(a.getLower()) < MAX_PERIODIC_ARGUMENT && Math.abs(a.getUpper()) < MAX_PERIODIC_ARGUMENT;
+    }
+
+    /* whether some point offset + period * k may be within the interval, errs on the side of yes */
+    private static boolean hasCriticalPoint(Interval a, double offset, double period) {
+        double first = Math.ceil((a.getLower() - offset) / period - PERIOD_SLACK);
+        double last = Math.floor((a.getUpper() - offset) / period + PERIOD_SLACK);
+        return first <= last;
+    }
+
+    private static void checkDomain(String function, Interval a, boolean real) {
+        if (!real) {
+            throw new ArithmeticException(function + " of " + a + " is not real");
+        }
+    }
+
+    /* the rounding error of the sum is exact (Knuth's two-sum), so the exact sums stay points */
+    private static double sumDown(double a, double b) {
+        double sum = a + b;
+        if (Double.isNaN(sum)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (sum == Double.POSITIVE_INFINITY && !Double.isInfinite(a) && !Double.isInfinite(b)) {
+            /* overflow, the exact sum is finite */
+            return Double.MAX_VALUE;
+        }
+        return sumError(a, b, sum) < 0 ? Math.nextDown(sum) : sum;
+    }
+
+    private static double sumUp(double a, double b) {
+        double sum = a + b;
+        if (Double.isNaN(sum)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (sum == Double.NEGATIVE_INFINITY && !Double.isInfinite(a) && !Double.isInfinite(b)) {
+            return -Double.MAX_VALUE;
+        }
+        return sumError(a, b, sum) > 0 ? Math.nextUp(sum) : sum;
+    }
+
+    /* NaN for the infinite sums, which need no rounding */
+    private static double sumError(double a, double b, double sum) {
+        double b1 = sum - a;
+        return (a - (sum - b1)) + (b - b1);
+    }
+
+    /* zero times infinity is zero for the bounds: the infinite bound stands for the finite numbers */
+    private static double product(double a, double b) {
+        return a == 0 || b == 0 ? 0 : a * b;
+    }
+
+    private static double quotient(double a, double b) {
+        return a == 0 ? 0 : a / b;
+    }
+
+    private static Interval outward(double lower, double upper, int ulps) {
+        if (Double.isNaN(lower) || Double.isNaN(upper)) {
+            /* infinity minus infinity and the like, nothing is known about the value */
+            return Interval.ENTIRE;
+        }
+        for (int i = 0; i < ulps; i++) {
+            lower = Math.nextDown(lower);
+            upper = Math.nextUp(upper);
+        }
+        return Interval.of(lower, upper);
+    }
+
+}
@@ -0,0 +1,754 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Translates real expressions to JVM classes, so HotSpot can inline and
+ * optimize them like hand-written code. The class file is written directly,
+ * no bytecode library is needed. Every generated class is defined by its own
+ * class loader and is unloaded together with the returned object.
+ * <p>
+ * The jumps of the conditional operations become JVM branches, so the
+ * untaken branches cost nothing. Such methods carry the stack map frames
+ * required by the verifier at every branch target; their temporaries are
+ * initialized on entry, so all the frames have the same local variables.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class JitCompiler {
+
+    /* class file format constants */
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int VERSION = 52;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACC_PROTECTED = 0x0004;
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_POOL_SIZE = 65535;
+    private static final int MAX_LOCALS = 65535;
+
+    /* JVM instructions */
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int ASTORE = 0x3a;
+    private static final int DASTORE = 0x52;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int NEWARRAY = 0xbc;
+    private static final int CHECKCAST = 0xc0;
+    private static final int T_DOUBLE = 7;
+    private static final int DLOAD_1 = 0x27;
+    private static final int DSTORE = 0x39;
+    private static final int DUP2 = 0x5c;
+    private static final int WIDE = 0xc4;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DALOAD = 0x31;
+    private static final int POP2 = 0x58;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DNEG = 0x77;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int DCMPL = 0x97;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+
+    /* stack map frames */
+    private static final int FULL_FRAME = 255;
+    private static final int ITEM_DOUBLE = 3;
+    private static final int ITEM_OBJECT = 7;
+
+    private static final String SUPER_CLASS = "com/autsia/bracer/JitExpression";
+    private static final String MATH_CLASS = "java/lang/Math";
+    private static final String UNARY_CLASS = "java/util/function/DoubleUnaryOperator";
+    private static final String BINARY_CLASS = "java/util/function/DoubleBinaryOperator";
+    private static final String REAL_FUNCTION_CLASS = "com/autsia/bracer/RealFunction";
+    /* local variables used to reorder the arguments of the function calls */
+    private static final int SCRATCH_LOCALS = 5;
+
+    /* counter for the unique names of the generated classes */
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private JitCompiler() {
+    }
+
+    /**
+     * Translates the expression to a JVM class. Complex expressions and the
+     * ones too large for a single method or a branch offset are returned as
+     * wrappers over the interpreter.
+     *
+     * @param expression Compiled expression
+     * @return <code>JitExpression</code> instance
+     * @since 8.0
+     */
+    public static JitExpression compile(CompiledExpression expression) {
+        if (!expression.isReal()) {
+            return new JitExpression.Interpreted(expression);
+        }
+        String name = "com/autsia/bracer/jit/Expression" + COUNTER.incrementAndGet();
+        byte[] classFile = generate(name, expression);
+        if (classFile == null) {
+            return new JitExpression.Interpreted(expression);
+        }
+        try {
+            Class<?> generated = new GeneratedClassLoader(JitCompiler.class.getClassLoader())
+                    .define(name.replace('/', '.'), classFile);
+            return (JitExpression) generated.getConstructor(CompiledExpression.class).newInstance(expression);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load generated class " + name, e);
+        }
+    }
+
+    private static byte[] generate(String name, CompiledExpression expression) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef(SUPER_CLASS);
+        int codeAttribute = pool.utf8("Code");
+        int constructorName = pool.utf8("<init>");
+        int constructorDescriptor = pool.utf8("(Lcom/autsia/bracer/CompiledExpression;)V");
+        int computeName = pool.utf8("compute");
+        int arrayDescriptor = pool.utf8("([D)D");
+        int scalarDescriptor = pool.utf8("(D)D");
+
+        Code constructor = new Code();
+        constructor.op(ALOAD_0);
+        constructor.op(ALOAD_1);
+        constructor.op(INVOKESPECIAL);
+        constructor.u2(pool.methodRef(SUPER_CLASS, "<init>", "(Lcom/autsia/bracer/CompiledExpression;)V"));
+        /* all the pool entries have to be registered before the pool is written */
+        constructor.op(RETURN);
+
+        /* temporaries and scratch variables are kept in the local variables after the arguments */
+        int arrayLocals = 2 + 2 * expression.temporaries() + SCRATCH_LOCALS;
+        int scalarLocals = 3 + 2 * expression.temporaries() + SCRATCH_LOCALS;
+        if (scalarLocals > MAX_LOCALS) {
+            return null;
+        }
+        Code arrayCompute = body(expression, pool, thisClass, true, 2);
+        Code scalarCompute = body(expression, pool, thisClass, false, 3);
+        if (arrayCompute == null || scalarCompute == null || arrayCompute.size() > MAX_CODE_LENGTH || scalarCompute.size() > MAX_CODE_LENGTH
+                || pool.size() > MAX_POOL_SIZE) {
+            return null;
+        }
+        int maxStack = 2 * expression.maxStackDepth() + 2;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            pool.write(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            /* interfaces and fields */
+            out.writeShort(0);
+            out.writeShort(0);
+            /* methods */
+            out.writeShort(3);
+            writeMethod(out, ACC_PUBLIC, constructorName, constructorDescriptor, codeAttribute, 2, 2, constructor);
+            writeMethod(out, ACC_PROTECTED, computeName, arrayDescriptor, codeAttribute, maxStack, arrayLocals,
+                    arrayCompute);
+            writeMethod(out, ACC_PROTECTED, computeName, scalarDescriptor, codeAttribute, maxStack, scalarLocals,
+                    scalarCompute);
+            /* class attributes */
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Translates the program to the body of the compute method
+     *
+     * @param expression  Compiled expression
+     * @param pool        Constant pool of the class
+     * @param thisClass   Pool index of the generated class
+     * @param array       <code>true</code> if the variables are read from the
+     *                    array argument, <code>false</code> if the only
+     *                    <code>double</code> argument is used
+     * @param temporaries Index of the local variable of the first temporary
+     * @return <code>Code</code> of the method or <code>null</code> if some
+     * branch is too long
+     */
+    private static Code body(CompiledExpression expression, ConstantPool pool, int thisClass, boolean array,
+                             int temporaries) {
+        Code code = new Code();
+        double[] constants = expression.constantsRe();
+        int[] program = expression.code();
+        /* bytecode offsets of the instructions and the stack depths at the jump targets */
+        int[] offsets = new int[program.length + 1];
+        int[] targetDepths = new int[program.length + 1];
+        Arrays.fill(targetDepths, -1);
+        /* branch instructions waiting for the offsets of their targets */
+        int[] branches = new int[program.length];
+        int[] branchTargets = new int[program.length];
+        int branchCount = 0;
+        /* offsets of the frames and the stack depths there */
+        TreeMap<Integer, Integer> frames = new TreeMap<>();
+        if (expression.isBranching()) {
+            for (int k = 0; k < expression.temporaries(); k++) {
+                code.op(DCONST_0);
+                local(code, DSTORE, temporaries + 2 * k);
+            }
+        }
+        int depth = 0;
+        for (int pc = 0; pc < program.length; pc++) {
+            int instruction = program[pc];
+            int operand = Opcodes.operand(instruction);
+            int opcode = Opcodes.opcode(instruction);
+            offsets[pc] = code.size();
+            if (targetDepths[pc] >= 0) {
+                depth = targetDepths[pc];
+                frames.put(code.size(), depth);
+            }
+            if (Opcodes.isJump(opcode)) {
+                depth--;
+                targetDepths[operand] = opcode == Opcodes.JUMP_IF_FALSE ? depth : depth + 1;
+                if (opcode != Opcodes.JUMP) {
+                    code.op(DCONST_1);
+                    code.op(DCMPL);
+                }
+                if (opcode == Opcodes.JUMP_IF_FALSE_OR_POP || opcode == Opcodes.JUMP_IF_TRUE_OR_POP) {
+                    /* the value is popped, unless the jump is taken with the boolean result */
+                    code.op(opcode == Opcodes.JUMP_IF_FALSE_OR_POP ? IFEQ : IFNE);
+                    code.u2(7);
+                    code.op(opcode == Opcodes.JUMP_IF_FALSE_OR_POP ? DCONST_0 : DCONST_1);
+                    frames.put(code.size() + 3, depth);
+                }
+                branches[branchCount] = code.size();
+                branchTargets[branchCount++] = operand;
+                code.op(opcode == Opcodes.JUMP_IF_FALSE ? IFNE : GOTO);
+                code.u2(0);
+                continue;
+            }
+            depth += 1 - (opcode == Opcodes.CALL ? expression.functions()[operand].arity() : Opcodes.arity(opcode));
+            switch (opcode) {
+                case Opcodes.CONST:
+                    pushConstant(code, pool, constants[operand]);
+                    break;
+                case Opcodes.VAR:
+                    if (array) {
+                        code.op(ALOAD_1);
+                        pushInt(code, pool, operand);
+                        code.op(DALOAD);
+                    } else {
+                        code.op(DLOAD_1);
+                    }
+                    break;
+                case Opcodes.TEE:
+                    code.op(DUP2);
+                    local(code, DSTORE, temporaries + 2 * operand);
+                    break;
+                case Opcodes.LOAD:
+                    local(code, DLOAD, temporaries + 2 * operand);
+                    break;
+                case Opcodes.CALL:
+                    call(code, pool, expression.functions()[operand], operand,
+                            temporaries + 2 * expression.temporaries());
+                    break;
+                case Opcodes.ADD:
+                    code.op(DADD);
+                    break;
+                case Opcodes.SUB:
+                    code.op(DSUB);
+                    break;
+                case Opcodes.MUL:
+                    code.op(DMUL);
+                    break;
+                case Opcodes.DIV:
+                    invoke(code, pool, SUPER_CLASS, "div", "(DD)D");
+                    break;
+                case Opcodes.NEG:
+                    code.op(DNEG);
+                    break;
+                case Opcodes.CONJ:
+                case Opcodes.REAL:
+                    break;
+                case Opcodes.IMAG:
+                    code.op(POP2);
+                    code.op(DCONST_0);
+                    break;
+                case Opcodes.POW:
+                    invoke(code, pool, SUPER_CLASS, "pow", "(DD)D");
+                    break;
+                case Opcodes.OR:
+                    invoke(code, pool, SUPER_CLASS, "or", "(DD)D");
+                    break;
+                case Opcodes.AND:
+                    invoke(code, pool, SUPER_CLASS, "and", "(DD)D");
+                    break;
+                case Opcodes.NOT:
+                    invoke(code, pool, SUPER_CLASS, "not", "(D)D");
+                    break;
+                case Opcodes.TRUTH:
+                    invoke(code, pool, SUPER_CLASS, "truth", "(D)D");
+                    break;
+                case Opcodes.LT:
+                    invoke(code, pool, SUPER_CLASS, "lt", "(DD)D");
+                    break;
+                case Opcodes.LE:
+                    invoke(code, pool, SUPER_CLASS, "le", "(DD)D");
+                    break;
+                case Opcodes.GT:
+                    invoke(code, pool, SUPER_CLASS, "gt", "(DD)D");
+                    break;
+                case Opcodes.GE:
+                    invoke(code, pool, SUPER_CLASS, "ge", "(DD)D");
+                    break;
+                case Opcodes.EQ:
+                    invoke(code, pool, SUPER_CLASS, "eq", "(DD)D");
+                    break;
+                case Opcodes.NE:
+                    invoke(code, pool, SUPER_CLASS, "ne", "(DD)D");
+                    break;
+                case Opcodes.ACOS:
+                    invoke(code, pool, SUPER_CLASS, "acos", "(D)D");
+                    break;
+                case Opcodes.ASIN:
+                    invoke(code, pool, SUPER_CLASS, "asin", "(D)D");
+                    break;
+                case Opcodes.ARG:
+                    invoke(code, pool, SUPER_CLASS, "arg", "(D)D");
+                    break;
+                case Opcodes.LOG:
+                    invoke(code, pool, SUPER_CLASS, "log", "(D)D");
+                    break;
+                case Opcodes.SQRT:
+                    invoke(code, pool, SUPER_CLASS, "sqrt", "(D)D");
+                    break;
+                case Opcodes.ABS:
+                    invoke(code, pool, MATH_CLASS, "abs", "(D)D");
+                    break;
+                case Opcodes.ATAN:
+                    invoke(code, pool, MATH_CLASS, "atan", "(D)D");
+                    break;
+                case Opcodes.COS:
+                    invoke(code, pool, MATH_CLASS, "cos", "(D)D");
+                    break;
+                case Opcodes.COSH:
+                    invoke(code, pool, MATH_CLASS, "cosh", "(D)D");
+                    break;
+                case Opcodes.EXP:
+                    invoke(code, pool, MATH_CLASS, "exp", "(D)D");
+                    break;
+                case Opcodes.SIN:
+                    invoke(code, pool, MATH_CLASS, "sin", "(D)D");
+                    break;
+                case Opcodes.SINH:
+                    invoke(code, pool, MATH_CLASS, "sinh", "(D)D");
+                    break;
+                case Opcodes.TAN:
+                    invoke(code, pool, MATH_CLASS, "tan", "(D)D");
+                    break;
+                case Opcodes.TANH:
+                    invoke(code, pool, MATH_CLASS, "tanh", "(D)D");
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + Opcodes.opcode(instruction));
+            }
+        }
+        offsets[program.length] = code.size();
+        if (targetDepths[program.length] >= 0) {
+            frames.put(code.size(), targetDepths[program.length]);
+        }
+        code.op(DRETURN);
+        for (int i = 0; i < branchCount; i++) {
+            int offset = offsets[branchTargets[i]] - branches[i];
+            if (offset > Short.MAX_VALUE) {
+                return null;
+            }
+            code.patch(branches[i] + 1, offset);
+        }
+        if (!frames.isEmpty()) {
+            code.frames(stackMapTable(frames, pool, thisClass, array, expression.temporaries()), frames.size(),
+                    pool.utf8("StackMapTable"));
+        }
+        return code;
+    }
+
+    /**
+     * Writes the entries of the stack map table: full frames with the
+     * arguments and the temporaries as the local variables and the operand
+     * stack of doubles
+     */
+    private static byte[] stackMapTable(TreeMap<Integer, Integer> frames, ConstantPool pool, int thisClass,
+                                        boolean array, int temporaries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int previous = -1;
+            for (Map.Entry<Integer, Integer> frame : frames.entrySet()) {
+                out.writeByte(FULL_FRAME);
+                out.writeShort(frame.getKey() - previous - 1);
+                previous = frame.getKey();
+                out.writeShort(2 + temporaries);
+                out.writeByte(ITEM_OBJECT);
+                out.writeShort(thisClass);
+                if (array) {
+                    out.writeByte(ITEM_OBJECT);
+                    out.writeShort(pool.classRef("[D"));
+                } else {
+                    out.writeByte(ITEM_DOUBLE);
+                }
+                for (int k = 0; k < temporaries; k++) {
+                    out.writeByte(ITEM_DOUBLE);
+                }
+                out.writeShort(frame.getValue());
+                for (int k = 0; k < frame.getValue(); k++) {
+                    out.writeByte(ITEM_DOUBLE);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void pushConstant(Code code, ConstantPool pool, double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            code.op(DCONST_0);
+        } else if (value == 1.0) {
+            code.op(DCONST_1);
+        } else {
+            code.op(LDC2_W);
+            code.u2(pool.doubleConstant(value));
+        }
+    }
+
+    /**
+     * Calls the user-defined function through the interface of its
+     * implementation, so the call site is monomorphic and can be inlined.
+     * The arguments are moved to the scratch variables to put the receiver
+     * below them.
+     */
+    private static void call(Code code, ConstantPool pool, UserFunction function, int index, int scratch) {
+        switch (function.kind()) {
+            case UserFunction.UNARY:
+                local(code, DSTORE, scratch);
+                loadFunction(code, pool, index, UNARY_CLASS);
+                local(code, DLOAD, scratch);
+                invokeInterface(code, pool, UNARY_CLASS, "applyAsDouble", "(D)D", 3);
+                break;
+            case UserFunction.BINARY:
+                local(code, DSTORE, scratch + 2);
+                local(code, DSTORE, scratch);
+                loadFunction(code, pool, index, BINARY_CLASS);
+                local(code, DLOAD, scratch);
+                local(code, DLOAD, scratch + 2);
+                invokeInterface(code, pool, BINARY_CLASS, "applyAsDouble", "(DD)D", 5);
+                break;
+            default:
+                pushInt(code, pool, function.arity());
+                code.op(NEWARRAY);
+                code.op(T_DOUBLE);
+                local(code, ASTORE, scratch + 4);
+                for (int i = function.arity() - 1; i >= 0; i--) {
+                    local(code, DSTORE, scratch);
+                    local(code, ALOAD, scratch + 4);
+                    pushInt(code, pool, i);
+                    local(code, DLOAD, scratch);
+                    code.op(DASTORE);
+                }
+                loadFunction(code, pool, index, REAL_FUNCTION_CLASS);
+                local(code, ALOAD, scratch + 4);
+                invokeInterface(code, pool, REAL_FUNCTION_CLASS, "apply", "([D)D", 2);
+        }
+    }
+
+    private static void loadFunction(Code code, ConstantPool pool, int index, String type) {
+        code.op(ALOAD_0);
+        pushInt(code, pool, index);
+        code.op(INVOKEVIRTUAL);
+        code.u2(pool.methodRef(SUPER_CLASS, "function", "(I)Ljava/lang/Object;"));
+        code.op(CHECKCAST);
+        code.u2(pool.classRef(type));
+    }
+
+    private static void invokeInterface(Code code, ConstantPool pool, String owner, String name, String descriptor,
+                                        int count) {
+        code.op(INVOKEINTERFACE);
+        code.u2(pool.interfaceMethodRef(owner, name, descriptor));
+        code.op(count);
+        code.op(0);
+    }
+
+    private static void local(Code code, int opcode, int index) {
+        if (index <= 0xFF) {
+            code.op(opcode);
+            code.op(index);
+        } else {
+            code.op(WIDE);
+            code.op(opcode);
+            code.u2(index);
+        }
+    }
+
+    private static void pushInt(Code code, ConstantPool pool, int value) {
+        if (value <= Byte.MAX_VALUE) {
+            code.op(BIPUSH);
+            code.op(value);
+        } else if (value <= Short.MAX_VALUE) {
+            code.op(SIPUSH);
+            code.u2(value);
+        } else {
+            code.op(LDC_W);
+            code.u2(pool.intConstant(value));
+        }
+    }
+
+    private static void invoke(Code code, ConstantPool pool, String owner, String name, String descriptor) {
+        code.op(INVOKESTATIC);
+        code.u2(pool.methodRef(owner, name, descriptor));
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeAttribute,
+                                    int maxStack, int maxLocals, Code code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        /* max_stack, max_locals, code_length, code, exception_table_length, attributes_count, attributes */
+        int frames = code.frames == null ? 0 : 2 + 4 + 2 + code.frames.length;
+        out.writeInt(2 + 2 + 4 + code.size() + 2 + 2 + frames);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(0);
+        if (code.frames == null) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(1);
+        out.writeShort(code.framesName);
+        out.writeInt(2 + code.frames.length);
+        out.writeShort(code.frameCount);
+        out.write(code.frames);
+    }
+
+    /**
+     * Growable buffer of method bytecode
+     */
+    private static final class Code {
+
+        private byte[] bytes = new byte[64];
+        private int size;
+        /* entries of the stack map table, null if the method has no branches */
+        private byte[] frames;
+        private int frameCount;
+        private int framesName;
+
+        void op(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            op(value >>> 8);
+            op(value);
+        }
+
+        /* overwrites the two bytes at the offset, e.g. the offset of the branch */
+        void patch(int offset, int value) {
+            bytes[offset] = (byte) (value >>> 8);
+            bytes[offset + 1] = (byte) value;
+        }
+
+        void frames(byte[] frames, int frameCount, int framesName) {
+            this.frames = frames;
+            this.frameCount = frameCount;
+            this.framesName = framesName;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+
+    /**
+     * Constant pool with deduplication of the entries
+     */
+    private static final class ConstantPool {
+
+        private static final int UTF8 = 1;
+        private static final int INTEGER = 3;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int METHOD_REF = 10;
+        private static final int INTERFACE_METHOD_REF = 11;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        /* index of the next entry, entries are numbered from 1 */
+        private int next = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(UTF8);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return register("U" + value, 1);
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            write(CLASS, nameIndex);
+            return register("C" + name, 1);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(METHOD_REF, "M", owner, name, descriptor);
+        }
+
+        int interfaceMethodRef(String owner, String name, String descriptor) {
+            return memberRef(INTERFACE_METHOD_REF, "J", owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String prefix, String owner, String name, String descriptor) {
+            String key = prefix + owner + "." + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            write(NAME_AND_TYPE, nameIndex, descriptorIndex);
+            int nameAndType = register("N" + key, 1);
+            write(tag, ownerIndex, nameAndType);
+            return register(key, 1);
+        }
+
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = entries.get("D" + bits);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(DOUBLE);
+                out.writeLong(bits);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            /* double constants take two entries */
+            return register("D" + bits, 2);
+        }
+
+        int intConstant(int value) {
+            Integer index = entries.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(INTEGER);
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return register("I" + value, 1);
+        }
+
+        int size() {
+            return next;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(next);
+            bytes.writeTo(target);
+        }
+
+        private void write(int tag, int... indices) {
+            try {
+                out.writeByte(tag);
+                for (int index : indices) {
+                    out.writeShort(index);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int register(String key, int slots) {
+            int index = next;
+            next += slots;
+            entries.put(key, index);
+            return index;
+        }
+    }
+
+    /**
+     * Class loader defining a single generated class
+     */
+    private static final class GeneratedClassLoader extends ClassLoader {
+
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+}
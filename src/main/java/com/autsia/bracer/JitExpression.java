@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Expression translated to JVM bytecode by {@link JitCompiler}. The generated
+ * subclass computes the real part of the result exactly as the
+ * <code>double</code>-only engine of {@link CompiledExpression} does; when
+ * some value leaves the real domain the evaluation is handed over to the
+ * interpreter, so results are always identical to
+ * {@link CompiledExpression#evaluateReal(double...)}.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public abstract class JitExpression implements DoubleUnaryOperator {
+
+    /* signal of the value out of the real domain, thrown without stack trace */
+    private static final OutOfDomainException OUT_OF_DOMAIN = new OutOfDomainException();
+
+    /* source program, used as a fallback */
+    private final CompiledExpression expression;
+    /* implementations of the user-defined functions called by the program */
+    private final Object[] functions;
+
+    /**
+     * Class ctor to be called by the generated subclasses
+     *
+     * @param expression Source program
+     * @since 8.0
+     */
+    protected JitExpression(CompiledExpression expression) {
+        this.expression = expression;
+        UserFunction[] userFunctions = expression.functions();
+        this.functions = new Object[userFunctions.length];
+        for (int i = 0; i < userFunctions.length; i++) {
+            functions[i] = userFunctions[i].implementation();
+        }
+    }
+
+    /**
+     * Get the program this class was generated from
+     *
+     * @return <code>CompiledExpression</code> program
+     * @since 8.0
+     */
+    public CompiledExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Evaluates the expression with the variables included
+     *
+     * @param variableValues Values of the variables indexed by their slots
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if some variable value is missing
+     * @since 8.0
+     */
+    public final double evaluate(double... variableValues) {
+        expression.checkVariables(variableValues);
+        try {
+            return compute(variableValues);
+        } catch (OutOfDomainException e) {
+            return expression.evaluateReal(variableValues);
+        }
+    }
+
+    /**
+     * Evaluates the expression with the only variable included
+     *
+     * @param variableValue User-specified <code>Double</code> value
+     * @return <code>double</code> real part of the result
+     * @throws IllegalArgumentException if the expression references more
+     *                                  than one variable
+     * @since 8.0
+     */
+    public final double evaluate(double variableValue) {
+        if (expression.variableCount() > 1) {
+            expression.checkVariables(new double[]{variableValue});
+        }
+        try {
+            return compute(variableValue);
+        } catch (OutOfDomainException e) {
+            return expression.evaluateReal(variableValue);
+        }
+    }
+
+    /**
+     * Evaluates the expression with the only variable included
+     *
+     * @param operand User-specified <code>Double</code> value
+     * @return <code>double</code> real part of the result
+     * @since 8.0
+     */
+    @Override
+    public final double applyAsDouble(double operand) {
+        return evaluate(operand);
+    }
+
+    /**
+     * Computes the expression, implemented by the generated code
+     *
+     * @param variableValues Values of the variables indexed by their slots
+     * @return <code>double</code> result
+     * @since 8.0
+     */
+    protected abstract double compute(double[] variableValues);
+
+    /**
+     * Computes the expression with every variable bound to the same value,
+     * implemented by the generated code
+     *
+     * @param variableValue Value of the variable
+     * @return <code>double</code> result
+     * @since 8.0
+     */
+    protected abstract double compute(double variableValue);
+
+    /* helpers called by the generated code, they mirror the real engine */
+
+    protected final Object function(int index) {
+        return functions[index];
+    }
+
+    protected static double div(double b, double a) {
+        if (a == 0) {
+            throw OUT_OF_DOMAIN;
+        }
+        return b / a;
+    }
+
+    protected static double pow(double b, double a) {
+        if (b == 0 || b < 0 && a != Math.rint(a)) {
+            throw OUT_OF_DOMAIN;
+        }
+        return Math.pow(b, a);
+    }
+
+    protected static double or(double b, double a) {
+        return a == 1.0 || b == 1.0 ? 1 : 0;
+    }
+
+    protected static double and(double b, double a) {
+        return a == 1.0 && b == 1.0 ? 1 : 0;
+    }
+
+    protected static double not(double a) {
+        return a == 1.0 ? 0 : 1;
+    }
+
+    protected static double truth(double a) {
+        return a == 1.0 ? 1 : 0;
+    }
+
+    protected static double lt(double b, double a) {
+        return b < a ? 1 : 0;
+    }
+
+    protected static double le(double b, double a) {
+        return b <= a ? 1 : 0;
+    }
+
+    protected static double gt(double b, double a) {
+        return b > a ? 1 : 0;
+    }
+
+    protected static double ge(double b, double a) {
+        return b >= a ? 1 : 0;
+    }
+
+    protected static double eq(double b, double a) {
+        return b == a ? 1 : 0;
+    }
+
+    protected static double ne(double b, double a) {
+        return b != a ? 1 : 0;
+    }
+
+    protected static double acos(double a) {
+        if (a < -1 || a > 1) {
+            throw OUT_OF_DOMAIN;
+        }
+        return Math.acos(a);
+    }
+
+    protected static double asin(double a) {
+        if (a < -1 || a > 1) {
+            throw OUT_OF_DOMAIN;
+        }
+        return Math.asin(a);
+    }
+
+    protected static double arg(double a) {
+        return Math.atan2(0.0, a);
+    }
+
+    protected static double log(double a) {
+        if (a <= 0) {
+            throw OUT_OF_DOMAIN;
+        }
+        return Math.log(a);
+    }
+
+    protected static double sqrt(double a) {
+        if (a < 0) {
+            throw OUT_OF_DOMAIN;
+        }
+        return Math.sqrt(a);
+    }
+
+    /**
+     * Fallback implementation for the expressions that can not be translated
+     * to bytecode, e.g. complex ones
+     */
+    static final class Interpreted extends JitExpression {
+
+        Interpreted(CompiledExpression expression) {
+            super(expression);
+        }
+
+        @Override
+        protected double compute(double[] variableValues) {
+            return getExpression().evaluateReal(variableValues);
+        }
+
+        @Override
+        protected double compute(double variableValue) {
+            return getExpression().evaluateReal(variableValue);
+        }
+    }
+
+    private static final class OutOfDomainException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        OutOfDomainException() {
+            super("Value is out of the real domain", null, false, false);
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.text.ParseException;
+
+/**
+ * Single-pass lexer of math expressions. Splits the input into typed tokens
+ * (numbers, identifiers, operators, brackets) and remembers their offsets in
+ * the source text. The lexer reads the characters in place, only the token
+ * text is copied when it is requested.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class Lexer {
+
+    /* token types */
+    static final int END = 0;
+    static final int NUMBER = 1;
+    static final int IMAGINARY = 2;
+    static final int IDENTIFIER = 3;
+    static final int OPERATOR = 4;
+    static final int OPEN_BRACKET = 5;
+    static final int CLOSE_BRACKET = 6;
+    static final int SEPARATOR = 7;
+    static final int DEGREE = 8;
+    static final int FUNCTION = 9;
+
+    /* powers of ten that are exactly representable as double */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    /* longest mantissa that is exactly representable as double */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    /* source text */
+    private final String input;
+    /* offset of the next character to read */
+    private int position;
+    /* current token */
+    private int type;
+    private int start;
+    private int end;
+    private String text;
+    private double value;
+    private int opcode;
+
+    /**
+     * Class ctor for setting up the source text
+     *
+     * @param input <code>String</code> input expression (math formula)
+     */
+    Lexer(String input) {
+        this.input = input;
+    }
+
+    /**
+     * Reads the next token, whitespaces between the tokens are skipped
+     *
+     * @return <code>int</code> type of the token, <code>END</code> when the
+     * input is over
+     * @throws ParseException if the characters do not form a valid token
+     */
+    int next() throws ParseException {
+        int length = input.length();
+        while (position < length && Character.isWhitespace(input.charAt(position))) {
+            position++;
+        }
+        start = position;
+        text = null;
+        opcode = -1;
+        if (position == length) {
+            end = position;
+            return type = END;
+        }
+        char c = input.charAt(position);
+        switch (c) {
+            case '(':
+                return single(OPEN_BRACKET, "(", -1);
+            case ')':
+                return single(CLOSE_BRACKET, ")", -1);
+            case ',':
+                return single(SEPARATOR, ",", -1);
+            case '\u00B0':
+                return single(DEGREE, "\u00B0", -1);
+            case '+':
+                return single(OPERATOR, "+", Opcodes.ADD);
+            case '-':
+                return single(OPERATOR, "-", Opcodes.SUB);
+            case '*':
+                return single(OPERATOR, "*", Opcodes.MUL);
+            case '/':
+                return single(OPERATOR, "/", Opcodes.DIV);
+            case '|':
+                return single(OPERATOR, "|", Opcodes.OR);
+            case '&':
+                return single(OPERATOR, "&", Opcodes.AND);
+            case '!':
+                return followedBy('=') ? pair("!=", Opcodes.NE) : single(OPERATOR, "!", Opcodes.NOT);
+            case '<':
+                return followedBy('=') ? pair("<=", Opcodes.LE) : single(OPERATOR, "<", Opcodes.LT);
+            case '>':
+                return followedBy('=') ? pair(">=", Opcodes.GE) : single(OPERATOR, ">", Opcodes.GT);
+            case '=':
+                if (followedBy('=')) {
+                    return pair("==", Opcodes.EQ);
+                }
+                throw new ParseException("Unrecognized token: " + c, start);
+            default:
+                if (isDigit(c) || c == '.') {
+                    return number();
+                }
+                if (isIdentifierStart(c)) {
+                    return identifier();
+                }
+                throw new ParseException("Unrecognized token: " + c, start);
+        }
+    }
+
+    /**
+     * Get the type of the current token
+     *
+     * @return <code>int</code> type
+     */
+    int type() {
+        return type;
+    }
+
+    /**
+     * Get the offset of the first character of the current token
+     *
+     * @return <code>int</code> offset
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * Get the offset after the last character of the current token
+     *
+     * @return <code>int</code> offset
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * Get the text of the current token. Keywords are returned in their
+     * canonical form, e.g. "1" for "true" and "|" for "or".
+     *
+     * @return <code>String</code> text
+     */
+    String text() {
+        if (text == null) {
+            text = input.substring(start, end);
+        }
+        return text;
+    }
+
+    /**
+     * Get the value of the current number token, the imaginary part for
+     * <code>IMAGINARY</code> tokens
+     *
+     * @return <code>double</code> value
+     */
+    double value() {
+        return value;
+    }
+
+    /**
+     * Get the opcode of the current operator or function token
+     *
+     * @return <code>int</code> opcode
+     */
+    int opcode() {
+        return opcode;
+    }
+
+    private int single(int type, String text, int opcode) {
+        this.text = text;
+        this.opcode = opcode;
+        end = ++position;
+        return this.type = type;
+    }
+
+    /* two-character operator */
+    private int pair(String text, int opcode) {
+        position++;
+        return single(OPERATOR, text, opcode);
+    }
+
+    private boolean followedBy(char c) {
+        return position + 1 < input.length() && input.charAt(position + 1) == c;
+    }
+
+    /* digits [ "." digits ] [ ("e" | "E") [ "+" | "-" ] digits ] [ "I" ] */
+    private int number() throws ParseException {
+        int length = input.length();
+        int p = skipDigits(position);
+        boolean digits = p > position;
+        if (p < length && input.charAt(p) == '.') {
+            int q = skipDigits(p + 1);
+            digits |= q > p + 1;
+            p = q;
+        }
+        if (!digits) {
+            throw new ParseException("Unrecognized token: " + input.substring(start, p), start);
+        }
+        int exponent = p;
+        if (p < length && (input.charAt(p) == 'e' || input.charAt(p) == 'E')) {
+            int q = p + 1;
+            if (q < length && (input.charAt(q) == '+' || input.charAt(q) == '-')) {
+                q++;
+            }
+            int r = skipDigits(q);
+            if (r > q) {
+                p = r;
+            }
+        }
+        value = p == exponent ? decimal(input, position, p) : Double.NaN;
+        if (Double.isNaN(value)) {
+            value = Double.parseDouble(input.substring(start, p));
+        }
+        type = NUMBER;
+        if (p < length && input.charAt(p) == 'I' && (p + 1 == length || !isIdentifierPart(input.charAt(p + 1)))) {
+            type = IMAGINARY;
+            p++;
+        }
+        if (p < length && isIdentifierPart(input.charAt(p))) {
+            throw new ParseException("Unrecognized token: " + input.substring(start, skipIdentifier(p)), start);
+        }
+        end = position = p;
+        return type;
+    }
+
+    /*
+     * Exact conversion of the short decimal literal: both the mantissa and
+     * the power of ten are exact doubles, so the single division is
+     * correctly rounded, just like Double.parseDouble. Returns NaN when the
+     * literal is too long for that. The literal consists of digits and at
+     * most one point.
+     */
+    static double decimal(CharSequence input, int from, int to) {
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (int i = from; i < to; i++) {
+            char c = input.charAt(i);
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            if (mantissa == 0 && c == '0') {
+                /* leading zeros do not count as significant digits */
+                if (fraction) {
+                    scale++;
+                }
+                continue;
+            }
+            if (++digits > MAX_EXACT_DIGITS) {
+                return Double.NaN;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            if (fraction) {
+                scale++;
+            }
+        }
+        if (scale >= POWERS_OF_TEN.length) {
+            return Double.NaN;
+        }
+        return mantissa / POWERS_OF_TEN[scale];
+    }
+
+    /* function name, keyword or identifier */
+    private int identifier() {
+        end = position = skipIdentifier(position + 1);
+        opcode = Opcodes.function(input, start, end);
+        if (opcode >= 0) {
+            text = Opcodes.functionName(opcode);
+            return type = FUNCTION;
+        }
+        String identifier = text();
+        switch (identifier) {
+            case "true":
+                return keyword(NUMBER, "1", 1);
+            case "false":
+                return keyword(NUMBER, "0", 0);
+            case "NaN":
+                return keyword(NUMBER, identifier, Double.NaN);
+            case "Infinity":
+                return keyword(NUMBER, identifier, Double.POSITIVE_INFINITY);
+            case "I":
+                return keyword(IMAGINARY, identifier, 1);
+            case "or":
+                opcode = Opcodes.OR;
+                return keyword(OPERATOR, "|", 0);
+            case "and":
+                opcode = Opcodes.AND;
+                return keyword(OPERATOR, "&", 0);
+            case "if":
+                /* "if(c, a, b)" is compiled to the jumps around the branches */
+                opcode = Opcodes.JUMP_IF_FALSE;
+                return keyword(FUNCTION, identifier, 0);
+            default:
+                return type = IDENTIFIER;
+        }
+    }
+
+    /**
+     * Check if the identifier is a keyword, e.g. "true", "and" or "if"
+     *
+     * @param identifier Identifier
+     * @return <code>boolean</code> output
+     */
+    static boolean isKeyword(String identifier) {
+        switch (identifier) {
+            case "true":
+            case "false":
+            case "NaN":
+            case "Infinity":
+            case "I":
+            case "or":
+            case "and":
+            case "if":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int keyword(int type, String text, double value) {
+        this.text = text;
+        this.value = value;
+        return this.type = type;
+    }
+
+    private int skipDigits(int p) {
+        while (p < input.length() && isDigit(input.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    private int skipIdentifier(int p) {
+        while (p < input.length() && isIdentifierPart(input.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+}
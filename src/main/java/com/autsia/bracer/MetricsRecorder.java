@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer;
+
+/**
+ * Service provider interface for the metrics of {@link BracerParser}, see
+ * {@link BracerParser#setMetricsRecorder(MetricsRecorder)}. The parser
+ * reports every call of <code>parse</code>, <code>evaluate</code> and
+ * <code>evaluateComplex</code> together with the expression, its fingerprint
+ * and the duration. The fingerprint is the 64-bit hash of the expression
+ * with the whitespace runs collapsed to single spaces, so the same formula
+ * spaced in different ways is reported under one fingerprint.
+ * <p>
+ * The default recorder {@link #NONE} is disabled; the parser then neither
+ * reads the clock nor computes the fingerprints, so disabled metrics cost
+ * nothing. Implementations are called from the threads that use the parsers,
+ * so they have to be thread-safe.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public interface MetricsRecorder {
+
+    /**
+     * Recorder that records nothing
+     */
+    MetricsRecorder NONE = new MetricsRecorder() {
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void record(Operation operation, String expression, long fingerprint, long durationNanos,
+                           boolean failed) {
+        }
+    };
+
+    /**
+     * Recorded operations of the parser
+     */
+    enum Operation {
+        PARSE, EVALUATE, EVALUATE_COMPLEX
+    }
+
+    /**
+     * Check if the recorder has to be called at all
+     *
+     * @return <code>boolean</code> output
+     * @since 8.0
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Records the completed operation
+     *
+     * @param operation     Operation
+     * @param expression    Source text of the expression
+     * @param fingerprint   Fingerprint of the expression
+     * @param durationNanos Duration in nanoseconds
+     * @param failed        Whether the operation has thrown an exception
+     * @since 8.0
+     */
+    void record(Operation operation, String expression, long fingerprint, long durationNanos, boolean failed);
+
+}
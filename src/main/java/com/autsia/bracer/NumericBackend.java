@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+/**
+ * Number system the compiled expression is evaluated in by
+ * {@link BackendEvaluator}, e.g. {@link BigDecimalBackend} or
+ * {@link IntervalBackend}. The arithmetic operators are mandatory, the
+ * functions are optional: the default implementations throw
+ * <code>UnsupportedOperationException</code>, except the ones that are
+ * trivial for real numbers.
+ * <p>
+ * The built-in <code>double</code> and complex engines do not go through
+ * this interface, so they are not affected by it. The implementations must
+ * be thread-safe.
+ *
+ * @param <T> Type of the numbers
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public interface NumericBackend<T> {
+
+    /**
+     * Converts the real constant of the expression or the value of the
+     * boolean operation
+     *
+     * @param value Value as parsed, i.e. the nearest <code>double</code> to
+     *              the literal
+     * @return number
+     * @since 8.0
+     */
+    T valueOf(double value);
+
+    /**
+     * Converts the imaginary constant of the expression
+     *
+     * @param re Real part
+     * @param im Imaginary part, not zero
+     * @return number
+     * @throws UnsupportedOperationException if the numbers are real
+     * @since 8.0
+     */
+    default T valueOf(double re, double im) {
+        throw unsupported("imaginary numbers");
+    }
+
+    /**
+     * Computes the sum
+     *
+     * @param a First operand
+     * @param b Second operand
+     * @return number
+     * @since 8.0
+     */
+    T add(T a, T b);
+
+    /**
+     * Computes the difference
+     *
+     * @param a First operand
+     * @param b Second operand
+     * @return number
+     * @since 8.0
+     */
+    T subtract(T a, T b);
+
+    /**
+     * Computes the product
+     *
+     * @param a First operand
+     * @param b Second operand
+     * @return number
+     * @since 8.0
+     */
+    T multiply(T a, T b);
+
+    /**
+     * Computes the quotient
+     *
+     * @param a First operand
+     * @param b Second operand
+     * @return number
+     * @since 8.0
+     */
+    T divide(T a, T b);
+
+    /**
+     * Computes the negation
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    T negate(T a);
+
+    /**
+     * Compares the numbers, used by the comparisons, the boolean operators
+     * and the conditionals
+     *
+     * @param a First number
+     * @param b Second number
+     * @return <code>int</code> negative, zero or positive as the first number
+     * is less than, equal to or greater than the second one
+     * @throws ArithmeticException if the order of the numbers is not known
+     * @since 8.0
+     */
+    default int compare(T a, T b) {
+        throw unsupported("comparisons");
+    }
+
+    /**
+     * Computes the power, the default implementation is not supported
+     *
+     * @param base     Base
+     * @param exponent Exponent
+     * @return number
+     * @since 8.0
+     */
+    default T pow(T base, T exponent) {
+        throw unsupported("pow");
+    }
+
+    /**
+     * Computes the absolute value, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T abs(T a) {
+        throw unsupported("abs");
+    }
+
+    /**
+     * Computes the square root, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T sqrt(T a) {
+        throw unsupported("sqrt");
+    }
+
+    /**
+     * Computes the exponential, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T exp(T a) {
+        throw unsupported("exp");
+    }
+
+    /**
+     * Computes the natural logarithm, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T log(T a) {
+        throw unsupported("log");
+    }
+
+    /**
+     * Computes the sine, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T sin(T a) {
+        throw unsupported("sin");
+    }
+
+    /**
+     * Computes the cosine, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T cos(T a) {
+        throw unsupported("cos");
+    }
+
+    /**
+     * Computes the tangent, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T tan(T a) {
+        throw unsupported("tan");
+    }
+
+    /**
+     * Computes the arcsine, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T asin(T a) {
+        throw unsupported("asin");
+    }
+
+    /**
+     * Computes the arccosine, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T acos(T a) {
+        throw unsupported("acos");
+    }
+
+    /**
+     * Computes the arctangent, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T atan(T a) {
+        throw unsupported("atan");
+    }
+
+    /**
+     * Computes the hyperbolic sine, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T sinh(T a) {
+        throw unsupported("sinh");
+    }
+
+    /**
+     * Computes the hyperbolic cosine, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T cosh(T a) {
+        throw unsupported("cosh");
+    }
+
+    /**
+     * Computes the hyperbolic tangent, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T tanh(T a) {
+        throw unsupported("tanh");
+    }
+
+    /**
+     * Computes the argument, the default implementation is not supported
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T arg(T a) {
+        throw unsupported("arg");
+    }
+
+    /**
+     * Computes the real part, the number itself for real numbers
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T real(T a) {
+        return a;
+    }
+
+    /**
+     * Computes the conjugate, the number itself for real numbers
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T conj(T a) {
+        return a;
+    }
+
+    /**
+     * Computes the imaginary part, zero for real numbers
+     *
+     * @param a Operand
+     * @return number
+     * @since 8.0
+     */
+    default T imag(T a) {
+        return valueOf(0);
+    }
+
+    /**
+     * Creates the exception thrown for the operation the backend does not
+     * support
+     *
+     * @param operation Name of the operation
+     * @return <code>UnsupportedOperationException</code> exception
+     * @since 8.0
+     */
+    default UnsupportedOperationException unsupported(String operation) {
+        return new UnsupportedOperationException(getClass().getSimpleName() + " does not support " + operation);
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+/**
+ * Instruction set of the compiled expression program. Every instruction is
+ * packed into a single <code>int</code>: the low byte holds the opcode and
+ * the remaining bits hold the operand (constant index, variable slot or
+ * jump target).
+ * <p>
+ * The jumps go forward only, their operand is the index of the target
+ * instruction. They are emitted in structured patterns, so every path
+ * reaching an instruction leaves the same number of operands on the stack:
+ * <ul>
+ * <li>"a &amp; b" is "a JUMP_IF_FALSE_OR_POP(L) b TRUTH L:";</li>
+ * <li>"a | b" is "a JUMP_IF_TRUE_OR_POP(L) b TRUTH L:";</li>
+ * <li>"if(c, a, b)" is "c JUMP_IF_FALSE(E) a JUMP(L) E: b L:".</li>
+ * </ul>
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class Opcodes {
+
+    /* push constant from the constant pool */
+    static final int CONST = 0;
+    /* push variable value */
+    static final int VAR = 1;
+    /* binary operators */
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+    static final int OR = 6;
+    static final int AND = 7;
+    /* unary boolean negation, both "!" and "not" */
+    static final int NOT = 8;
+    /* functions */
+    static final int ABS = 9;
+    static final int ACOS = 10;
+    static final int ARG = 11;
+    static final int ASIN = 12;
+    static final int ATAN = 13;
+    static final int CONJ = 14;
+    static final int COS = 15;
+    static final int COSH = 16;
+    static final int EXP = 17;
+    static final int IMAG = 18;
+    static final int LOG = 19;
+    static final int NEG = 20;
+    static final int POW = 21;
+    static final int REAL = 22;
+    static final int SIN = 23;
+    static final int SINH = 24;
+    static final int SQRT = 25;
+    static final int TAN = 26;
+    static final int TANH = 27;
+    /* copy the value on top of the stack to the temporary slot */
+    static final int TEE = 28;
+    /* push the value of the temporary slot */
+    static final int LOAD = 29;
+    /* call the user-defined function, the operand is its index */
+    static final int CALL = 30;
+    /* comparison operators, the result is boolean */
+    static final int LT = 31;
+    static final int LE = 32;
+    static final int GT = 33;
+    static final int GE = 34;
+    static final int EQ = 35;
+    static final int NE = 36;
+    /* convert the value on top of the stack to boolean: 1 if it is true, 0 otherwise */
+    static final int TRUTH = 37;
+    /* unconditional jump */
+    static final int JUMP = 38;
+    /* pop the condition and jump if it is not true */
+    static final int JUMP_IF_FALSE = 39;
+    /* replace the value with 0 and jump if it is not true, pop it otherwise */
+    static final int JUMP_IF_FALSE_OR_POP = 40;
+    /* replace the value with 1 and jump if it is true, pop it otherwise */
+    static final int JUMP_IF_TRUE_OR_POP = 41;
+
+    /* maximal value of the operand */
+    static final int MAX_OPERAND = 0xFFFFFF;
+
+    private Opcodes() {
+    }
+
+    /**
+     * Packs the opcode and its operand into a single instruction
+     *
+     * @param opcode  Opcode
+     * @param operand Operand (constant index or variable slot)
+     * @return <code>int</code> instruction
+     */
+    static int instruction(int opcode, int operand) {
+        return opcode | (operand << 8);
+    }
+
+    /**
+     * Extracts the opcode from the instruction
+     *
+     * @param instruction Packed instruction
+     * @return <code>int</code> opcode
+     */
+    static int opcode(int instruction) {
+        return instruction & 0xFF;
+    }
+
+    /**
+     * Extracts the operand from the instruction
+     *
+     * @param instruction Packed instruction
+     * @return <code>int</code> operand
+     */
+    static int operand(int instruction) {
+        return instruction >>> 8;
+    }
+
+    /**
+     * Gets the number of operands consumed by the opcode, the arity of
+     * <code>CALL</code> is the one of the called function. Every jump
+     * consumes one operand on the path that falls through to the next
+     * instruction; the value <code>JUMP</code> carries to its target is
+     * counted again by the branch that ends there.
+     *
+     * @param opcode Opcode
+     * @return <code>int</code> arity
+     */
+    static int arity(int opcode) {
+        switch (opcode) {
+            case CONST:
+            case VAR:
+            case LOAD:
+                return 0;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case OR:
+            case AND:
+            case POW:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Resolves the function name stored in the region of the text to the
+     * opcode. The lookup hashes the characters in place, so neither a
+     * substring nor an exception is created for the identifiers that are not
+     * functions.
+     *
+     * @param text  Source text
+     * @param start Offset of the first character of the name
+     * @param end   Offset after the last character of the name
+     * @return <code>int</code> opcode or <code>-1</code> if the name is not
+     * a function
+     */
+    static int function(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        for (int i = hash & TABLE_MASK; FUNCTION_NAMES[i] != null; i = (i + 1) & TABLE_MASK) {
+            if (FUNCTION_HASHES[i] == hash && regionEquals(FUNCTION_NAMES[i], text, start, end)) {
+                return FUNCTION_OPCODES[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the canonical name of the function
+     *
+     * @param opcode Opcode of the function
+     * @return <code>String</code> name, e.g. "sin"
+     */
+    static String functionName(int opcode) {
+        return NAMES[opcode];
+    }
+
+    /**
+     * Get the token of the operator or function as it is shown in the
+     * reversed polish notation
+     *
+     * @param opcode Opcode of the operator or function
+     * @return <code>String</code> token, e.g. "+" or "sin"
+     */
+    static String token(int opcode) {
+        switch (opcode) {
+            case ADD:
+                return "+";
+            case SUB:
+                return "-";
+            case MUL:
+                return "*";
+            case DIV:
+                return "/";
+            case OR:
+                return "|";
+            case AND:
+                return "&";
+            case LT:
+                return "<";
+            case LE:
+                return "<=";
+            case GT:
+                return ">";
+            case GE:
+                return ">=";
+            case EQ:
+                return "==";
+            case NE:
+                return "!=";
+            case TRUTH:
+                return "bool";
+            default:
+                return NAMES[opcode];
+        }
+    }
+
+    /**
+     * Check if the result of the opcode is boolean, i.e. exactly 0 or 1
+     *
+     * @param opcode Opcode
+     * @return <code>boolean</code> output
+     */
+    static boolean isBoolean(int opcode) {
+        switch (opcode) {
+            case OR:
+            case AND:
+            case NOT:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+            case TRUTH:
+            case JUMP_IF_FALSE_OR_POP:
+            case JUMP_IF_TRUE_OR_POP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if the opcode is a jump, its operand is the index of the target
+     * instruction
+     *
+     * @param opcode Opcode
+     * @return <code>boolean</code> output
+     */
+    static boolean isJump(int opcode) {
+        return opcode >= JUMP && opcode <= JUMP_IF_TRUE_OR_POP;
+    }
+
+    private static boolean regionEquals(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* names of the functions indexed by opcode */
+    private static final String[] NAMES = new String[TANH + 1];
+    /* open addressing hash table of the function names */
+    private static final int TABLE_MASK = 63;
+    private static final String[] FUNCTION_NAMES = new String[TABLE_MASK + 1];
+    private static final int[] FUNCTION_HASHES = new int[TABLE_MASK + 1];
+    private static final int[] FUNCTION_OPCODES = new int[TABLE_MASK + 1];
+
+    static {
+        NAMES[NOT] = "not";
+        NAMES[ABS] = "abs";
+        NAMES[ACOS] = "acos";
+        NAMES[ARG] = "arg";
+        NAMES[ASIN] = "asin";
+        NAMES[ATAN] = "atan";
+        NAMES[CONJ] = "conj";
+        NAMES[COS] = "cos";
+        NAMES[COSH] = "cosh";
+        NAMES[EXP] = "exp";
+        NAMES[IMAG] = "imag";
+        NAMES[LOG] = "log";
+        NAMES[NEG] = "neg";
+        NAMES[POW] = "pow";
+        NAMES[REAL] = "real";
+        NAMES[SIN] = "sin";
+        NAMES[SINH] = "sinh";
+        NAMES[SQRT] = "sqrt";
+        NAMES[TAN] = "tan";
+        NAMES[TANH] = "tanh";
+        for (int opcode = 0; opcode < NAMES.length; opcode++) {
+            if (NAMES[opcode] != null) {
+                int hash = NAMES[opcode].hashCode();
+                int i = hash & TABLE_MASK;
+                while (FUNCTION_NAMES[i] != null) {
+                    i = (i + 1) & TABLE_MASK;
+                }
+                FUNCTION_NAMES[i] = NAMES[opcode];
+                FUNCTION_HASHES[i] = hash;
+                FUNCTION_OPCODES[i] = opcode;
+            }
+        }
+    }
+
+}
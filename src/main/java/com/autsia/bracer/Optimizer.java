@@ -0,0 +1,762 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compile-time optimizer of the programs, also used to build the programs of
+ * the derivatives. The postfix code is turned into a
+ * directed acyclic graph where equal subexpressions are represented by the
+ * same node, constant subexpressions are folded while the graph is built and
+ * the identities are applied to every new node. The graph is then written
+ * back to postfix code; the nodes used more than once are computed once and
+ * kept in temporary slots.
+ * <p>
+ * Every transformation keeps the results bit-identical:
+ * <ul>
+ * <li>constants are folded by the same engine that evaluates the program, a
+ * fold that leaves the real domain is not done;</li>
+ * <li>"x*1", "1*x", "x/1", "x-0", "x+(-0)" and "neg(neg(x))" are simplified
+ * in real programs only, where they are exact in IEEE 754 arithmetic;
+ * "x+0" is simplified only if "x" can not be negative zero;</li>
+ * <li>"not(not(x))" is simplified only if "x" is boolean;</li>
+ * <li>calls of the impure user-defined functions are neither folded nor
+ * shared;</li>
+ * <li>when the real engine leaves the domain, the complex engine runs the
+ * original program, since the identities above do not hold for complex
+ * infinities and NaNs.</li>
+ * </ul>
+ * The conditional operations are the nodes named after their first jump:
+ * <code>JUMP_IF_FALSE_OR_POP</code> for "&amp;",
+ * <code>JUMP_IF_TRUE_OR_POP</code> for "|" and <code>JUMP_IF_FALSE</code>
+ * for "if". The operands they may skip are written back inside the branches,
+ * and the values computed in a branch are not shared outside of it.
+ * <p>
+ * All the passes are iterative, so deeply nested expressions do not exhaust
+ * the thread stack.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class Optimizer {
+
+    /* source program */
+    private final CompiledExpression expression;
+    /* graph nodes: opcode, operand (constant index, variable slot or function index), children */
+    private int[] opcodes = new int[16];
+    private int[] operands = new int[16];
+    private int[][] children = new int[16][];
+    /* whether the value of the node is boolean */
+    private boolean[] booleans = new boolean[16];
+    private int size;
+    /* total number of children */
+    private int edges;
+    /* constants of the graph */
+    private double[] constantsRe = new double[4];
+    private double[] constantsIm = new double[4];
+    private int constantsSize;
+    /* equal nodes are shared */
+    private final Map<NodeKey, Integer> nodes = new HashMap<>();
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private Optimizer(CompiledExpression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Optimizes the program
+     *
+     * @param expression Source program
+     * @return <code>CompiledExpression</code> optimized program
+     */
+    static CompiledExpression optimize(CompiledExpression expression) {
+        Optimizer optimizer = new Optimizer(expression);
+        return optimizer.emit(optimizer.build(), expression.isBoolean(), expression.fallback());
+    }
+
+    /**
+     * Builds the program of the partial derivative. The derivative nodes are
+     * added to the graph of the program, so they share the subexpressions
+     * with each other and with the values they depend on; the derivatives
+     * that are zero by construction are dropped.
+     *
+     * @param expression Source program
+     * @param slot       Slot of the variable
+     * @return <code>CompiledExpression</code> derivative
+     */
+    static CompiledExpression derivative(CompiledExpression expression, int slot) {
+        Optimizer optimizer = new Optimizer(expression);
+        int root = optimizer.derivative(optimizer.build(), slot);
+        return optimizer.emit(root < 0 ? optimizer.constant(0, 0) : root, false, null);
+    }
+
+    /**
+     * Builds the graph from the postfix code
+     *
+     * @return <code>int</code> root node
+     */
+    private int build() {
+        int[] code = expression.code();
+        int[] stack = new int[expression.maxStackDepth()];
+        int[] temporaries = new int[expression.temporaries()];
+        int top = -1;
+        /* jumps waiting for their targets with the values they consumed */
+        int[] jumps = new int[code.length];
+        int[] conditions = new int[code.length];
+        int[] branches = new int[code.length];
+        int waiting = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            while (waiting > 0 && Opcodes.operand(code[jumps[waiting - 1]]) == pc) {
+                waiting--;
+                stack[top] = join(Opcodes.opcode(code[jumps[waiting]]), conditions[waiting], branches[waiting],
+                        stack[top]);
+            }
+            int opcode = Opcodes.opcode(code[pc]);
+            int operand = Opcodes.operand(code[pc]);
+            switch (opcode) {
+                case Opcodes.CONST:
+                    stack[++top] = constant(expression.constantsRe()[operand], expression.constantsIm()[operand]);
+                    break;
+                case Opcodes.VAR:
+                    stack[++top] = node(Opcodes.VAR, operand, NO_CHILDREN);
+                    break;
+                case Opcodes.TEE:
+                    temporaries[operand] = stack[top];
+                    break;
+                case Opcodes.LOAD:
+                    stack[++top] = temporaries[operand];
+                    break;
+                case Opcodes.CALL: {
+                    int arity = expression.functions()[operand].arity();
+                    top -= arity - 1;
+                    stack[top] = call(operand, Arrays.copyOfRange(stack, top, top + arity));
+                    break;
+                }
+                case Opcodes.JUMP:
+                    /* the first branch of "if" is done, the condition was consumed by the preceding jump */
+                    waiting--;
+                    branches[waiting] = stack[top--];
+                    jumps[waiting++] = pc;
+                    break;
+                case Opcodes.JUMP_IF_FALSE:
+                case Opcodes.JUMP_IF_FALSE_OR_POP:
+                case Opcodes.JUMP_IF_TRUE_OR_POP:
+                    conditions[waiting] = stack[top--];
+                    jumps[waiting++] = pc;
+                    break;
+                default:
+                    if (Opcodes.arity(opcode) == 2) {
+                        top--;
+                        stack[top] = operation(opcode, stack[top], stack[top + 1]);
+                    } else {
+                        stack[top] = operation(opcode, stack[top], -1);
+                    }
+            }
+        }
+        while (waiting > 0) {
+            waiting--;
+            stack[top] = join(Opcodes.opcode(code[jumps[waiting]]), conditions[waiting], branches[waiting],
+                    stack[top]);
+        }
+        return stack[0];
+    }
+
+    /* conditional node completed at the target of its last jump */
+    private int join(int jump, int condition, int branch, int last) {
+        if (jump == Opcodes.JUMP) {
+            return conditional(Opcodes.JUMP_IF_FALSE, new int[]{condition, branch, last});
+        }
+        return conditional(jump, new int[]{condition, last});
+    }
+
+    /**
+     * Creates the conditional node, or finds an equal one. The conditions
+     * known at compile time select the branch, and the short-circuit
+     * operators with a constant or a variable as the right operand become
+     * strict, since evaluating such an operand is cheaper than the jump.
+     */
+    private int conditional(int opcode, int[] arguments) {
+        int condition = arguments[0];
+        boolean known = opcodes[condition] == Opcodes.CONST;
+        boolean value = known && ComplexOps.isTrue(constantsRe[operands[condition]]);
+        switch (opcode) {
+            case Opcodes.JUMP_IF_FALSE:
+                if (known) {
+                    return value ? arguments[1] : arguments[2];
+                }
+                break;
+            case Opcodes.JUMP_IF_FALSE_OR_POP:
+                if (known) {
+                    return value ? arguments[1] : constant(0, 0);
+                }
+                if (isStrictOperand(arguments[1])) {
+                    return operation(Opcodes.AND, condition, strictOperand(arguments[1]));
+                }
+                break;
+            default:
+                if (known) {
+                    return value ? constant(1, 0) : arguments[1];
+                }
+                if (isStrictOperand(arguments[1])) {
+                    return operation(Opcodes.OR, condition, strictOperand(arguments[1]));
+                }
+                break;
+        }
+        return node(opcode, 0, arguments);
+    }
+
+    /* right operand of "&" or "|", always converted to boolean, is a constant or a variable */
+    private boolean isStrictOperand(int node) {
+        return opcodes[node] == Opcodes.CONST
+                || opcodes[node] == Opcodes.TRUTH && opcodes[children[node][0]] == Opcodes.VAR;
+    }
+
+    private int strictOperand(int node) {
+        return opcodes[node] == Opcodes.TRUTH ? children[node][0] : node;
+    }
+
+    /**
+     * Creates the node of the user-defined function call. Calls of the pure
+     * functions are folded and shared like the built-in operations, calls of
+     * the impure ones are always kept.
+     */
+    private int call(int function, int[] arguments) {
+        if (!expression.functions()[function].isPure()) {
+            return append(Opcodes.CALL, function, arguments);
+        }
+        if (isConstant(arguments)) {
+            int folded = fold(Opcodes.CALL, function, arguments);
+            if (folded >= 0) {
+                return folded;
+            }
+        }
+        return node(Opcodes.CALL, function, arguments);
+    }
+
+    /**
+     * Creates the operation node, or finds an equal one, after folding and
+     * simplification
+     */
+    private int operation(int opcode, int a, int b) {
+        int[] arguments = b < 0 ? new int[]{a} : new int[]{a, b};
+        if (isConstant(arguments)) {
+            int folded = fold(opcode, 0, arguments);
+            if (folded >= 0) {
+                return folded;
+            }
+        }
+        boolean real = expression.isReal();
+        switch (opcode) {
+            case Opcodes.MUL:
+                if (real && isConstant(b, 1)) {
+                    return a;
+                }
+                if (real && isConstant(a, 1)) {
+                    return b;
+                }
+                break;
+            case Opcodes.DIV:
+                if (real && isConstant(b, 1)) {
+                    return a;
+                }
+                break;
+            case Opcodes.SUB:
+                if (real && isConstant(b, 0.0)) {
+                    return a;
+                }
+                break;
+            case Opcodes.ADD:
+                if (real && (isConstant(b, -0.0) || isConstant(b, 0.0) && isNotNegativeZero(a))) {
+                    return a;
+                }
+                if (real && (isConstant(a, -0.0) || isConstant(a, 0.0) && isNotNegativeZero(b))) {
+                    return b;
+                }
+                break;
+            case Opcodes.NEG:
+                if (real && opcodes[a] == Opcodes.NEG) {
+                    return children[a][0];
+                }
+                break;
+            case Opcodes.NOT:
+                if (opcodes[a] == Opcodes.NOT && booleans[children[a][0]]) {
+                    return children[a][0];
+                }
+                break;
+            case Opcodes.TRUTH:
+                if (booleans[a]) {
+                    return a;
+                }
+                break;
+            default:
+                break;
+        }
+        return node(opcode, 0, arguments);
+    }
+
+    /**
+     * Computes the operation over the constants by the engines that evaluate
+     * the program. The real programs are evaluated by the real engine and by
+     * the complex one after the escape, so the operation is folded only if
+     * both give the same real part, and the imaginary part of the complex
+     * engine is kept, e.g. the signed zero of "neg(2)" that selects the side
+     * of the branch cut of "pow" and "log"
+     *
+     * @return <code>int</code> constant node or <code>-1</code> if the
+     * operation can not be folded
+     */
+    private int fold(int opcode, int operand, int[] arguments) {
+        int arity = arguments.length;
+        double[] re = new double[arity];
+        double[] im = new double[arity];
+        int[] code = new int[arity + 1];
+        for (int i = 0; i < arity; i++) {
+            re[i] = constantsRe[operands[arguments[i]]];
+            im[i] = constantsIm[operands[arguments[i]]];
+            code[i] = Opcodes.instruction(Opcodes.CONST, i);
+        }
+        code[arity] = Opcodes.instruction(opcode, operand);
+        CompiledExpression operation = new CompiledExpression(code, re, im, Math.max(1, arity), new String[0],
+                expression.functions(), expression.isReal());
+        double[] stackRe = new double[Math.max(1, arity)];
+        double real = 0;
+        if (expression.isReal()) {
+            if (!operation.executeReal(new double[0], stackRe)) {
+                return -1;
+            }
+            real = stackRe[0];
+        }
+        double[] stackIm = new double[stackRe.length];
+        operation.execute(new double[0], stackRe, stackIm);
+        if (expression.isReal() && Double.doubleToLongBits(real) != Double.doubleToLongBits(stackRe[0])) {
+            return -1;
+        }
+        return constant(stackRe[0], stackIm[0]);
+    }
+
+    private int constant(double re, double im) {
+        NodeKey key = new NodeKey(Opcodes.CONST, 0, Double.doubleToLongBits(re), Double.doubleToLongBits(im),
+                NO_CHILDREN);
+        Integer node = nodes.get(key);
+        if (node != null) {
+            return node;
+        }
+        if (constantsSize == constantsRe.length) {
+            constantsRe = Arrays.copyOf(constantsRe, constantsSize * 2);
+            constantsIm = Arrays.copyOf(constantsIm, constantsSize * 2);
+        }
+        constantsRe[constantsSize] = re;
+        constantsIm[constantsSize] = im;
+        int created = append(Opcodes.CONST, constantsSize++, NO_CHILDREN);
+        nodes.put(key, created);
+        return created;
+    }
+
+    private int node(int opcode, int operand, int[] arguments) {
+        NodeKey key = new NodeKey(opcode, operand, 0, 0, arguments);
+        Integer node = nodes.get(key);
+        if (node != null) {
+            return node;
+        }
+        int created = append(opcode, operand, arguments);
+        nodes.put(key, created);
+        return created;
+    }
+
+    private int append(int opcode, int operand, int[] arguments) {
+        if (size == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+            children = Arrays.copyOf(children, size * 2);
+            booleans = Arrays.copyOf(booleans, size * 2);
+        }
+        opcodes[size] = opcode;
+        operands[size] = operand;
+        children[size] = arguments;
+        booleans[size] = Opcodes.isBoolean(opcode)
+                || opcode == Opcodes.JUMP_IF_FALSE && booleans[arguments[1]] && booleans[arguments[2]];
+        edges += arguments.length;
+        return size++;
+    }
+
+    private boolean isConstant(int[] nodes) {
+        for (int node : nodes) {
+            if (opcodes[node] != Opcodes.CONST) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* bitwise comparison, so 0.0 and -0.0 are different constants */
+    private boolean isConstant(int node, double value) {
+        return opcodes[node] == Opcodes.CONST && constantsIm[operands[node]] == 0
+                && Double.doubleToLongBits(constantsRe[operands[node]]) == Double.doubleToLongBits(value);
+    }
+
+    private boolean isNotNegativeZero(int node) {
+        if (booleans[node]) {
+            return true;
+        }
+        switch (opcodes[node]) {
+            case Opcodes.ABS:
+            case Opcodes.COSH:
+            case Opcodes.EXP:
+                return true;
+            case Opcodes.CONST:
+                return !isConstant(node, -0.0);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Creates the nodes of the derivatives of every node the root depends on,
+     * in the order of creation, so the children are always differentiated
+     * before their parents
+     *
+     * @return <code>int</code> derivative of the root or <code>-1</code> if
+     * it is zero
+     */
+    private int derivative(int root, int slot) {
+        int[] derivatives = new int[root + 1];
+        boolean[] reachable = new boolean[root + 1];
+        reachable[root] = true;
+        for (int node = root; node >= 0; node--) {
+            if (reachable[node]) {
+                for (int child : children[node]) {
+                    reachable[child] = true;
+                }
+            }
+        }
+        for (int node = 0; node <= root; node++) {
+            derivatives[node] = reachable[node] ? derivative(node, slot, derivatives) : -1;
+        }
+        return derivatives[root];
+    }
+
+    /* derivative of the single node, -1 stands for zero */
+    private int derivative(int node, int slot, int[] derivatives) {
+        int opcode = opcodes[node];
+        if (opcode == Opcodes.JUMP_IF_FALSE) {
+            /* derivative of the taken branch */
+            int first = derivatives[children[node][1]];
+            int second = derivatives[children[node][2]];
+            if (first < 0 && second < 0) {
+                return -1;
+            }
+            return conditional(Opcodes.JUMP_IF_FALSE, new int[]{children[node][0],
+                    first < 0 ? constant(0, 0) : first, second < 0 ? constant(0, 0) : second});
+        }
+        if (booleans[node]) {
+            return -1;
+        }
+        int a = children[node].length > 0 ? children[node][0] : -1;
+        int b = children[node].length > 1 ? children[node][1] : -1;
+        int da = a >= 0 ? derivatives[a] : -1;
+        int db = b >= 0 ? derivatives[b] : -1;
+        switch (opcode) {
+            case Opcodes.CONST:
+                return -1;
+            case Opcodes.VAR:
+                return operands[node] == slot ? constant(1, 0) : -1;
+            case Opcodes.CALL:
+                for (int child : children[node]) {
+                    if (derivatives[child] >= 0) {
+                        throw new UnsupportedOperationException("Derivative of the user-defined function "
+                                + expression.functions()[operands[node]].name() + " is unknown");
+                    }
+                }
+                return -1;
+            case Opcodes.ADD:
+                return sum(da, db);
+            case Opcodes.SUB:
+                return db < 0 ? da : da < 0 ? operation(Opcodes.NEG, db, -1) : operation(Opcodes.SUB, da, db);
+            case Opcodes.MUL:
+                return sum(product(b, da), product(a, db));
+            case Opcodes.DIV:
+                /* (da - q * db) / b */
+                if (da < 0 && db < 0) {
+                    return -1;
+                }
+                int numerator = db < 0 ? da : da < 0 ? operation(Opcodes.NEG, product(node, db), -1)
+                        : operation(Opcodes.SUB, da, product(node, db));
+                return operation(Opcodes.DIV, numerator, b);
+            case Opcodes.POW: {
+                /* b * a^(b - 1) * da + q * log(a) * db */
+                int base = da < 0 ? -1 : product(operation(Opcodes.MUL, b,
+                        operation(Opcodes.POW, a, operation(Opcodes.SUB, b, constant(1, 0)))), da);
+                int exponent = db < 0 ? -1 : product(operation(Opcodes.MUL, node,
+                        operation(Opcodes.LOG, a, -1)), db);
+                return sum(base, exponent);
+            }
+            case Opcodes.NEG:
+                return da < 0 ? -1 : operation(Opcodes.NEG, da, -1);
+            /* the real programs may still go complex, e.g. sqrt(x) at x < 0,
+               so the parts of the derivatives are taken the same way */
+            case Opcodes.CONJ:
+            case Opcodes.REAL:
+                return da < 0 ? da : operation(opcode, da, -1);
+            case Opcodes.IMAG:
+                return da < 0 ? -1 : operation(Opcodes.IMAG, da, -1);
+            default:
+                break;
+        }
+        if (da < 0) {
+            return -1;
+        }
+        switch (opcode) {
+            case Opcodes.ABS:
+                /* re(conj(a) * da) / |a| */
+                return operation(Opcodes.DIV, operation(Opcodes.REAL,
+                        operation(Opcodes.MUL, operation(Opcodes.CONJ, a, -1), da), -1), node);
+            case Opcodes.ARG:
+                /* im(conj(a) * da) / |a|^2 */
+                int abs = operation(Opcodes.ABS, a, -1);
+                return operation(Opcodes.DIV, operation(Opcodes.IMAG,
+                        operation(Opcodes.MUL, operation(Opcodes.CONJ, a, -1), da), -1),
+                        operation(Opcodes.MUL, abs, abs));
+            case Opcodes.ACOS:
+                return operation(Opcodes.NEG, operation(Opcodes.DIV, da, sqrtOneMinusSquare(a)), -1);
+            case Opcodes.ASIN:
+                return operation(Opcodes.DIV, da, sqrtOneMinusSquare(a));
+            case Opcodes.ATAN:
+                return operation(Opcodes.DIV, da,
+                        operation(Opcodes.ADD, constant(1, 0), operation(Opcodes.MUL, a, a)));
+            case Opcodes.COS:
+                return operation(Opcodes.MUL, operation(Opcodes.NEG, operation(Opcodes.SIN, a, -1), -1), da);
+            case Opcodes.COSH:
+                return operation(Opcodes.MUL, operation(Opcodes.SINH, a, -1), da);
+            case Opcodes.EXP:
+                return operation(Opcodes.MUL, node, da);
+            case Opcodes.LOG:
+                return operation(Opcodes.DIV, da, a);
+            case Opcodes.SIN:
+                return operation(Opcodes.MUL, operation(Opcodes.COS, a, -1), da);
+            case Opcodes.SINH:
+                return operation(Opcodes.MUL, operation(Opcodes.COSH, a, -1), da);
+            case Opcodes.SQRT:
+                return operation(Opcodes.DIV, da, operation(Opcodes.MUL, constant(2, 0), node));
+            case Opcodes.TAN:
+                return operation(Opcodes.MUL,
+                        operation(Opcodes.ADD, constant(1, 0), operation(Opcodes.MUL, node, node)), da);
+            case Opcodes.TANH:
+                return operation(Opcodes.MUL,
+                        operation(Opcodes.SUB, constant(1, 0), operation(Opcodes.MUL, node, node)), da);
+            default:
+                throw new IllegalStateException("Unknown opcode: " + opcode);
+        }
+    }
+
+    /* sum of the derivatives, -1 stands for zero */
+    private int sum(int a, int b) {
+        return a < 0 ? b : b < 0 ? a : operation(Opcodes.ADD, a, b);
+    }
+
+    /* product of the value and the derivative, -1 stands for zero */
+    private int product(int value, int derivative) {
+        return derivative < 0 ? -1 : operation(Opcodes.MUL, value, derivative);
+    }
+
+    /* sqrt(1 - a^2) */
+    private int sqrtOneMinusSquare(int a) {
+        return operation(Opcodes.SQRT, operation(Opcodes.SUB, constant(1, 0), operation(Opcodes.MUL, a, a)), -1);
+    }
+
+    /**
+     * Writes the graph back to the postfix code. The graph is unfolded into
+     * instances first: every branch of a conditional node is a region of its
+     * own, and a node used in several regions gets an instance in each of
+     * them, so a value stored to a temporary slot is loaded only on the paths
+     * that computed it.
+     *
+     * @param root          Root node
+     * @param booleanResult Whether the result is boolean
+     * @param fallback      Program run by the complex engine, <code>null</code>
+     *                      for the emitted program itself
+     * @return <code>CompiledExpression</code> program
+     */
+    private CompiledExpression emit(int root, boolean booleanResult, CompiledExpression fallback) {
+        /* instances of the nodes reachable from the root and their uses */
+        Map<Long, Integer> instances = new HashMap<>();
+        int[] nodeOf = new int[size];
+        int[] regionOf = new int[size];
+        int[][] childrenOf = new int[size][];
+        int[] uses = new int[size];
+        int count = 0;
+        int regions = 1;
+        int instanceEdges = 0;
+        nodeOf[count] = root;
+        instances.put((long) root << 32, count++);
+        uses[0] = 1;
+        for (int instance = 0; instance < count; instance++) {
+            int node = nodeOf[instance];
+            int region = regionOf[instance];
+            int[] nodeChildren = children[node];
+            int[] instanceChildren = new int[nodeChildren.length];
+            for (int i = 0; i < nodeChildren.length; i++) {
+                int childRegion = isBranch(opcodes[node], i) ? regions++ : region;
+                long key = (long) nodeChildren[i] << 32 | childRegion;
+                Integer child = instances.get(key);
+                if (child == null) {
+                    if (count == nodeOf.length) {
+                        nodeOf = Arrays.copyOf(nodeOf, count * 2);
+                        regionOf = Arrays.copyOf(regionOf, count * 2);
+                        childrenOf = Arrays.copyOf(childrenOf, count * 2);
+                        uses = Arrays.copyOf(uses, count * 2);
+                    }
+                    child = count++;
+                    nodeOf[child] = nodeChildren[i];
+                    regionOf[child] = childRegion;
+                    instances.put(key, child);
+                }
+                uses[child]++;
+                instanceChildren[i] = child;
+            }
+            childrenOf[instance] = instanceChildren;
+            instanceEdges += instanceChildren.length;
+        }
+
+        /* post-order traversal, the shared instances are stored to temporaries */
+        int[] temporary = new int[count];
+        Arrays.fill(temporary, -1);
+        int temporaries = 0;
+        /* every use emits one instruction, the shared instances and the jumps add at most two more */
+        int[] code = new int[instanceEdges + 3 * count + 1];
+        int length = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        int[] instanceStack = new int[instanceEdges + 1];
+        /* number of the children already pushed and the pending jump of the conditional instances */
+        int[] stage = new int[instanceEdges + 1];
+        int[] jump = new int[instanceEdges + 1];
+        int top = 0;
+        instanceStack[0] = 0;
+        while (top >= 0) {
+            int instance = instanceStack[top];
+            int node = nodeOf[instance];
+            int opcode = opcodes[node];
+            int[] instanceChildren = childrenOf[instance];
+            if (opcode == Opcodes.CONST || opcode == Opcodes.VAR || temporary[instance] >= 0) {
+                top--;
+                code[length++] = temporary[instance] >= 0
+                        ? Opcodes.instruction(Opcodes.LOAD, temporary[instance])
+                        : Opcodes.instruction(opcode, operands[node]);
+                maxDepth = Math.max(maxDepth, ++depth);
+                continue;
+            }
+            if (isConditional(opcode)) {
+                /* the condition, then the jump before every branch */
+                int pushed = stage[top]++;
+                if (pushed == 0) {
+                    instanceStack[++top] = instanceChildren[0];
+                    stage[top] = 0;
+                    continue;
+                }
+                if (pushed < instanceChildren.length) {
+                    if (pushed == 1) {
+                        jump[top] = length;
+                        code[length++] = Opcodes.instruction(opcode, 0);
+                    } else {
+                        code[length++] = Opcodes.instruction(Opcodes.JUMP, 0);
+                        code[jump[top]] = Opcodes.instruction(opcode, length);
+                        jump[top] = length - 1;
+                    }
+                    depth--;
+                    instanceStack[++top] = instanceChildren[pushed];
+                    stage[top] = 0;
+                    continue;
+                }
+                code[jump[top]] = Opcodes.instruction(Opcodes.opcode(code[jump[top]]), length);
+            } else if (stage[top] == 0) {
+                stage[top] = 1;
+                /* children are pushed in reverse order to be emitted in the original one */
+                for (int i = instanceChildren.length - 1; i >= 0; i--) {
+                    instanceStack[++top] = instanceChildren[i];
+                    stage[top] = 0;
+                }
+                continue;
+            } else {
+                code[length++] = Opcodes.instruction(opcode, operands[node]);
+                depth = depth - instanceChildren.length + 1;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+            top--;
+            if (uses[instance] > 1) {
+                temporary[instance] = temporaries;
+                code[length++] = Opcodes.instruction(Opcodes.TEE, temporaries++);
+            }
+        }
+        return new CompiledExpression(Arrays.copyOf(code, length), Arrays.copyOf(constantsRe, constantsSize),
+                Arrays.copyOf(constantsIm, constantsSize), maxDepth, temporaries, expression.variables(),
+                expression.functions(), expression.isReal(), booleanResult, fallback);
+    }
+
+    /* conditional nodes are named after their first jump */
+    private static boolean isConditional(int opcode) {
+        return opcode == Opcodes.JUMP_IF_FALSE || opcode == Opcodes.JUMP_IF_FALSE_OR_POP
+                || opcode == Opcodes.JUMP_IF_TRUE_OR_POP;
+    }
+
+    /* all the operands of the conditional node but the first one may be skipped */
+    private static boolean isBranch(int opcode, int child) {
+        return child > 0 && isConditional(opcode);
+    }
+
+    /**
+     * Identity of the node: opcode with operand and children, or the bits of
+     * the constant
+     */
+    private static final class NodeKey {
+
+        private final int opcode;
+        private final int operand;
+        private final long re;
+        private final long im;
+        private final int[] children;
+
+        NodeKey(int opcode, int operand, long re, long im, int[] children) {
+            this.opcode = opcode;
+            this.operand = operand;
+            this.re = re;
+            this.im = im;
+            this.children = children;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return false;
+            }
+            NodeKey other = (NodeKey) o;
+            return opcode == other.opcode && operand == other.operand && re == other.re && im == other.im
+                    && Arrays.equals(children, other.children);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * (31 * opcode + operand) + Long.hashCode(re);
+            return 31 * (31 * hash + Long.hashCode(im)) + Arrays.hashCode(children);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+/**
+ * Immutable resource limits of the parsed expressions, see
+ * {@link BracerParser#setLimits(ParseLimits)}. They are checked as the
+ * tokens are read, so the parser gives up on the expression that exceeds
+ * them after the work proportional to the limits rather than to the size of
+ * the input, and throws <code>ParseException</code> at the offending token.
+ * <p>
+ * The jumps of the programs go forward only, so one evaluation executes at
+ * most as many instructions as the program has. The step budget is
+ * therefore enforced on the size of the program at parse time, and the
+ * evaluation itself pays nothing for it.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class ParseLimits {
+
+    /**
+     * No limits besides the ones of the program format
+     *
+     * @since 8.0
+     */
+    public static final ParseLimits NONE = new ParseLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Integer.MAX_VALUE);
+
+    private final int maxTokens;
+    private final int maxNesting;
+    private final int maxStackDepth;
+    private final int maxSteps;
+
+    private ParseLimits(int maxTokens, int maxNesting, int maxStackDepth, int maxSteps) {
+        this.maxTokens = maxTokens;
+        this.maxNesting = maxNesting;
+        this.maxStackDepth = maxStackDepth;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Get the maximal number of tokens: numbers, names, operators, brackets
+     * and separators
+     *
+     * @return <code>int</code> number of tokens
+     * @since 8.0
+     */
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /**
+     * Get the maximal nesting, i.e. the number of the pending operations:
+     * the open brackets, the functions and the operators waiting for their
+     * right operands, e.g. "-(sin(x))" has the nesting of 4
+     *
+     * @return <code>int</code> nesting
+     * @since 8.0
+     */
+    public int getMaxNesting() {
+        return maxNesting;
+    }
+
+    /**
+     * Get the maximal depth of the operand stack, which is the size of the
+     * buffers every evaluation context allocates
+     *
+     * @return <code>int</code> number of stack slots
+     * @since 8.0
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    /**
+     * Get the maximal number of instructions one evaluation may execute
+     *
+     * @return <code>int</code> number of instructions
+     * @since 8.0
+     */
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * Creates the limits with the maximal number of tokens
+     *
+     * @param maxTokens Number of tokens
+     * @return <code>ParseLimits</code> new limits
+     * @throws IllegalArgumentException if the number is not positive
+     * @since 8.0
+     */
+    public ParseLimits withMaxTokens(int maxTokens) {
+        return new ParseLimits(check("tokens", maxTokens), maxNesting, maxStackDepth, maxSteps);
+    }
+
+    /**
+     * Creates the limits with the maximal nesting, see
+     * {@link #getMaxNesting()}
+     *
+     * @param maxNesting Nesting
+     * @return <code>ParseLimits</code> new limits
+     * @throws IllegalArgumentException if the nesting is not positive
+     * @since 8.0
+     */
+    public ParseLimits withMaxNesting(int maxNesting) {
+        return new ParseLimits(maxTokens, check("nesting", maxNesting), maxStackDepth, maxSteps);
+    }
+
+    /**
+     * Creates the limits with the maximal depth of the operand stack
+     *
+     * @param maxStackDepth Number of stack slots
+     * @return <code>ParseLimits</code> new limits
+     * @throws IllegalArgumentException if the number is not positive
+     * @since 8.0
+     */
+    public ParseLimits withMaxStackDepth(int maxStackDepth) {
+        return new ParseLimits(maxTokens, maxNesting, check("stack depth", maxStackDepth), maxSteps);
+    }
+
+    /**
+     * Creates the limits with the maximal number of instructions one
+     * evaluation may execute
+     *
+     * @param maxSteps Number of instructions
+     * @return <code>ParseLimits</code> new limits
+     * @throws IllegalArgumentException if the number is not positive
+     * @since 8.0
+     */
+    public ParseLimits withMaxSteps(int maxSteps) {
+        return new ParseLimits(maxTokens, maxNesting, maxStackDepth, check("steps", maxSteps));
+    }
+
+    private static int check(String limit, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Limit of " + limit + " must be positive: " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "ParseLimits{maxTokens=" + maxTokens + ", maxNesting=" + maxNesting + ", maxStackDepth="
+                + maxStackDepth + ", maxSteps=" + maxSteps + '}';
+    }
+
+}
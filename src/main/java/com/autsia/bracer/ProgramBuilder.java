@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles the instructions of the expression in postfix order and checks
+ * that every instruction has enough operands. The jumps are emitted with an
+ * unknown target and patched once the code they skip is complete.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class ProgramBuilder {
+
+    /* instructions emitted so far */
+    private int[] code = new int[16];
+    /* number of emitted instructions */
+    private int size;
+    /* constant pool, real and imaginary parts */
+    private double[] constantsRe = new double[4];
+    private double[] constantsIm = new double[4];
+    /* number of constants in the pool */
+    private int constantsSize;
+    /* current depth of the operand stack */
+    private int depth;
+    /* maximal depth of the operand stack */
+    private int maxDepth;
+    /* whether the values on the operand stack are boolean */
+    private boolean[] booleans = new boolean[8];
+    /* positions of the unconditional jumps carrying a boolean value */
+    private final BitSet booleanJumps = new BitSet();
+    /* names of the variables in the order of their slots */
+    private final List<String> variables = new ArrayList<>();
+    /* slots of the variables by name, the generated expressions may reference thousands of them */
+    private final Map<String, Integer> slots = new HashMap<>();
+    /* user-defined functions in the order of their indices */
+    private final List<UserFunction> functions = new ArrayList<>();
+    /* whether all the constants are real */
+    private boolean real = true;
+
+    /**
+     * Emits the instruction pushing the constant
+     *
+     * @param re Real part of the constant
+     * @param im Imaginary part of the constant
+     */
+    void emitConstant(double re, double im) {
+        if (constantsSize == constantsRe.length) {
+            constantsRe = Arrays.copyOf(constantsRe, constantsSize * 2);
+            constantsIm = Arrays.copyOf(constantsIm, constantsSize * 2);
+        }
+        constantsRe[constantsSize] = re;
+        constantsIm[constantsSize] = im;
+        real &= im == 0;
+        append(Opcodes.instruction(Opcodes.CONST, constantsSize++), 0);
+    }
+
+    /**
+     * Emits the instruction pushing the variable value, the variable gets the
+     * next free slot when referenced for the first time
+     *
+     * @param name Name of the variable
+     */
+    void emitVariable(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = variables.size();
+            variables.add(name);
+            slots.put(name, slot);
+        }
+        append(Opcodes.instruction(Opcodes.VAR, slot), 0);
+    }
+
+    /**
+     * Emits the operator or function instruction
+     *
+     * @param opcode Opcode
+     * @param offset Offset of the operator in the source text, used for
+     *               error reporting
+     * @throws ParseException if there are not enough operands on the stack
+     */
+    void emit(int opcode, int offset) throws ParseException {
+        int arity = Opcodes.arity(opcode);
+        if (depth < arity) {
+            throw new ParseException("Some operand is missing", offset);
+        }
+        append(Opcodes.instruction(opcode, 0), arity);
+    }
+
+    /**
+     * Emits the call of the user-defined function, expressions calling
+     * complex functions are not real
+     *
+     * @param function User-defined function
+     * @param offset   Offset of the function in the source text, used for
+     *                 error reporting
+     * @throws ParseException if there are not enough operands on the stack
+     */
+    void emitCall(UserFunction function, int offset) throws ParseException {
+        if (depth < function.arity()) {
+            throw new ParseException("Some operand is missing", offset);
+        }
+        int index = functions.indexOf(function);
+        if (index < 0) {
+            index = functions.size();
+            functions.add(function);
+        }
+        real &= function.isReal();
+        append(Opcodes.instruction(Opcodes.CALL, index), function.arity());
+    }
+
+    /**
+     * Emits the jump, the target is set by {@link #patchJump(int)}. The jump
+     * consumes the value on top of the stack on the path that falls through.
+     *
+     * @param opcode Opcode of the jump
+     * @param offset Offset of the operation in the source text, used for
+     *               error reporting
+     * @return <code>int</code> position of the jump
+     * @throws ParseException if the stack is empty
+     */
+    int emitJump(int opcode, int offset) throws ParseException {
+        if (depth == 0) {
+            throw new ParseException("Some operand is missing", offset);
+        }
+        if (opcode == Opcodes.JUMP) {
+            booleanJumps.set(size, booleans[depth - 1]);
+        }
+        append(Opcodes.instruction(opcode, 0), 1);
+        return size - 1;
+    }
+
+    /**
+     * Sets the target of the jump to the next instruction. The value left by
+     * an unconditional jump meets the value of the branch that ends here, the
+     * result is boolean only if both of them are.
+     *
+     * @param jump Position of the jump
+     */
+    void patchJump(int jump) {
+        code[jump] = Opcodes.instruction(Opcodes.opcode(code[jump]), size);
+        if (Opcodes.opcode(code[jump]) == Opcodes.JUMP) {
+            booleans[depth - 1] &= booleanJumps.get(jump);
+        }
+    }
+
+    /**
+     * Completes the short-circuit "&amp;" or "|" started by the jump. When
+     * the right operand is a single constant or variable, evaluating it is
+     * cheaper than the branch, so the jump is replaced with the strict
+     * operator.
+     *
+     * @param jump   Position of the <code>JUMP_IF_FALSE_OR_POP</code> or
+     *               <code>JUMP_IF_TRUE_OR_POP</code> instruction
+     * @param offset Offset of the operator in the source text, used for
+     *               error reporting
+     * @throws ParseException if the right operand is missing
+     */
+    void emitShortCircuit(int jump, int offset) throws ParseException {
+        int opcode = Opcodes.opcode(code[jump]);
+        if (size == jump + 2 && (Opcodes.opcode(code[jump + 1]) == Opcodes.CONST
+                || Opcodes.opcode(code[jump + 1]) == Opcodes.VAR)) {
+            code[jump] = code[jump + 1];
+            size--;
+            /* the left operand is back on the stack */
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+            emit(opcode == Opcodes.JUMP_IF_FALSE_OR_POP ? Opcodes.AND : Opcodes.OR, offset);
+            return;
+        }
+        emit(Opcodes.TRUTH, offset);
+        patchJump(jump);
+    }
+
+    /**
+     * Get the number of emitted instructions
+     *
+     * @return <code>int</code> number of instructions
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the current depth of the operand stack
+     *
+     * @return <code>int</code> number of values
+     */
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * Builds the immutable program
+     *
+     * @param offset Offset of the end of the source text, used for error
+     *               reporting
+     * @return <code>CompiledExpression</code> program
+     * @throws ParseException if the program does not produce exactly one value
+     */
+    CompiledExpression build(int offset) throws ParseException {
+        if (depth == 0) {
+            throw new ParseException("Expression is empty", offset);
+        }
+        if (depth > 1) {
+            throw new ParseException("Some operator is missing", offset);
+        }
+        return new CompiledExpression(Arrays.copyOf(code, size), Arrays.copyOf(constantsRe, constantsSize),
+                Arrays.copyOf(constantsIm, constantsSize), maxDepth, 0,
+                variables.toArray(new String[variables.size()]),
+                functions.toArray(new UserFunction[functions.size()]), real, booleans[0], null);
+    }
+
+    private void append(int instruction, int arity) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = instruction;
+        int opcode = Opcodes.opcode(instruction);
+        if (Opcodes.isJump(opcode)) {
+            depth--;
+            return;
+        }
+        depth = depth - arity + 1;
+        maxDepth = Math.max(maxDepth, depth);
+        ensureBooleans();
+        booleans[depth - 1] = Opcodes.isBoolean(opcode);
+    }
+
+    private void ensureBooleans() {
+        if (depth > booleans.length) {
+            booleans = Arrays.copyOf(booleans, booleans.length * 2);
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+/**
+ * User-defined function of real arguments, see
+ * {@link FunctionRegistry#register(String, int, RealFunction, boolean)}.
+ * Use {@link java.util.function.DoubleUnaryOperator} and
+ * {@link java.util.function.DoubleBinaryOperator} for the functions of one
+ * and two arguments, they are called without any allocation.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+@FunctionalInterface
+public interface RealFunction {
+
+    /**
+     * Computes the function. The array may be reused by the caller, so the
+     * implementation must not keep it.
+     *
+     * @param arguments Values of the arguments, the length of the array is
+     *                  the arity of the function
+     * @return <code>double</code> result
+     * @since 8.0
+     */
+    double apply(double... arguments);
+
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.autsia.bracer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Evaluates the compiled expression over inputs of any size in bounded
+ * memory. The rows are read in chunks of fixed size, every chunk is evaluated
+ * by the batch engine of {@link CompiledExpression} and its results are
+ * written to the output channel before the next chunk is read. The columns of
+ * the input are bound to the variables of the expression by name, the columns
+ * that are not referenced by the expression are skipped.
+ * <p>
+ * Two formats are supported: raw rows of little-endian doubles and CSV with
+ * the header line. The results are written in the same format as the input,
+ * one value per row. Only the real parts of the results are written.
+ * <p>
+ * The evaluator reuses its buffers, so it is not thread-safe.
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+public final class StreamingEvaluator {
+
+    /**
+     * Default number of rows in a chunk
+     */
+    public static final int DEFAULT_CHUNK_ROWS = 8 * BatchEvaluator.CHUNK_SIZE;
+
+    private static final int DOUBLE_BYTES = 8;
+    /* maximal size of the region of the file mapped at once */
+    private static final long MAPPED_REGION_BYTES = 1 << 26;
+    /* size of the CSV buffers */
+    private static final int CSV_BUFFER_BYTES = 1 << 16;
+    /* longest output of Double.toString plus the line separator */
+    private static final int MAX_CSV_VALUE_BYTES = 32;
+    private static final char CSV_SEPARATOR = ',';
+
+    private final CompiledExpression expression;
+    private final int chunkRows;
+    /* values of the variables in the current chunk, one column per slot */
+    private final double[][] values;
+    /* results of the current chunk */
+    private final double[] result;
+
+    /**
+     * Creates the evaluator with the default chunk size
+     *
+     * @param expression Compiled expression
+     * @since 8.0
+     */
+    public StreamingEvaluator(CompiledExpression expression) {
+        this(expression, DEFAULT_CHUNK_ROWS);
+    }
+
+    /**
+     * Creates the evaluator
+     *
+     * @param expression Compiled expression
+     * @param chunkRows  Number of rows read and evaluated at once
+     * @throws IllegalArgumentException if the chunk size is not positive
+     * @since 8.0
+     */
+    public StreamingEvaluator(CompiledExpression expression, int chunkRows) {
+        if (chunkRows <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkRows);
+        }
+        this.expression = expression;
+        this.chunkRows = chunkRows;
+        this.values = new double[expression.variableCount()][chunkRows];
+        this.result = new double[chunkRows];
+    }
+
+    /**
+     * Evaluates the expression for every row of the binary input. Every row
+     * consists of one little-endian double per column, the rows follow each
+     * other without gaps. One little-endian double is written per row.
+     *
+     * @param input   Input channel, read to the end
+     * @param columns Names of the input columns
+     * @param output  Output channel
+     * @return <code>long</code> number of rows
+     * @throws IOException              if reading or writing fails or the
+     *                                  input ends inside a row
+     * @throws IllegalArgumentException if some variable has no column
+     * @since 8.0
+     */
+    public long evaluateBinary(ReadableByteChannel input, String[] columns, WritableByteChannel output)
+            throws IOException {
+        int[] slots = slots(columns);
+        int rowBytes = rowBytes(columns);
+        ByteBuffer in = ByteBuffer.allocateDirect(chunkRows * rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = ByteBuffer.allocateDirect(chunkRows * DOUBLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long total = 0;
+        boolean end = false;
+        while (!end) {
+            while (in.hasRemaining() && !end) {
+                end = input.read(in) < 0;
+            }
+            in.flip();
+            int rows = in.remaining() / rowBytes;
+            if (in.remaining() % rowBytes != 0) {
+                throw new IOException("Input ends inside row " + (total + rows + 1));
+            }
+            decode(in, rows, slots);
+            writeBinary(rows, out, output);
+            total += rows;
+            in.clear();
+        }
+        return total;
+    }
+
+    /**
+     * Evaluates the expression for every row of the binary file, see
+     * {@link #evaluateBinary(ReadableByteChannel, String[], WritableByteChannel)}.
+     * The file is mapped into memory region by region starting from the
+     * current position of the channel, so the rows are decoded without
+     * copying.
+     *
+     * @param input   Input file
+     * @param columns Names of the input columns
+     * @param output  Output channel
+     * @return <code>long</code> number of rows
+     * @throws IOException              if reading or writing fails or the
+     *                                  file ends inside a row
+     * @throws IllegalArgumentException if some variable has no column
+     * @since 8.0
+     */
+    public long evaluateMapped(FileChannel input, String[] columns, WritableByteChannel output) throws IOException {
+        int[] slots = slots(columns);
+        int rowBytes = rowBytes(columns);
+        long position = input.position();
+        long size = input.size();
+        if ((size - position) % rowBytes != 0) {
+            throw new IOException("Input ends inside row " + ((size - position) / rowBytes + 1));
+        }
+        long regionBytes = Math.max(1, MAPPED_REGION_BYTES / rowBytes) * rowBytes;
+        ByteBuffer out = ByteBuffer.allocateDirect(chunkRows * DOUBLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long total = 0;
+        while (position < size) {
+            MappedByteBuffer region = input.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(regionBytes, size - position));
+            region.order(ByteOrder.LITTLE_ENDIAN);
+            while (region.hasRemaining()) {
+                int rows = Math.min(chunkRows, region.remaining() / rowBytes);
+                decode(region, rows, slots);
+                writeBinary(rows, out, output);
+                total += rows;
+            }
+            position += region.capacity();
+        }
+        input.position(position);
+        return total;
+    }
+
+    /**
+     * Evaluates the expression for every row of the CSV input. The first
+     * line names the columns, the fields are separated by commas and the
+     * empty lines are skipped. One value per line is written, formatted by
+     * <code>Double.toString</code>.
+     *
+     * @param input  Input channel, read to the end
+     * @param output Output channel
+     * @return <code>long</code> number of rows
+     * @throws IOException              if reading or writing fails, the
+     *                                  header is missing, some line has the
+     *                                  wrong number of fields or some field
+     *                                  is not a number
+     * @throws IllegalArgumentException if some variable has no column
+     * @since 8.0
+     */
+    public long evaluateCsv(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        CsvReader reader = new CsvReader(input);
+        if (!reader.nextLine()) {
+            throw new IOException("Header line is missing");
+        }
+        int[] slots = slots(reader.header());
+        ByteBuffer out = ByteBuffer.allocate(CSV_BUFFER_BYTES);
+        long total = 0;
+        int rows = 0;
+        while (reader.nextLine()) {
+            int column = 0;
+            int from = 0;
+            for (int i = 0; i <= reader.line.length(); i++) {
+                if (i < reader.line.length() && reader.line.charAt(i) != CSV_SEPARATOR) {
+                    continue;
+                }
+                if (column < slots.length && slots[column] >= 0) {
+                    values[slots[column]][rows] = reader.number(from, i);
+                }
+                column++;
+                from = i + 1;
+            }
+            if (column != slots.length) {
+                throw new IOException("Line " + reader.lineNumber + " has " + column + " fields but "
+                        + slots.length + " expected");
+            }
+            if (++rows == chunkRows) {
+                writeCsv(rows, out, output);
+                total += rows;
+                rows = 0;
+            }
+        }
+        writeCsv(rows, out, output);
+        out.flip();
+        write(out, output);
+        return total + rows;
+    }
+
+    /* slot of every column or -1 for the columns not referenced */
+    private int[] slots(String[] columns) {
+        int[] slots = new int[columns.length];
+        boolean[] bound = new boolean[expression.variableCount()];
+        for (int column = 0; column < columns.length; column++) {
+            int slot = expression.getVariableIndex(columns[column]);
+            if (slot >= 0 && bound[slot]) {
+                throw new IllegalArgumentException("Duplicate column: " + columns[column]);
+            }
+            if (slot >= 0) {
+                bound[slot] = true;
+            }
+            slots[column] = slot;
+        }
+        for (int slot = 0; slot < bound.length; slot++) {
+            if (!bound[slot]) {
+                throw new IllegalArgumentException("Variable " + expression.getVariables().get(slot)
+                        + " is not bound to any column");
+            }
+        }
+        return slots;
+    }
+
+    private int rowBytes(String[] columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("Input has no columns");
+        }
+        if ((long) chunkRows * columns.length * DOUBLE_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Chunk of " + chunkRows + " rows of " + columns.length
+                    + " columns is too large");
+        }
+        return columns.length * DOUBLE_BYTES;
+    }
+
+    private void decode(ByteBuffer buffer, int rows, int[] slots) {
+        for (int row = 0; row < rows; row++) {
+            for (int slot : slots) {
+                double value = buffer.getDouble();
+                if (slot >= 0) {
+                    values[slot][row] = value;
+                }
+            }
+        }
+    }
+
+    private void writeBinary(int rows, ByteBuffer out, WritableByteChannel output) throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        BatchEvaluator.evaluate(expression, values, rows, result, null);
+        out.clear();
+        for (int row = 0; row < rows; row++) {
+            out.putDouble(result[row]);
+        }
+        out.flip();
+        write(out, output);
+    }
+
+    /* formats the results into the buffer, flushing it when it is full */
+    private void writeCsv(int rows, ByteBuffer out, WritableByteChannel output) throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        BatchEvaluator.evaluate(expression, values, rows, result, null);
+        for (int row = 0; row < rows; row++) {
+            if (out.remaining() < MAX_CSV_VALUE_BYTES) {
+                out.flip();
+                write(out, output);
+                out.clear();
+            }
+            String value = Double.toString(result[row]);
+            for (int i = 0; i < value.length(); i++) {
+                out.put((byte) value.charAt(i));
+            }
+            out.put((byte) '\n');
+        }
+    }
+
+    private static void write(ByteBuffer buffer, WritableByteChannel output) throws IOException {
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    /**
+     * Line reader of the CSV input that reuses its buffers
+     */
+    private static final class CsvReader {
+
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CSV_BUFFER_BYTES);
+        /* current line without the line separator */
+        private final StringBuilder line = new StringBuilder();
+        private long lineNumber;
+        private boolean end;
+
+        CsvReader(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        /* reads the next non-empty line, returns false at the end of the input */
+        boolean nextLine() throws IOException {
+            while (!end) {
+                line.setLength(0);
+                lineNumber++;
+                int c;
+                while ((c = next()) >= 0 && c != '\n') {
+                    line.append((char) c);
+                }
+                end = c < 0;
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                }
+                if (line.length() > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /* next byte or -1 at the end of the input */
+        private int next() throws IOException {
+            while (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                buffer.flip();
+                if (read < 0) {
+                    return -1;
+                }
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        String[] header() {
+            /* the bytes of the line were stored as chars one by one */
+            String header = new String(line.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+            String[] names = header.split(String.valueOf(CSV_SEPARATOR), -1);
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].trim();
+            }
+            return names;
+        }
+
+        /* parses the field of the current line */
+        double number(int from, int to) throws IOException {
+            while (from < to && line.charAt(from) == ' ') {
+                from++;
+            }
+            while (to > from && line.charAt(to - 1) == ' ') {
+                to--;
+            }
+            /* plain decimals are converted in place, the rest by the JDK */
+            boolean negative = from < to && line.charAt(from) == '-';
+            int digits = negative || from < to && line.charAt(from) == '+' ? from + 1 : from;
+            if (isPlainDecimal(digits, to)) {
+                double value = Lexer.decimal(line, digits, to);
+                if (!Double.isNaN(value)) {
+                    return negative ? -value : value;
+                }
+            }
+            try {
+                return Double.parseDouble(line.substring(from, to));
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + " has invalid number: " + line.substring(from, to), e);
+            }
+        }
+
+        /* digits with at most one point */
+        private boolean isPlainDecimal(int from, int to) {
+            boolean point = false;
+            boolean digit = false;
+            for (int i = from; i < to; i++) {
+                char c = line.charAt(i);
+                if (c == '.' && !point) {
+                    point = true;
+                } else if (c >= '0' && c <= '9') {
+                    digit = true;
+                } else {
+                    return false;
+                }
+            }
+            return digit;
+        }
+
+    }
+
+}
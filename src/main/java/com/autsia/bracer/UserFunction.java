@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer;
+
+import org.apache.commons.math3.complex.Complex;
+
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Registered user-defined function with its metadata
+ *
+ * @author Dmytro Titov
+ * @version 7.1
+ * @since 8.0
+ */
+final class UserFunction {
+
+    /* kinds of the implementation */
+    static final int UNARY = 0;
+    static final int BINARY = 1;
+    static final int REAL = 2;
+    static final int COMPLEX = 3;
+
+    private final String name;
+    private final int arity;
+    private final boolean pure;
+    private final int kind;
+    /* DoubleUnaryOperator, DoubleBinaryOperator, RealFunction or ComplexFunction */
+    private final Object implementation;
+
+    UserFunction(String name, int arity, boolean pure, int kind, Object implementation) {
+        this.name = name;
+        this.arity = arity;
+        this.pure = pure;
+        this.kind = kind;
+        this.implementation = implementation;
+    }
+
+    String name() {
+        return name;
+    }
+
+    int arity() {
+        return arity;
+    }
+
+    /* pure functions always give the same result for the same arguments */
+    boolean isPure() {
+        return pure;
+    }
+
+    int kind() {
+        return kind;
+    }
+
+    Object implementation() {
+        return implementation;
+    }
+
+    boolean isReal() {
+        return kind != COMPLEX;
+    }
+
+    /**
+     * Computes the real function
+     *
+     * @param stack Values of the arguments
+     * @param first Index of the first argument
+     * @return <code>double</code> result
+     */
+    double applyReal(double[] stack, int first) {
+        switch (kind) {
+            case UNARY:
+                return ((DoubleUnaryOperator) implementation).applyAsDouble(stack[first]);
+            case BINARY:
+                return ((DoubleBinaryOperator) implementation).applyAsDouble(stack[first], stack[first + 1]);
+            default:
+                return ((RealFunction) implementation).apply(Arrays.copyOfRange(stack, first, first + arity));
+        }
+    }
+
+    /**
+     * Computes the function over complex numbers and stores the result in
+     * place of the first argument. Real functions of complex arguments give
+     * NaN.
+     *
+     * @param re    Real parts of the arguments
+     * @param im    Imaginary parts of the arguments
+     * @param first Index of the first argument
+     */
+    void applyComplex(double[] re, double[] im, int first) {
+        if (kind == COMPLEX) {
+            Complex[] arguments = new Complex[arity];
+            for (int i = 0; i < arity; i++) {
+                arguments[i] = new Complex(re[first + i], im[first + i]);
+            }
+            Complex result = ((ComplexFunction) implementation).apply(arguments);
+            ComplexOps.set(result.getReal(), result.getImaginary(), re, im, first);
+            return;
+        }
+        for (int i = 0; i < arity; i++) {
+            if (im[first + i] != 0) {
+                ComplexOps.nan(re, im, first);
+                return;
+            }
+        }
+        ComplexOps.set(applyReal(re, first), 0, re, im, first);
+    }
+
+}
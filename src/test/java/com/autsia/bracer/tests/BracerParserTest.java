@@ -23,6 +23,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.text.ParseException;
 import java.util.Collection;
 
 /**
@@ -66,6 +67,18 @@ public class BracerParserTest {
         Assert.assertEquals(OUTPUT, bracerParser.evaluate(4));
     }
 
+    @Test
+    public void testEvaluateMultipleVars() throws Exception {
+        bracerParser.parse("x*y_2+sin(Angle)");
+        Assert.assertEquals("7.000", bracerParser.evaluate(2, 3.5, 0));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testEvaluateMissingVar() throws Exception {
+        bracerParser.parse(INPUT_VAR);
+        bracerParser.evaluate();
+    }
+
     @Test
     public void testEvaluateComplexNoVar() throws Exception {
         bracerParser.parse(INPUT_NOVAR);
@@ -119,4 +132,60 @@ public class BracerParserTest {
         Assert.assertEquals("1", bracerParser.evaluate());
     }
 
+    @Test
+    public void testKeywordsInsideIdentifiers() throws Exception {
+        bracerParser.parse("(order + band) or false");
+        Assert.assertEquals("1", bracerParser.evaluate(0.5, 0.5));
+    }
+
+    @Test
+    public void testUnarySign() throws Exception {
+        bracerParser.parse("2*-3 + (-1) - +4");
+        Assert.assertEquals("-11.000", bracerParser.evaluate());
+    }
+
+    @Test
+    public void testDegree() throws Exception {
+        bracerParser.parse("sin(90\u00B0) + 1e-1");
+        Assert.assertEquals("1.100", bracerParser.evaluate());
+    }
+
+    @Test
+    public void testErrorOffset() throws Exception {
+        try {
+            bracerParser.parse("1 + 2 # 3");
+            Assert.fail();
+        } catch (ParseException e) {
+            Assert.assertEquals(6, e.getErrorOffset());
+        }
+        try {
+            bracerParser.parse("sin(x) 2");
+            Assert.fail();
+        } catch (ParseException e) {
+            Assert.assertEquals(7, e.getErrorOffset());
+        }
+        try {
+            bracerParser.parse("1 + 2)");
+            Assert.fail();
+        } catch (ParseException e) {
+            Assert.assertEquals(5, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void testNumberLiterals() throws Exception {
+        String[] literals = {"0", "007", "0.1", "3.14159", ".5", "5.", "123456789012345",
+                "1234567890123456789", "0.000000000000000000000000123", "2.5e-3", "1E10", "9007199254740993"};
+        for (String literal : literals) {
+            Assert.assertEquals(literal, Double.parseDouble(literal),
+                    bracerParser.parse(literal).evaluateReal(), 0);
+        }
+    }
+
+    @Test
+    public void testFunctionNamesAsPrefix() throws Exception {
+        bracerParser.parse("sinh(0) + sine + notes");
+        Assert.assertEquals("3.000", bracerParser.evaluate(1, 2));
+    }
+
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.JitCompiler;
+import org.apache.commons.math3.complex.Complex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test class for {@link CompiledExpression}.
+ */
+public class CompiledExpressionTest {
+
+    private final String INPUT_NOVAR = "-sin(3+4I+cosh(6*I)/exp(10/pow(22,-1)))";
+    private final String INPUT_VAR = "-sin(3+var*I+cosh(10*I)/exp(10/pow(22,-1)))";
+    private final double DELTA = 1e-3;
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() throws Exception {
+        bracerParser = new BracerParser(3);
+    }
+
+    @Test
+    public void testParseReturnsCompiledExpression() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse(INPUT_NOVAR);
+        Assert.assertSame(compiledExpression, bracerParser.getCompiledExpression());
+        Assert.assertFalse(compiledExpression.hasVariable());
+    }
+
+    @Test
+    public void testEvaluateNoVar() throws Exception {
+        Complex result = bracerParser.parse(INPUT_NOVAR).evaluateComplex();
+        Assert.assertEquals(-3.854, result.getReal(), DELTA);
+        Assert.assertEquals(27.017, result.getImaginary(), DELTA);
+    }
+
+    @Test
+    public void testEvaluateVar() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse(INPUT_VAR);
+        Assert.assertTrue(compiledExpression.hasVariable());
+        Complex result = compiledExpression.evaluateComplex(4);
+        Assert.assertEquals(-3.854, result.getReal(), DELTA);
+        Assert.assertEquals(27.017, result.getImaginary(), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvaluateMissingVar() throws Exception {
+        bracerParser.parse(INPUT_VAR).evaluateComplex();
+    }
+
+    @Test
+    public void testVariableSlots() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("price*qty*(1+rate)-price");
+        Assert.assertEquals(Arrays.asList("price", "qty", "rate"), compiledExpression.getVariables());
+        Assert.assertEquals(2, compiledExpression.getVariableIndex("rate"));
+        Assert.assertEquals(-1, compiledExpression.getVariableIndex("var"));
+        Assert.assertEquals(10 * 3 * 1.5 - 10, compiledExpression.evaluateReal(10, 3, 0.5), 0);
+        Assert.assertEquals(new Complex(10 * 3 * 1.5 - 10), compiledExpression.evaluateComplex(10, 3, 0.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingVariableValue() throws Exception {
+        bracerParser.parse("x+y").evaluateReal(1);
+    }
+
+    @Test
+    public void testIndependentOfParser() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("var*2");
+        bracerParser.parse("var+100");
+        Assert.assertEquals(new Complex(6), compiledExpression.evaluateComplex(3));
+    }
+
+    @Test
+    public void testUnaryNotOperand() throws Exception {
+        Assert.assertEquals(Complex.ONE, bracerParser.parse("true & !false").evaluateComplex());
+    }
+
+    @Test
+    public void testFullPrecision() throws Exception {
+        Assert.assertEquals(new Complex(1.0 / 3), bracerParser.parse("1/3").evaluateComplex());
+    }
+
+    @Test
+    public void testMatchesCommonsMath() throws Exception {
+        Complex z = new Complex(0.3, 0.7);
+        Complex w = new Complex(-1.5, 0.25);
+        Assert.assertEquals(z.acos(), bracerParser.parse("acos(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(z.asin(), bracerParser.parse("asin(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(z.atan(), bracerParser.parse("atan(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(z.tan(), bracerParser.parse("tan(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(z.tanh(), bracerParser.parse("tanh(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(z.sqrt(), bracerParser.parse("sqrt(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(w.pow(z), bracerParser.parse("pow(-1.5+0.25I,0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(w.divide(z), bracerParser.parse("(-1.5+0.25I)/(0.3+0.7I)").evaluateComplex());
+        Assert.assertEquals(new Complex(w.abs()), bracerParser.parse("abs(-1.5+0.25I)").evaluateComplex());
+        Assert.assertEquals(new Complex(w.getArgument()), bracerParser.parse("arg(-1.5+0.25I)").evaluateComplex());
+    }
+
+    @Test
+    public void testRealInference() throws Exception {
+        Assert.assertTrue(bracerParser.parse("sin(var)*2+sqrt(var)").isReal());
+        Assert.assertFalse(bracerParser.parse(INPUT_VAR).isReal());
+    }
+
+    @Test
+    public void testEvaluateReal() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("sin(var)*2+sqrt(var)");
+        Assert.assertEquals(Math.sin(0.5) * 2 + Math.sqrt(0.5), compiledExpression.evaluateReal(0.5), 0);
+        Assert.assertEquals(new Complex(Math.sin(0.5) * 2 + Math.sqrt(0.5)), compiledExpression.evaluateComplex(0.5));
+    }
+
+    @Test
+    public void testRealFallbackToComplex() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("sqrt(var)+pow(var,0.5)+log(var)");
+        Complex result = compiledExpression.evaluateComplex(-4);
+        Assert.assertEquals(Math.log(4), result.getReal(), 1e-12);
+        Assert.assertEquals(4 + Math.PI, result.getImaginary(), 1e-12);
+        Assert.assertEquals(-8, bracerParser.parse("pow(-2,3)").evaluateReal(), 0);
+    }
+
+    @Test
+    public void testEvaluateBatchReal() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("sqrt(x)*y+log(x)-pow(y,0.5)+(x|y)");
+        int rows = 3000;
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = (i - 100) * 0.37;
+            y[i] = i % 7;
+        }
+        double[] result = new double[rows];
+        double[] resultRe = new double[rows];
+        double[] resultIm = new double[rows];
+        compiledExpression.evaluateBatch(new double[][]{x, y}, result);
+        compiledExpression.evaluateBatch(new double[][]{x, y}, resultRe, resultIm);
+        for (int i = 0; i < rows; i++) {
+            Complex expected = compiledExpression.evaluateComplex(x[i], y[i]);
+            Assert.assertEquals(expected.getReal(), result[i], 0);
+            Assert.assertEquals(expected.getReal(), resultRe[i], 0);
+            Assert.assertEquals(expected.getImaginary(), resultIm[i], 0);
+        }
+    }
+
+    @Test
+    public void testEvaluateBatchComplex() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse(INPUT_VAR);
+        double[] column = {0, 1, 2, 3, 4};
+        double[] resultRe = new double[column.length];
+        double[] resultIm = new double[column.length];
+        compiledExpression.evaluateBatch(new double[][]{column}, resultRe, resultIm);
+        for (int i = 0; i < column.length; i++) {
+            Assert.assertEquals(compiledExpression.evaluateComplex(column[i]), new Complex(resultRe[i], resultIm[i]));
+        }
+        double[] result = new double[column.length];
+        compiledExpression.evaluateBatch(column, result);
+        Assert.assertEquals(resultRe[4], result[4], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvaluateBatchShortColumn() throws Exception {
+        bracerParser.parse("x+y").evaluateBatch(new double[][]{new double[3], new double[2]}, new double[3]);
+    }
+
+    @Test
+    public void testNaN() throws Exception {
+        Assert.assertTrue(bracerParser.parse("(1+I-I)/0").evaluateComplex().isNaN());
+    }
+
+    @Test
+    public void testZeroDivisorAndBaseMatchComplex() throws Exception {
+        for (String input : new String[]{"1/x", "pow(x,0)", "pow(x,2)", "pow(x,-1)", "pow(x,0.5)"}) {
+            CompiledExpression real = bracerParser.parse(input);
+            CompiledExpression complex = bracerParser.parse(input + "+0*I");
+            Assert.assertTrue(real.isReal());
+            Assert.assertTrue(input, complex.evaluateComplex(0).isNaN());
+            Assert.assertTrue(input, real.evaluateComplex(0).isNaN());
+            Assert.assertTrue(input, Double.isNaN(real.evaluateReal(0)));
+            double[] result = new double[1];
+            real.evaluateBatch(new double[]{0}, result);
+            Assert.assertTrue(input, Double.isNaN(result[0]));
+        }
+        Assert.assertTrue(Double.isNaN(bracerParser.parse("1/0").evaluateReal()));
+        Assert.assertTrue(Double.isNaN(bracerParser.parse("pow(0,0)").evaluateReal()));
+        Assert.assertTrue(bracerParser.parse("1/0+0*I").evaluateComplex().isNaN());
+        Assert.assertTrue(bracerParser.parse("pow(0,0)+0*I").evaluateComplex().isNaN());
+    }
+
+    @Test
+    public void testNonFiniteFollowsMath() throws Exception {
+        /* the real engine keeps to Math on overflow and on non-finite operands, the complex one to Complex */
+        String[] inputs = {"pow(x,0)", "pow(x,0)", "exp(x)", "cosh(x)", "sinh(x)", "pow(2,x)"};
+        double[] values = {Double.NaN, Double.POSITIVE_INFINITY, 1000, 1000, -1000, 2000};
+        double[] expected = {1, 1, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY};
+        for (int i = 0; i < inputs.length; i++) {
+            CompiledExpression real = bracerParser.parse(inputs[i]);
+            String message = inputs[i] + " at " + values[i];
+            Assert.assertEquals(message, expected[i], real.evaluateReal(values[i]), 0);
+            Assert.assertEquals(message, new Complex(expected[i]), real.evaluateComplex(values[i]));
+            Assert.assertEquals(message, expected[i], JitCompiler.compile(real).evaluate(values[i]), 0);
+            Complex complex = bracerParser.parse(inputs[i] + "+0*I").evaluateComplex(values[i]);
+            Assert.assertTrue(message, Double.isNaN(complex.getImaginary()));
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testMissingOperand() throws Exception {
+        bracerParser.parse("pow(2)");
+    }
+
+    @Test
+    public void testConcurrentEvaluation() throws Exception {
+        final CompiledExpression compiledExpression = bracerParser.parse("var*var+1");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int i = 0; i < 10000; i++) {
+                            if (compiledExpression.evaluateComplex(i).getReal() != (double) i * i + 1) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                Assert.assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.ComplexFormatter;
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.complex.ComplexFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Test class for {@link ComplexFormatter}.
+ */
+public class ComplexFormatterTest {
+
+    private final int[] PRECISIONS = {0, 1, 2, 3, 6, 10, 17, 18, 19, 25};
+    private final double[] VALUES = {0, -0.0, 1, -1, 0.5, 1.5, 2.5, -2.5, 0.125, 0.0005, -0.0005, 1.0005, 2.675,
+            0.1, 999.9995, 1234567.891, 1e15, 1e16, 1e19, 1e300, 4.9e-324, 1e-310, Double.MAX_VALUE,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+    @Test
+    public void testSameAsComplexFormat() {
+        Random random = new Random(42);
+        for (int precision : PRECISIONS) {
+            ComplexFormat complexFormat = complexFormat(precision);
+            ComplexFormatter formatter = new ComplexFormatter(precision);
+            for (double re : VALUES) {
+                for (double im : VALUES) {
+                    assertSame(complexFormat, formatter, re, im);
+                }
+            }
+            for (int i = 0; i < 500; i++) {
+                assertSame(complexFormat, formatter, random(random, precision), i % 3 == 0 ? 0 : random(random,
+                        precision));
+            }
+        }
+    }
+
+    @Test
+    public void testShape() {
+        ComplexFormatter formatter = new ComplexFormatter(3);
+        Assert.assertEquals("-3.854 + 27.017I", formatter.format(new Complex(-3.854, 27.017)));
+        Assert.assertEquals("1,234.500 - 2.000I", formatter.format(1234.5, -2));
+        Assert.assertEquals("(NaN) + (NaN)I", formatter.format(Complex.NaN));
+        Assert.assertEquals("-0.000", formatter.format(-0.0001, -0.0));
+        Assert.assertEquals("2 + I", new ComplexFormatter(0).format(2.4, 1.4));
+        Assert.assertEquals(0, new ComplexFormatter(-2).getPrecision());
+    }
+
+    @Test
+    public void testAppendable() throws Exception {
+        ComplexFormatter formatter = new ComplexFormatter(2);
+        StringBuilder output = new StringBuilder("x = ");
+        Assert.assertSame(output, formatter.formatTo(1.005, 0.5, output));
+        Assert.assertEquals("x = 1.00 + 0.50I", output.toString());
+        StringWriter writer = new StringWriter();
+        formatter.formatTo(-1e20, 0, writer).write(';');
+        Assert.assertEquals("-100,000,000,000,000,000,000.00;", writer.toString());
+    }
+
+    @Test
+    public void testThreadSafety() {
+        ComplexFormatter formatter = new ComplexFormatter(4);
+        ComplexFormat complexFormat = complexFormat(4);
+        String[] expected = new String[2000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = complexFormat.format(new Complex(value(i), -value(i) * 1e12));
+        }
+        IntStream.range(0, expected.length).parallel().forEach(i ->
+                Assert.assertEquals(expected[i], formatter.format(value(i), -value(i) * 1e12)));
+    }
+
+    @Test
+    public void testParser() throws Exception {
+        BracerParser bracerParser = new BracerParser(3);
+        bracerParser.parse("x / 3 + I");
+        StringBuilder output = new StringBuilder();
+        bracerParser.evaluate(output, 1).append("; ");
+        bracerParser.evaluate(output, 2);
+        Assert.assertEquals("0.333 + 1.000I; 0.667 + 1.000I", output.toString());
+        Assert.assertEquals(new Complex(0.333, 1), bracerParser.evaluateComplex(1));
+        Assert.assertEquals("0.333 + 1.000I", bracerParser.getFormatter().format(
+                bracerParser.getCompiledExpression().evaluateComplex(1)));
+        bracerParser.setPrecision(0);
+        Assert.assertEquals(new Complex(1, 1), bracerParser.evaluateComplex(2));
+    }
+
+    private void assertSame(ComplexFormat complexFormat, ComplexFormatter formatter, double re, double im) {
+        Assert.assertEquals(re + " " + im, complexFormat.format(new Complex(re, im)), formatter.format(re, im));
+    }
+
+    private static ComplexFormat complexFormat(int precision) {
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        numberFormat.setMinimumFractionDigits(precision);
+        numberFormat.setMaximumFractionDigits(precision);
+        return new ComplexFormat("I", numberFormat, numberFormat);
+    }
+
+    /* decimal literals halfway at the precision, arbitrary bits and plain magnitudes */
+    private static double random(Random random, int precision) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return (random.nextInt(2000000) - 1000000 + 0.5) / Math.pow(10, Math.min(precision, 22));
+            case 1:
+                return Double.longBitsToDouble(random.nextLong());
+            default:
+                return (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40) - 20);
+        }
+    }
+
+    private static double value(int i) {
+        return (i - 1000) / 7.0;
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.EvaluationContext;
+import com.autsia.bracer.FunctionRegistry;
+import com.autsia.bracer.GradientEvaluator;
+import com.autsia.bracer.JitCompiler;
+import com.autsia.bracer.JitExpression;
+import org.apache.commons.math3.complex.Complex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for comparisons, short-circuit "&amp;", "|" and "if".
+ */
+public class ConditionalTest {
+
+    private final String[] INPUTS = {"x < 1", "x <= 1", "x > 1", "x >= 1", "x == 1", "x != 1",
+            "x > 0 & sqrt(x) < 2", "x < 0 | log(x) > 1", "if(x >= 0, sqrt(x), -x)",
+            "if(x > 1, if(x > 3, 3, x * 2), x & x + 1 > 1)", "!(x > 0) | x == 2", "1 + x * 2 < 6 and x != 0",
+            "if(x > 0, x < 2, x == 0)", "if(x <= 0, 1, sin(x) * sin(x) + x > 1 | sin(x) > 0.5)"};
+    private final double[] VALUES = {-4, -1, -0.0, 0, 0.5, 1, 2, 3.75, 7, Double.NaN, Double.POSITIVE_INFINITY};
+    private final AtomicInteger calls = new AtomicInteger();
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() {
+        bracerParser = new BracerParser(3);
+        bracerParser.setFunctionRegistry(new FunctionRegistry()
+                .register("counter", 0, a -> calls.incrementAndGet(), false));
+    }
+
+    @Test
+    public void testComparisons() throws Exception {
+        String[][] cases = {{"2 < 3", "1"}, {"3 < 3", "0"}, {"3 <= 3", "1"}, {"2 > 3", "0"}, {"3 >= 3", "1"},
+                {"2 == 2", "1"}, {"2 != 2", "0"}, {"NaN == NaN", "0"}, {"NaN != NaN", "1"}, {"NaN < 1", "0"},
+                {"I == I", "1"}, {"I != 1", "1"}, {"I > 0", "0"}, {"I < 1", "0"}, {"1 + 2 < 4 & 3 > 2", "1"}};
+        for (String[] entry : cases) {
+            bracerParser.parse(entry[0]);
+            Assert.assertEquals(entry[0], entry[1], bracerParser.evaluate());
+        }
+    }
+
+    @Test
+    public void testPrecedence() throws Exception {
+        bracerParser.parse("1 | 0 & 0");
+        Assert.assertEquals("1", bracerParser.evaluate());
+        bracerParser.parse("x + 1 > 2 * x");
+        Assert.assertEquals("1", bracerParser.evaluate(0.5));
+        Assert.assertEquals("0", bracerParser.evaluate(2));
+        bracerParser.parse("-x < 0");
+        Assert.assertEquals("1", bracerParser.evaluate(1));
+    }
+
+    @Test
+    public void testLogicalBelowMultiplicative() throws Exception {
+        /* before 8.0 "&" and "|" shared the precedence of "*" and "/", so these gave 0 */
+        bracerParser.parse("1 | 1 * 0");
+        Assert.assertEquals("1", bracerParser.evaluate());
+        bracerParser.parse("1 & 2 * 0.5");
+        Assert.assertEquals("1", bracerParser.evaluate());
+        bracerParser.parse("x * 2 & 1");
+        Assert.assertEquals("0", bracerParser.evaluate(1));
+        Assert.assertEquals("1", bracerParser.evaluate(0.5));
+        bracerParser.parse("(1 | 1) * 0");
+        Assert.assertEquals("0.000", bracerParser.evaluate());
+    }
+
+    @Test
+    public void testShortCircuit() throws Exception {
+        calls.set(0);
+        bracerParser.parse("0 & counter() > 0");
+        Assert.assertEquals("0", bracerParser.evaluate());
+        bracerParser.parse("1 | counter() > 0");
+        Assert.assertEquals("1", bracerParser.evaluate());
+        bracerParser.parse("if(x > 0, 5, counter())");
+        Assert.assertEquals("5.000", bracerParser.evaluate(1));
+        Assert.assertEquals(0, calls.get());
+        Assert.assertEquals("1.000", bracerParser.evaluate(-1));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testEnginesSkipUntakenBranches() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("x > 0 & counter() > 0");
+        JitExpression jitExpression = JitCompiler.compile(compiledExpression);
+        Assert.assertTrue(jitExpression.getClass().getName().startsWith("com.autsia.bracer.jit."));
+        calls.set(0);
+        Assert.assertEquals(0, jitExpression.evaluate(-1), 0);
+        double[] result = new double[4];
+        compiledExpression.evaluateBatch(new double[]{-1, -2, -3, -4}, result);
+        compiledExpression.optimize().evaluateReal(-1);
+        Assert.assertEquals(0, calls.get());
+        Assert.assertEquals(1, jitExpression.evaluate(1), 0);
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testRealDomainKept() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("if(x >= 0, sqrt(x), sqrt(-x))");
+        Assert.assertTrue(compiledExpression.isReal());
+        Assert.assertEquals(new Complex(2), compiledExpression.evaluateComplex(-4));
+        Assert.assertEquals(2, JitCompiler.compile(compiledExpression).evaluate(-4), 0);
+    }
+
+    @Test
+    public void testComparisonsAfterFallback() throws Exception {
+        /* sqrt(x) sends the whole program to the complex engine, where atan leaves a residue in the imaginary part */
+        CompiledExpression compiledExpression = bracerParser.parse("if(atan(-2.5) < 1, 10, 20) + sqrt(x)");
+        Assert.assertEquals(new Complex(10, 1), compiledExpression.evaluateComplex(-1));
+        Assert.assertEquals(new Complex(11), compiledExpression.evaluateComplex(1));
+        Assert.assertEquals(10, compiledExpression.newGradientEvaluator().evaluate(-1), 0);
+        double[] resultRe = new double[1];
+        double[] resultIm = new double[1];
+        compiledExpression.evaluateBatch(new double[][]{{-1}}, resultRe, resultIm);
+        Assert.assertEquals(new Complex(10, 1), new Complex(resultRe[0], resultIm[0]));
+        String[][] cases = {{"atan(-2.5) < 1 + 0*I", "1"}, {"acos(0.3) > 1 + 0*I", "1"},
+                {"asin(0.3) == asin(0.3) + 0*I", "1"}, {"1 + 1e-9*I > 0", "0"}, {"1 + 1e-9*I == 1", "0"}};
+        for (String[] entry : cases) {
+            bracerParser.parse(entry[0]);
+            Assert.assertEquals(entry[0], entry[1], bracerParser.evaluate());
+        }
+    }
+
+    @Test
+    public void testBooleanResult() throws Exception {
+        Assert.assertTrue(bracerParser.parse("if(x > 0, x < 2, x == 0)").isBoolean());
+        Assert.assertEquals("1", bracerParser.evaluate(1));
+        Assert.assertFalse(bracerParser.parse("if(x > 0, x < 2, 3)").isBoolean());
+        Assert.assertEquals("3.000", bracerParser.evaluate(-1));
+        Assert.assertTrue(bracerParser.parse("x & sin(x)").isBoolean());
+    }
+
+    @Test
+    public void testComplexBranches() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("if(x == 0, I, x * I) + (x > 1 | I == I)");
+        Assert.assertEquals(new Complex(1, 1), compiledExpression.evaluateComplex(0));
+        Assert.assertEquals(new Complex(1, 2), compiledExpression.evaluateComplex(2));
+        Assert.assertEquals(compiledExpression.evaluateComplex(2), compiledExpression.optimize().evaluateComplex(2));
+    }
+
+    @Test
+    public void testAllEnginesAgree() throws Exception {
+        for (String input : INPUTS) {
+            CompiledExpression compiledExpression = new BracerParser(3).parse(input);
+            CompiledExpression optimized = compiledExpression.optimize();
+            JitExpression jitExpression = JitCompiler.compile(compiledExpression);
+            JitExpression optimizedJit = JitCompiler.compile(optimized);
+            EvaluationContext context = compiledExpression.newContext();
+            GradientEvaluator gradientEvaluator = compiledExpression.newGradientEvaluator();
+            double[] batch = new double[VALUES.length];
+            double[] optimizedBatch = new double[VALUES.length];
+            compiledExpression.evaluateBatch(VALUES, batch);
+            optimized.evaluateBatch(VALUES, optimizedBatch);
+            for (int i = 0; i < VALUES.length; i++) {
+                double expected = compiledExpression.evaluateReal(VALUES[i]);
+                String message = input + " at " + VALUES[i];
+                assertIdentical(message, expected, optimized.evaluateReal(VALUES[i]));
+                assertIdentical(message, expected, jitExpression.evaluate(VALUES[i]));
+                assertIdentical(message, expected, optimizedJit.evaluate(VALUES[i]));
+                assertIdentical(message, expected, context.evaluate(VALUES[i]));
+                assertIdentical(message, expected, gradientEvaluator.evaluate(VALUES[i]));
+                assertIdentical(message, expected, batch[i]);
+                assertIdentical(message, expected, optimizedBatch[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimizedProgram() throws Exception {
+        bracerParser.setOptimizing(true);
+        bracerParser.parse("x > 0 & sin(x) > 0");
+        Assert.assertTrue(bracerParser.getStackRPN().contains("&? 8"));
+        bracerParser.parse("true & x > 0 | false");
+        Assert.assertFalse(bracerParser.getStackRPN().toString().contains("?"));
+        bracerParser.parse("if(1 < 2, x, sin(x))");
+        Assert.assertEquals("[x]", bracerParser.getStackRPN().toString());
+        bracerParser.parse("if(x > 0, sin(x) * sin(x), sin(x))");
+        Assert.assertEquals("0.708", bracerParser.evaluate(1));
+        Assert.assertEquals("-0.841", bracerParser.evaluate(-1));
+    }
+
+    @Test
+    public void testDerivatives() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("if(x > 0, x * x, -x) + (x > 1)");
+        CompiledExpression derivative = compiledExpression.derivative("x");
+        Assert.assertEquals(6, derivative.evaluateReal(3), 0);
+        Assert.assertEquals(-1, derivative.evaluateReal(-2), 0);
+        GradientEvaluator gradientEvaluator = compiledExpression.newGradientEvaluator();
+        gradientEvaluator.evaluate(3);
+        Assert.assertEquals(6, gradientEvaluator.getDerivative("x"), 0);
+        gradientEvaluator.evaluate(-2);
+        Assert.assertEquals(-1, gradientEvaluator.getDerivative("x"), 0);
+    }
+
+    @Test
+    public void testInvalidConditionals() {
+        for (String input : new String[]{"if(1, 2)", "if(1, 2, 3, 4)", "if(, 1, 2)", "if(1, , 2)", "if(1, 2, )",
+                "1 = 2", "x &", "| x", "if 1", "1 < "}) {
+            try {
+                bracerParser.parse(input);
+                Assert.fail(input);
+            } catch (ParseException e) {
+                Assert.assertNotNull(e.getMessage());
+            }
+        }
+    }
+
+    private void assertIdentical(String message, double expected, double actual) {
+        Assert.assertEquals(message, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+}
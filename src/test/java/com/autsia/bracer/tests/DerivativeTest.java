@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.FunctionRegistry;
+import com.autsia.bracer.GradientEvaluator;
+import org.apache.commons.math3.complex.Complex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test class for {@link GradientEvaluator} and
+ * {@link CompiledExpression#derivative(String)}.
+ */
+public class DerivativeTest {
+
+    private final String[] INPUTS = {
+            "sin(x)*cos(y) + exp(x/3) - log(y) + sqrt(x*y) + tan(x/4) + atan(x) + asin(x/4) + acos(y/5)",
+            "sinh(x/2) + cosh(y/3) + tanh(x) + pow(x, y) + abs(x - y) / (1 + x*x) - neg(x*y) + pow(2, x) + pow(y, 3)",
+            "sin(x + y*I) * cosh(x*I) + exp(x*y*I) / log(y + I) + sqrt(x - I) + tan(x*I + 0.5) + tanh(y + x*I)",
+            "atan(x + 0.5*I) + asin(x*I) + acos(y + I) + sinh(x*I*y) + pow(x + I, y) + cos(y*I)",
+            "conj(x*I + y) * real(x*I + y) + imag(x*x*I) + abs(x + y*I) + arg(x + y*I) + (x or y)"};
+    private final double[][] POINTS = {{0.7, 1.3}, {-0.4, 2.2}, {1.9, 0.6}};
+    private static final double H = 1e-6;
+
+    @Test
+    public void testGradient() throws Exception {
+        for (String input : INPUTS) {
+            for (boolean optimizing : new boolean[]{false, true}) {
+                BracerParser bracerParser = new BracerParser(3);
+                bracerParser.setOptimizing(optimizing);
+                CompiledExpression compiledExpression = bracerParser.parse(input);
+                GradientEvaluator gradientEvaluator = compiledExpression.newGradientEvaluator();
+                for (double[] point : POINTS) {
+                    double[] values = values(compiledExpression, point);
+                    Complex value = compiledExpression.evaluateComplex(values);
+                    Assert.assertEquals(input, value.getReal(), gradientEvaluator.evaluate(values), 0);
+                    Assert.assertEquals(input, value.getImaginary(), gradientEvaluator.getImaginary(), 0);
+                    for (String variable : new String[]{"x", "y"}) {
+                        int slot = compiledExpression.getVariableIndex(variable);
+                        Complex expected = difference(compiledExpression, values, slot);
+                        String message = input + " d/d" + variable + " at " + point[0] + ", " + point[1];
+                        assertClose(message, expected, new Complex(gradientEvaluator.getDerivative(slot),
+                                gradientEvaluator.getDerivativeImaginary(slot)));
+                        assertClose(message, expected,
+                                compiledExpression.derivative(variable).evaluateComplex(values));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEscapeToComplex() throws Exception {
+        GradientEvaluator gradientEvaluator = new BracerParser(3).parse("sqrt(x) + log(x)").newGradientEvaluator();
+        Assert.assertEquals(0.5 + 0.25, gradientEvaluator.evaluate(4) - Math.log(4) - 2 + 0.75, 1e-15);
+        Assert.assertEquals(0.5, gradientEvaluator.getDerivative("x"), 1e-15);
+        gradientEvaluator.evaluate(-4);
+        Assert.assertEquals(-0.25, gradientEvaluator.getDerivative(0), 1e-15);
+        Assert.assertEquals(-0.25, gradientEvaluator.getDerivativeImaginary(0), 1e-15);
+        Assert.assertArrayEquals(new double[]{-0.25}, gradientEvaluator.getGradient(), 1e-15);
+    }
+
+    @Test
+    public void testSymbolicMatchesGradientOutOfRealDomain() throws Exception {
+        String[] inputs = {"imag(sqrt(x))", "abs(sqrt(x))", "real(sqrt(x))", "conj(sqrt(x))", "arg(sqrt(x))",
+                "abs(asin(x))", "arg(log(x))", "imag(acos(x)) * x", "pow(neg(2), x)", "x * log(neg(3))"};
+        for (String input : inputs) {
+            CompiledExpression compiledExpression = new BracerParser(3).parse(input);
+            Assert.assertTrue(input, compiledExpression.isReal());
+            GradientEvaluator gradientEvaluator = compiledExpression.newGradientEvaluator();
+            CompiledExpression derivative = compiledExpression.derivative("x");
+            for (double x : new double[]{-4, 2, 0.5}) {
+                gradientEvaluator.evaluate(x);
+                String message = input + " at " + x;
+                Complex expected = new Complex(gradientEvaluator.getDerivative(0),
+                        gradientEvaluator.getDerivativeImaginary(0));
+                assertClose(message, expected, derivative.evaluateComplex(x));
+                assertClose(message, expected, difference(compiledExpression, new double[]{x}, 0));
+            }
+        }
+        Assert.assertEquals(-0.25, new BracerParser(3).parse("imag(sqrt(x))").derivative("x").evaluateReal(-4),
+                1e-15);
+        Assert.assertEquals(-0.25, new BracerParser(3).parse("abs(sqrt(x))").derivative("x").evaluateReal(-4),
+                1e-15);
+        /* neg(2) is -2 - 0I on the complex engine, the folded constant keeps the side of the branch cut */
+        Complex derivative = new BracerParser(3).parse("pow(neg(2), x)").derivative("x").evaluateComplex(0.5);
+        Assert.assertEquals(-0.98, derivative.getImaginary(), 0.01);
+    }
+
+    @Test
+    public void testSymbolicDerivative() throws Exception {
+        CompiledExpression derivative = new BracerParser(3).parse("x*x*y + 3*y").derivative("x");
+        Assert.assertEquals(Double.doubleToLongBits(2.0 * 3 * 5), Double.doubleToLongBits(derivative.evaluateReal(3, 5)));
+        Assert.assertEquals(2, derivative.getVariables().size());
+        BracerParser bracerParser = new BracerParser(3);
+        CompiledExpression constant = bracerParser.parse("sin(y) + 2").derivative("y").derivative("y");
+        Assert.assertEquals(-Math.sin(1), constant.evaluateReal(1), 1e-15);
+        Assert.assertEquals(0, bracerParser.parse("x + (y and x)").derivative("y").evaluateReal(1, 2), 0);
+    }
+
+    @Test
+    public void testSharedSubexpressions() throws Exception {
+        /* the derivative of exp(x) reuses exp(x) itself */
+        CompiledExpression derivative = new BracerParser(3).parse("exp(x)").derivative("x");
+        Assert.assertEquals(Math.exp(2), derivative.evaluateReal(2), 0);
+        Assert.assertEquals(1, derivative.getMaxStackDepth());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUserFunction() throws Exception {
+        BracerParser bracerParser = new BracerParser(3);
+        bracerParser.setFunctionRegistry(new FunctionRegistry().register("twice", x -> 2 * x, true));
+        Assert.assertEquals(4, bracerParser.parse("twice(2) * y").derivative("y").evaluateReal(7), 0);
+        bracerParser.parse("twice(x) * y").newGradientEvaluator();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVariable() throws Exception {
+        new BracerParser(3).parse("x + 1").derivative("y");
+    }
+
+    /* values in the slots of the variables */
+    private static double[] values(CompiledExpression compiledExpression, double[] point) {
+        double[] values = new double[compiledExpression.getVariables().size()];
+        values[compiledExpression.getVariableIndex("x")] = point[0];
+        values[compiledExpression.getVariableIndex("y")] = point[1];
+        return values;
+    }
+
+    /* central finite difference */
+    private static Complex difference(CompiledExpression compiledExpression, double[] values, int slot) {
+        double[] forward = values.clone();
+        double[] backward = values.clone();
+        forward[slot] += H;
+        backward[slot] -= H;
+        return compiledExpression.evaluateComplex(forward).subtract(compiledExpression.evaluateComplex(backward))
+                .divide(2 * H);
+    }
+
+    private static void assertClose(String message, Complex expected, Complex actual) {
+        double tolerance = 1e-5 * Math.max(1, expected.abs());
+        Assert.assertEquals(message, expected.getReal(), actual.getReal(), tolerance);
+        Assert.assertEquals(message, expected.getImaginary(), actual.getImaginary(), tolerance);
+    }
+
+}
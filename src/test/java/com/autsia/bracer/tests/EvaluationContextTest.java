@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.EvaluationContext;
+import org.apache.commons.math3.complex.Complex;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Test class for {@link EvaluationContext}.
+ */
+public class EvaluationContextTest {
+
+    private final String[] INPUTS = {"sqrt(x) * y + log(x)", "-sin(3+x*I+cosh(10*I)/exp(10/pow(22,-1))) + y",
+            "(x*y + 1) * (x*y + 1) / (x - y)", "(x + I) / (y - I) * sqrt(x*I) + log(y*I)"};
+    private final double[] VALUES = {-4, -0.0, 0.5, 2, Double.NaN};
+
+    @Test
+    public void testSameResults() throws Exception {
+        for (String input : INPUTS) {
+            for (boolean optimizing : new boolean[]{false, true}) {
+                BracerParser bracerParser = new BracerParser(3);
+                bracerParser.setOptimizing(optimizing);
+                CompiledExpression compiledExpression = bracerParser.parse(input);
+                EvaluationContext context = compiledExpression.newContext();
+                for (double x : VALUES) {
+                    context.setVariable("x", x).setVariable("y", 1.5);
+                    Complex expected = compiledExpression.evaluateComplex(x, 1.5);
+                    Assert.assertEquals(input, expected.getReal(), context.evaluate(), 0);
+                    Assert.assertEquals(input, expected.getImaginary(), context.getImaginary(), 0);
+                    Assert.assertEquals(input, expected.getReal(), context.getReal(), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaxStackDepth() throws Exception {
+        Assert.assertEquals(1, new BracerParser(3).parse("x").getMaxStackDepth());
+        Assert.assertEquals(3, new BracerParser(3).parse("1 + 2 * x").getMaxStackDepth());
+        Assert.assertEquals(2, new BracerParser(3).parse("1 * 2 + x").getMaxStackDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVariable() throws Exception {
+        new BracerParser(3).parse("x + 1").newContext().setVariable("y", 1);
+    }
+
+    @Test
+    public void testNoAllocation() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        EvaluationContext realContext = new BracerParser(3).parse(INPUTS[0]).newContext();
+        EvaluationContext complexContext = new BracerParser(3).parse(INPUTS[3]).newContext();
+        long threadId = Thread.currentThread().getId();
+        double sum = 0;
+        long before = 0;
+        for (int round = 0; round < 2; round++) {
+            before = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 100000; i++) {
+                sum += realContext.setVariable(0, i - 50000).setVariable(1, i).evaluate();
+                sum += complexContext.setVariable(0, i % 10).setVariable(1, 2).evaluate();
+            }
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        Assert.assertTrue("Allocated " + allocated + " bytes computing " + sum, allocated < 4096);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.ExpressionCache;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+/**
+ * Test class for {@link ExpressionCache}.
+ */
+public class ExpressionCacheTest {
+
+    private ExpressionCache expressionCache;
+
+    @Before
+    public void setUp() throws Exception {
+        expressionCache = new ExpressionCache(2);
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        CompiledExpression compiledExpression = expressionCache.get("x * 2");
+        Assert.assertSame(compiledExpression, expressionCache.get(" x\t*  2\n"));
+        Assert.assertEquals(1, expressionCache.getHitCount());
+        Assert.assertEquals(1, expressionCache.getMissCount());
+        Assert.assertEquals(6, compiledExpression.evaluateReal(3), 0);
+    }
+
+    @Test
+    public void testWordsKeptApart() throws Exception {
+        Assert.assertNotSame(expressionCache.get("sin x"), expressionCache.get("sinx"));
+        Assert.assertSame(expressionCache.get("\tab  *2 "), expressionCache.get("ab *2"));
+        Assert.assertNotSame(expressionCache.get("ab * 2"), expressionCache.get("ab*2"));
+    }
+
+    @Test
+    public void testOperatorsKeptApart() throws Exception {
+        Assert.assertEquals(1, expressionCache.get("x<=y").evaluateReal(1, 2), 0);
+        try {
+            expressionCache.get("x < = y");
+            Assert.fail();
+        } catch (ParseException e) {
+            Assert.assertEquals(1, expressionCache.size());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        CompiledExpression first = expressionCache.get("1");
+        expressionCache.get("2");
+        expressionCache.get("1");
+        expressionCache.get("3");
+        Assert.assertEquals(2, expressionCache.size());
+        Assert.assertEquals(1, expressionCache.getEvictionCount());
+        Assert.assertSame(first, expressionCache.get("1"));
+        Assert.assertEquals(2, expressionCache.getHitCount());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        expressionCache.get("1");
+        expressionCache.clear();
+        Assert.assertEquals(0, expressionCache.size());
+        expressionCache.get("1");
+        Assert.assertEquals(2, expressionCache.getMissCount());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseError() throws Exception {
+        expressionCache.get("pow(1)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() throws Exception {
+        new ExpressionCache(0);
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.ExpressionGraph;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test class for {@link ExpressionGraph}.
+ */
+public class ExpressionGraphTest {
+
+    private BracerParser bracerParser;
+    private ExpressionGraph expressionGraph;
+
+    @Before
+    public void setUp() throws Exception {
+        bracerParser = new BracerParser(3);
+        expressionGraph = new ExpressionGraph()
+                .define("total", parse("price * quantity + fee"))
+                .define("fee", parse("price * 0.01"))
+                .define("report", parse("total - budget"))
+                .define("hedge", parse("delta * 2"));
+    }
+
+    @Test
+    public void testValues() {
+        Assert.assertEquals(4, expressionGraph.recompute());
+        expressionGraph.set("price", 100).set("quantity", 3).set("budget", 250);
+        expressionGraph.recompute();
+        Assert.assertEquals(1, expressionGraph.getValue("fee"), 0);
+        Assert.assertEquals(301, expressionGraph.getValue("total"), 0);
+        Assert.assertEquals(51, expressionGraph.getValue("report"), 0);
+        Assert.assertEquals(0, expressionGraph.getValue("hedge"), 0);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("total", "fee", "report", "hedge")),
+                expressionGraph.getNodes());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("price", "quantity", "budget", "delta")),
+                expressionGraph.getInputs());
+    }
+
+    @Test
+    public void testOnlyAffectedNodesEvaluated() {
+        expressionGraph.recompute();
+        Assert.assertEquals(0, expressionGraph.recompute());
+        expressionGraph.set("delta", 1);
+        Assert.assertEquals(1, expressionGraph.recompute());
+        expressionGraph.set("budget", 5);
+        Assert.assertEquals(1, expressionGraph.recompute());
+        expressionGraph.set("price", 10);
+        Assert.assertEquals(3, expressionGraph.recompute());
+        expressionGraph.set("quantity", 2);
+        Assert.assertEquals(2, expressionGraph.recompute());
+        /* the same value changes nothing */
+        expressionGraph.set("price", 10);
+        Assert.assertEquals(0, expressionGraph.recompute());
+        Assert.assertEquals(15.1, expressionGraph.getValue("report"), 1e-12);
+    }
+
+    @Test
+    public void testUnchangedValueStopsPropagation() throws Exception {
+        expressionGraph.define("sign", parse("if(delta > 0, 1, -1)")).define("scaled", parse("sign * 10"));
+        expressionGraph.set("delta", 1);
+        expressionGraph.recompute();
+        expressionGraph.set("delta", 2);
+        /* hedge and sign, but not scaled */
+        Assert.assertEquals(2, expressionGraph.recompute());
+        Assert.assertEquals(10, expressionGraph.getValue("scaled"), 0);
+    }
+
+    @Test
+    public void testRedefinition() throws Exception {
+        expressionGraph.set("price", 100).set("quantity", 3).recompute();
+        expressionGraph.define("fee", parse("5"));
+        Assert.assertEquals(3, expressionGraph.recompute());
+        Assert.assertEquals(305, expressionGraph.getValue("total"), 0);
+        /* the input becomes the node */
+        expressionGraph.define("budget", parse("total / 2"));
+        expressionGraph.recompute();
+        Assert.assertEquals(152.5, expressionGraph.getValue("report"), 0);
+    }
+
+    @Test
+    public void testDeepChain() throws Exception {
+        ExpressionGraph chain = new ExpressionGraph().define("n0", parse("x + 1"));
+        for (int i = 1; i < 10000; i++) {
+            chain.define("n" + i, parse("n" + (i - 1) + " + 1"));
+        }
+        chain.set("x", 5);
+        Assert.assertEquals(10000, chain.recompute());
+        Assert.assertEquals(10005, chain.getValue("n9999"), 0);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        ExpressionGraph wide = new ExpressionGraph();
+        ExpressionGraph sequential = new ExpressionGraph();
+        for (int i = 0; i < 500; i++) {
+            CompiledExpression expression = parse("sin(x * " + i + ") + y");
+            wide.define("a" + i, expression);
+            sequential.define("a" + i, expression);
+            wide.define("b" + i, parse("a" + i + " * a" + (499 - i)));
+            sequential.define("b" + i, parse("a" + i + " * a" + (499 - i)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (double x : new double[]{0.5, 1.5, -2}) {
+                wide.set("x", x).set("y", x / 3);
+                sequential.set("x", x).set("y", x / 3);
+                Assert.assertEquals(sequential.recompute(), wide.recompute(executor));
+                for (int i = 0; i < 500; i++) {
+                    Assert.assertEquals(sequential.getValue("b" + i), wide.getValue("b" + i), 0);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidUpdates() throws Exception {
+        for (String[] definition : new String[][]{{"price", "total + 1"}, {"fee", "report"}, {"x", "x + 1"}}) {
+            try {
+                expressionGraph.define(definition[0], parse(definition[1]));
+                Assert.fail(definition[0]);
+            } catch (IllegalArgumentException e) {
+                Assert.assertNotNull(e.getMessage());
+            }
+        }
+        try {
+            expressionGraph.set("total", 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertNotNull(e.getMessage());
+        }
+        try {
+            expressionGraph.getValue("missing");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertNotNull(e.getMessage());
+        }
+        Assert.assertFalse(expressionGraph.getInputs().contains("x"));
+        expressionGraph.set("price", 2).recompute();
+        Assert.assertEquals(0.02, expressionGraph.getValue("fee"), 0);
+    }
+
+    private CompiledExpression parse(String expression) throws ParseException {
+        return bracerParser.parse(expression);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.ExpressionSerializer;
+import com.autsia.bracer.FunctionRegistry;
+import org.apache.commons.math3.complex.Complex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class for {@link ExpressionSerializer}.
+ */
+public class ExpressionSerializerTest {
+
+    private final String[] INPUTS = {"2 + 3 * 4", "sin(x) * sin(x) + cos(x) * cos(x)", "x * I + y",
+            "sqrt(x - y) + log(y)", "if(x > 0, clamp(x, 0, 2), -x) + (y < 1 | x == y)", "clamp(x, y, 3) * I"};
+    private final double[][] VALUES = {{-4, 0.5}, {0, 0}, {1, 2}, {2.5, -1}, {Double.NaN, 3}};
+    private FunctionRegistry functionRegistry;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        functionRegistry = new FunctionRegistry()
+                .register("clamp", 3, a -> Math.min(Math.max(a[0], a[1]), a[2]), true);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String input : INPUTS) {
+            BracerParser bracerParser = new BracerParser(3);
+            bracerParser.setFunctionRegistry(functionRegistry);
+            CompiledExpression compiledExpression = bracerParser.parse(input);
+            assertSame(input, compiledExpression, roundTrip(compiledExpression));
+            CompiledExpression optimized = compiledExpression.optimize();
+            assertSame(input, optimized, roundTrip(optimized));
+        }
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        BracerParser bracerParser = new BracerParser(3);
+        bracerParser.setFunctionRegistry(functionRegistry);
+        List<CompiledExpression> expressions = new ArrayList<>();
+        for (String input : INPUTS) {
+            expressions.add(bracerParser.parse(input).optimize());
+        }
+        Path file = folder.newFile("expressions.bin").toPath();
+        Files.write(file, ExpressionSerializer.toByteArray(expressions));
+        List<CompiledExpression> loaded = ExpressionSerializer.load(file, functionRegistry);
+        Assert.assertEquals(INPUTS.length, loaded.size());
+        for (int i = 0; i < INPUTS.length; i++) {
+            assertSame(INPUTS[i], expressions.get(i), loaded.get(i));
+        }
+    }
+
+    @Test
+    public void testBufferPosition() throws Exception {
+        CompiledExpression first = new BracerParser(3).parse("x + 1");
+        CompiledExpression second = new BracerParser(3).parse("y * 2");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 + ExpressionSerializer.size(first)
+                + ExpressionSerializer.size(second)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(7);
+        ExpressionSerializer.write(first, buffer);
+        ExpressionSerializer.write(second, buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        Assert.assertEquals(7, buffer.getInt());
+        Assert.assertEquals(2, ExpressionSerializer.read(buffer, null).evaluateReal(1), 0);
+        Assert.assertEquals(6, ExpressionSerializer.read(buffer, null).evaluateReal(3), 0);
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+    }
+
+    @Test
+    public void testMissingFunction() throws Exception {
+        BracerParser bracerParser = new BracerParser(3);
+        bracerParser.setFunctionRegistry(functionRegistry);
+        byte[] bytes = ExpressionSerializer.toByteArray(bracerParser.parse("clamp(x, 0, 1)"));
+        assertRejected(bytes, null);
+        assertRejected(bytes, new FunctionRegistry().register("clamp", Math::max, true));
+        Assert.assertEquals(1, ExpressionSerializer.read(ByteBuffer.wrap(bytes), functionRegistry)
+                .evaluateReal(5), 0);
+    }
+
+    @Test
+    public void testDamagedRecords() throws Exception {
+        byte[] bytes = ExpressionSerializer.toByteArray(new BracerParser(3).parse("if(x > 0, x, -x) * 2"));
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1), null);
+        for (int offset : new int[]{0, 5}) {
+            byte[] damaged = bytes.clone();
+            damaged[offset]++;
+            assertRejected(damaged, null);
+        }
+        /* header, variable "x" and the flags, depth and temporaries of the program */
+        int count = 16 + 3 + 9;
+        int length = ByteBuffer.wrap(bytes).getInt(count);
+        for (int i = 0; i < length; i++) {
+            /* unknown opcode, then the constant out of the pool */
+            for (int instruction : new int[]{0x3F, 0xFFFF00}) {
+                byte[] damaged = bytes.clone();
+                ByteBuffer.wrap(damaged).putInt(count + 4 + 4 * i, instruction);
+                assertRejected(damaged, null);
+            }
+        }
+    }
+
+    private CompiledExpression roundTrip(CompiledExpression compiledExpression) {
+        byte[] bytes = ExpressionSerializer.toByteArray(compiledExpression);
+        Assert.assertEquals(ExpressionSerializer.size(compiledExpression), bytes.length);
+        return ExpressionSerializer.read(ByteBuffer.wrap(bytes), functionRegistry);
+    }
+
+    private void assertSame(String message, CompiledExpression expected, CompiledExpression actual) {
+        Assert.assertEquals(message, expected.getVariables(), actual.getVariables());
+        Assert.assertEquals(message, expected.isReal(), actual.isReal());
+        Assert.assertEquals(message, expected.isBoolean(), actual.isBoolean());
+        Assert.assertEquals(message, expected.getMaxStackDepth(), actual.getMaxStackDepth());
+        for (double[] values : VALUES) {
+            Complex complex = expected.evaluateComplex(values);
+            Assert.assertEquals(message, complex, actual.evaluateComplex(values));
+            Assert.assertEquals(message, Double.doubleToLongBits(expected.evaluateReal(values)),
+                    Double.doubleToLongBits(actual.evaluateReal(values)));
+        }
+    }
+
+    private void assertRejected(byte[] bytes, FunctionRegistry functionRegistry) {
+        try {
+            ExpressionSerializer.read(ByteBuffer.wrap(bytes), functionRegistry);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertNotNull(e.getMessage());
+        }
+    }
+
+}
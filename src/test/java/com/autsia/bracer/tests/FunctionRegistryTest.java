@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.FunctionRegistry;
+import com.autsia.bracer.JitCompiler;
+import com.autsia.bracer.JitExpression;
+import org.apache.commons.math3.complex.Complex;
+import org.hamcrest.collection.IsIterableContainingInOrder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for {@link FunctionRegistry}.
+ */
+public class FunctionRegistryTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private FunctionRegistry functionRegistry;
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() throws Exception {
+        functionRegistry = new FunctionRegistry()
+                .register("max", Math::max, true)
+                .register("sq", x -> {
+                    calls.incrementAndGet();
+                    return x * x;
+                }, true)
+                .register("clamp", 3, a -> Math.min(Math.max(a[0], a[1]), a[2]), true)
+                .register("lerp", 3, a -> a[0] + (a[1] - a[0]) * a[2], true)
+                .register("counter", 0, a -> calls.incrementAndGet(), false)
+                .registerComplex("csq", 1, z -> z[0].multiply(z[0]), true);
+        bracerParser = new BracerParser(3);
+        bracerParser.setFunctionRegistry(functionRegistry);
+    }
+
+    @Test
+    public void testRealFunctions() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("clamp(lerp(x, 10, 0.5), 0, max(x, 4)) + sq(2)");
+        Assert.assertTrue(compiledExpression.isReal());
+        Assert.assertEquals(11, compiledExpression.evaluateReal(7), 0);
+        Assert.assertEquals(8, compiledExpression.evaluateReal(1), 0);
+        Assert.assertEquals("11.000", bracerParser.evaluate(7));
+    }
+
+    @Test
+    public void testCompiledEngines() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("clamp(lerp(x, 10, 0.5), 0, max(x, 4)) + sq(x)");
+        JitExpression jitExpression = JitCompiler.compile(compiledExpression);
+        double[] column = {-3, 0, 1, 2.5, 7, 12};
+        double[] result = new double[column.length];
+        compiledExpression.evaluateBatch(column, result);
+        for (int i = 0; i < column.length; i++) {
+            double expected = compiledExpression.evaluateReal(column[i]);
+            Assert.assertEquals(expected, result[i], 0);
+            Assert.assertEquals(expected, jitExpression.evaluate(column[i]), 0);
+        }
+    }
+
+    @Test
+    public void testComplexFunction() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("csq(x + I)");
+        Assert.assertFalse(compiledExpression.isReal());
+        Assert.assertEquals(new Complex(8, 6), compiledExpression.evaluateComplex(3));
+        bracerParser.parse("max(I, 1)");
+        Assert.assertEquals("(NaN) + (NaN)I", bracerParser.evaluate());
+    }
+
+    @Test
+    public void testPureFunctionsOptimized() throws Exception {
+        bracerParser.setOptimizing(true);
+        bracerParser.parse("max(1, 2) * x");
+        Assert.assertThat(bracerParser.getStackRPN(), IsIterableContainingInOrder.contains("*", "x", "2"));
+        bracerParser.parse("sq(x) + sq(x)");
+        calls.set(0);
+        Assert.assertEquals("18.000", bracerParser.evaluate(3));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testImpureFunctionsKept() throws Exception {
+        bracerParser.setOptimizing(true);
+        bracerParser.parse("counter() - counter()");
+        calls.set(0);
+        Assert.assertEquals("-1.000", bracerParser.evaluate());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testRegistryChanges() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("max(x, 1)");
+        functionRegistry.unregister("max");
+        Assert.assertFalse(functionRegistry.contains("max"));
+        Assert.assertEquals(2, compiledExpression.evaluateReal(2), 0);
+        bracerParser.parse("max");
+        Assert.assertEquals("5.000", bracerParser.evaluate(5));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testMissingArgument() throws Exception {
+        bracerParser.parse("clamp(1, 2)");
+    }
+
+    @Test
+    public void testInvalidNames() throws Exception {
+        for (String name : new String[]{"sin", "true", "and", "1x", "a-b", ""}) {
+            try {
+                functionRegistry.register(name, Math::abs, true);
+                Assert.fail(name);
+            } catch (IllegalArgumentException e) {
+                Assert.assertFalse(functionRegistry.contains(name));
+            }
+        }
+    }
+
+}
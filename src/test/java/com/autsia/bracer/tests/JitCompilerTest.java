@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.JitCompiler;
+import com.autsia.bracer.JitExpression;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link JitCompiler}.
+ */
+public class JitCompilerTest {
+
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() throws Exception {
+        bracerParser = new BracerParser(3);
+    }
+
+    @Test
+    public void testBitIdenticalToInterpreter() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse(
+                "sin(x)*cos(y)/(1+abs(x))-pow(y,2.5)+tanh(x*y)+exp(-x)+atan(y)-cosh(0.1*x)+sinh(0.2*y)+tan(x)"
+                        + "+neg(arg(x))+imag(y)+real(x)+conj(y)-(x & y)+(x | not(y))+!x");
+        JitExpression jitExpression = JitCompiler.compile(compiledExpression);
+        for (int i = 0; i < 1000; i++) {
+            double x = (i - 500) * 0.013;
+            double y = i * 0.0071;
+            Assert.assertEquals(Double.doubleToLongBits(compiledExpression.evaluateReal(x, y)),
+                    Double.doubleToLongBits(jitExpression.evaluate(x, y)));
+        }
+    }
+
+    @Test
+    public void testSingleVariable() throws Exception {
+        JitExpression jitExpression = JitCompiler.compile(bracerParser.parse("var*var+sqrt(var)"));
+        Assert.assertEquals(4, jitExpression.applyAsDouble(2) - Math.sqrt(2), 1e-15);
+        Assert.assertEquals(4, jitExpression.evaluate(2) - Math.sqrt(2), 1e-15);
+    }
+
+    @Test
+    public void testOutOfRealDomain() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("real(sqrt(x)*sqrt(x))+log(x)+acos(x)");
+        JitExpression jitExpression = JitCompiler.compile(compiledExpression);
+        Assert.assertEquals(compiledExpression.evaluateReal(-4), jitExpression.evaluate(-4), 0);
+        Assert.assertEquals(compiledExpression.evaluateReal(0.5), jitExpression.evaluate(0.5), 0);
+        Assert.assertTrue(Double.isNaN(JitCompiler.compile(bracerParser.parse("1/x")).evaluate(0)));
+        Assert.assertTrue(Double.isNaN(JitCompiler.compile(bracerParser.parse("pow(x,0)")).evaluate(0)));
+    }
+
+    @Test
+    public void testComplexExpression() throws Exception {
+        CompiledExpression compiledExpression = bracerParser.parse("real(exp(x*I))");
+        JitExpression jitExpression = JitCompiler.compile(compiledExpression);
+        Assert.assertEquals(Math.cos(1), jitExpression.evaluate(1), 1e-15);
+    }
+
+    @Test
+    public void testManyVariablesAndConstants() throws Exception {
+        StringBuilder expression = new StringBuilder("0");
+        double[] values = new double[300];
+        double expected = 0;
+        for (int i = 0; i < values.length; i++) {
+            expression.append("+v").append(i).append('*').append(i + 0.5);
+            values[i] = i;
+            expected += i * (i + 0.5);
+        }
+        JitExpression jitExpression = JitCompiler.compile(bracerParser.parse(expression.toString()));
+        Assert.assertEquals(expected, jitExpression.evaluate(values), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingVariable() throws Exception {
+        JitCompiler.compile(bracerParser.parse("x+y")).evaluate(1);
+    }
+
+}
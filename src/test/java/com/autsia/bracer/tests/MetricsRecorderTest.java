@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.ExpressionMetrics;
+import com.autsia.bracer.HistogramMetricsRecorder;
+import com.autsia.bracer.MetricsRecorder;
+import org.apache.commons.math3.complex.Complex;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+/**
+ * Test class for {@link MetricsRecorder} and {@link HistogramMetricsRecorder}.
+ */
+public class MetricsRecorderTest {
+
+    private HistogramMetricsRecorder metricsRecorder;
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() throws Exception {
+        metricsRecorder = new HistogramMetricsRecorder(2);
+        bracerParser = new BracerParser(3);
+        bracerParser.setMetricsRecorder(metricsRecorder);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        bracerParser.parse("x + 1");
+        bracerParser.evaluate(1);
+        bracerParser.evaluate(2);
+        bracerParser.parse(" x  +\t1");
+        Assert.assertEquals(new Complex(4), bracerParser.evaluateComplex(3));
+        Assert.assertEquals(1, metricsRecorder.getExpressions().size());
+        ExpressionMetrics metrics = metricsRecorder.getExpressions().iterator().next();
+        Assert.assertEquals("x + 1", metrics.getExpression());
+        Assert.assertEquals(2, metrics.getCount(MetricsRecorder.Operation.PARSE));
+        Assert.assertEquals(2, metrics.getCount(MetricsRecorder.Operation.EVALUATE));
+        Assert.assertEquals(1, metrics.getCount(MetricsRecorder.Operation.EVALUATE_COMPLEX));
+        Assert.assertEquals(0, metrics.getFailureCount(MetricsRecorder.Operation.PARSE));
+        long total = 0;
+        for (long count : metrics.getHistogram(MetricsRecorder.Operation.EVALUATE)) {
+            total += count;
+        }
+        Assert.assertEquals(2, total);
+        Assert.assertTrue(metrics.getPercentileNanos(MetricsRecorder.Operation.EVALUATE, 0.99)
+                >= metrics.getTotalNanos(MetricsRecorder.Operation.EVALUATE) / 4);
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try {
+                bracerParser.parse("sin(x");
+                bracerParser.parse("2 3");
+                Assert.fail();
+            } catch (ParseException e) {
+                /* expected */
+            }
+        }
+        bracerParser.parse("y");
+        Assert.assertEquals(2, metricsRecorder.getExpressions().size());
+        for (ExpressionMetrics metrics : metricsRecorder.getExpressions()) {
+            Assert.assertEquals(3, metrics.getCount(MetricsRecorder.Operation.PARSE));
+            Assert.assertEquals(metrics.getExpression().equals("2 3") ? 3 : 0,
+                    metrics.getFailureCount(MetricsRecorder.Operation.PARSE));
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        bracerParser.setMetricsRecorder(null);
+        Assert.assertSame(MetricsRecorder.NONE, bracerParser.getMetricsRecorder());
+        bracerParser.parse("x");
+        Assert.assertEquals("2.000", bracerParser.evaluate(2));
+        Assert.assertTrue(metricsRecorder.getExpressions().isEmpty());
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BackendEvaluator;
+import com.autsia.bracer.BigDecimalBackend;
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.FunctionRegistry;
+import com.autsia.bracer.Interval;
+import com.autsia.bracer.IntervalBackend;
+import com.autsia.bracer.NumericBackend;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+/**
+ * Test class for {@link NumericBackend}, {@link BigDecimalBackend} and
+ * {@link IntervalBackend}.
+ */
+public class NumericBackendTest {
+
+    private final String[] INTERVAL_INPUTS = {"x * x - 2 * x + 0.1", "(x + y) / (y * y + 1)", "sqrt(abs(x)) * exp(y)",
+            "sin(x) * cos(y) + tan(x / 4)", "atan(x) - tanh(y) + sinh(x / 3) * cosh(y / 3)", "pow(x, 3) - pow(y, -2) + pow(2, 0.5)",
+            "log(x * x + 1) + asin(y / 10) - acos(x / 10)", "if(x > y, x - y, y - x) + (x < 0 | y >= 0)"};
+    private final BigDecimalBackend decimal = new BigDecimalBackend(MathContext.DECIMAL64);
+
+    @Test
+    public void testBigDecimalIsExact() throws Exception {
+        CompiledExpression compiledExpression = new BracerParser(3).parse("0.1 + 0.2 - 0.3");
+        Assert.assertNotEquals(0, compiledExpression.evaluateReal(), 0);
+        Assert.assertEquals(0, compiledExpression.newEvaluator(decimal).evaluate().signum());
+        BackendEvaluator<BigDecimal> evaluator = new BracerParser(3).parse("price * quantity * 1.07")
+                .optimize().newEvaluator(new BigDecimalBackend(MathContext.UNLIMITED));
+        evaluator.setVariable("price", new BigDecimal("19.99")).setVariable("quantity", BigDecimal.valueOf(3));
+        Assert.assertEquals(new BigDecimal("64.1679"), evaluator.evaluate());
+    }
+
+    @Test
+    public void testBigDecimalPrecision() throws Exception {
+        BigDecimalBackend backend = new BigDecimalBackend(new MathContext(40));
+        Assert.assertEquals("0.3333333333333333333333333333333333333333",
+                new BracerParser(3).parse("1 / 3").newEvaluator(backend).evaluate().toPlainString());
+        Assert.assertEquals("1.414213562373095048801688724209698078570",
+                new BracerParser(3).parse("sqrt(2)").newEvaluator(backend).evaluate().toPlainString());
+        Assert.assertEquals(0, new BigDecimal("12345678901234567890").compareTo(new BracerParser(3)
+                .parse("sqrt(x * x)").newEvaluator(backend).setVariable(0, new BigDecimal("12345678901234567890"))
+                .evaluate()));
+        Assert.assertEquals("0.25", new BracerParser(3).parse("pow(2, -2)").newEvaluator(backend).evaluate()
+                .toPlainString());
+        Assert.assertEquals("1267650600228229401496703205376", new BracerParser(3).parse("pow(2, 100)")
+                .newEvaluator(new BigDecimalBackend(MathContext.UNLIMITED)).evaluate().toPlainString());
+    }
+
+    @Test
+    public void testBigDecimalConditionals() throws Exception {
+        BackendEvaluator<BigDecimal> evaluator = new BracerParser(3)
+                .parse("if(x > 100 & !(x == 150), x * 0.9, -x) + (x < 0 | x >= 1000)").newEvaluator(decimal);
+        Assert.assertEquals(new BigDecimal("180.0"), evaluator.setVariable(0, new BigDecimal("200")).evaluate());
+        Assert.assertEquals(new BigDecimal("-150"), evaluator.setVariable(0, new BigDecimal("150")).evaluate());
+        Assert.assertEquals(new BigDecimal("901.0"), evaluator.setVariable(0, new BigDecimal("1000")).evaluate());
+        Assert.assertEquals(0, new BigDecimal("-99.999").compareTo(
+                evaluator.setVariable(0, new BigDecimal("99.999")).evaluate()));
+    }
+
+    @Test
+    public void testBigDecimalUnsupported() throws Exception {
+        BracerParser bracerParser = new BracerParser(3);
+        assertThrows(UnsupportedOperationException.class, () -> bracerParser.parse("sin(1)").newEvaluator(decimal)
+                .evaluate());
+        assertThrows(UnsupportedOperationException.class, () -> bracerParser.parse("pow(2, 0.5)").newEvaluator(decimal)
+                .evaluate());
+        assertThrows(UnsupportedOperationException.class, () -> bracerParser.parse("1 + I").newEvaluator(decimal));
+        assertThrows(ArithmeticException.class, () -> bracerParser.parse("1 / 0").newEvaluator(decimal).evaluate());
+        assertThrows(ArithmeticException.class, () -> bracerParser.parse("1 / 3")
+                .newEvaluator(new BigDecimalBackend(MathContext.UNLIMITED)).evaluate());
+        bracerParser.setFunctionRegistry(new FunctionRegistry().register("twice", x -> 2 * x, true));
+        assertThrows(UnsupportedOperationException.class, () -> bracerParser.parse("twice(x)")
+                .newEvaluator(decimal));
+    }
+
+    @Test
+    public void testIntervalHoldsDoubleResults() throws Exception {
+        IntervalBackend backend = new IntervalBackend();
+        Random random = new Random(42);
+        for (String input : INTERVAL_INPUTS) {
+            CompiledExpression compiledExpression = new BracerParser(3).parse(input).optimize();
+            BackendEvaluator<Interval> evaluator = compiledExpression.newEvaluator(backend);
+            for (int i = 0; i < 200; i++) {
+                double x = random.nextDouble() * 8 + 0.5;
+                double y = random.nextDouble() * 8 - 4;
+                Interval result = bind(evaluator, Interval.point(x), Interval.point(y)).evaluate();
+                Assert.assertTrue(input + " " + result, result.contains(compiledExpression.evaluateReal(x, y)));
+                Assert.assertTrue(input + " " + result, result.getWidth() <= 1e-12 * Math.max(1,
+                        Math.abs(result.getLower())));
+            }
+        }
+    }
+
+    @Test
+    public void testIntervalBoundsRange() throws Exception {
+        IntervalBackend backend = new IntervalBackend();
+        Random random = new Random(7);
+        for (String input : INTERVAL_INPUTS) {
+            if (input.startsWith("if")) {
+                continue;
+            }
+            CompiledExpression compiledExpression = new BracerParser(3).parse(input);
+            Interval result = bind(compiledExpression.newEvaluator(backend), Interval.of(1, 3), Interval.of(-2, 1))
+                    .evaluate();
+            for (int i = 0; i < 1000; i++) {
+                double x = 1 + 2 * random.nextDouble();
+                double y = -2 + 3 * random.nextDouble();
+                Assert.assertTrue(input + " " + result, result.contains(compiledExpression.evaluateReal(x, y)));
+            }
+        }
+        Assert.assertEquals(Interval.of(-1, 1), new BracerParser(3).parse("sin(x)").newEvaluator(backend)
+                .setVariable(0, Interval.of(1, 5)).evaluate());
+        Interval square = new BracerParser(3).parse("pow(x, 2)").newEvaluator(backend)
+                .setVariable(0, Interval.of(-1, 2)).evaluate();
+        Assert.assertEquals(0, square.getLower(), 0);
+        Assert.assertEquals(4, square.getUpper(), 1e-14);
+        Assert.assertEquals(Interval.ENTIRE, new BracerParser(3).parse("1 / x").newEvaluator(backend)
+                .setVariable(0, Interval.of(-1, 2)).evaluate());
+    }
+
+    @Test
+    public void testIntervalComparisons() throws Exception {
+        BackendEvaluator<Interval> evaluator = new BracerParser(3).parse("if(x < 1, 0, x)")
+                .newEvaluator(new IntervalBackend());
+        Assert.assertEquals(Interval.point(0), evaluator.setVariable(0, Interval.of(-1, 0.5)).evaluate());
+        Assert.assertEquals(Interval.of(2, 3), evaluator.setVariable(0, Interval.of(2, 3)).evaluate());
+        assertThrows(ArithmeticException.class, () -> evaluator.setVariable(0, Interval.of(0, 2)).evaluate());
+        assertThrows(ArithmeticException.class, () -> new BracerParser(3).parse("log(x)")
+                .newEvaluator(new IntervalBackend()).setVariable(0, Interval.of(-1, 1)).evaluate());
+        assertThrows(IllegalArgumentException.class, () -> Interval.of(2, 1));
+    }
+
+    /* x is the first variable of every input, y is the second one if it is there */
+    private static BackendEvaluator<Interval> bind(BackendEvaluator<Interval> evaluator, Interval x, Interval y) {
+        evaluator.setVariable(0, x);
+        if (evaluator.getExpression().getVariables().size() > 1) {
+            evaluator.setVariable(1, y);
+        }
+        return evaluator;
+    }
+
+    private static void assertThrows(Class<? extends Exception> expected, ThrowingRunnable runnable) {
+        try {
+            runnable.run();
+            Assert.fail("Expected " + expected.getSimpleName());
+        } catch (Exception e) {
+            Assert.assertTrue(e.toString(), expected.isInstance(e));
+        }
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.JitCompiler;
+import org.apache.commons.math3.complex.Complex;
+import org.hamcrest.collection.IsIterableContainingInOrder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link CompiledExpression#optimize()}.
+ */
+public class OptimizerTest {
+
+    private final String INPUT_VAR = "-sin(3+var*I+cosh(10*I)/exp(10/pow(22,-1)))";
+    private final String[] REAL_INPUTS = {"sqrt(x)*1 + sqrt(x)", "log(x-1)/1 - 0", "neg(neg(pow(x, 0.5))) + 0",
+            "(x*x + 1) * (x*x + 1) / (x*x - 1)", "asin(x/4)*1 + acos(x/4)*1"};
+    private final double[] VALUES = {-4, -1, -0.0, 0, 0.5, 1, 2, 3.75, Double.NaN, Double.POSITIVE_INFINITY};
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() throws Exception {
+        bracerParser = new BracerParser(3);
+        bracerParser.setOptimizing(true);
+    }
+
+    @Test
+    public void testConstantFolding() throws Exception {
+        bracerParser.parse("x + cosh(10*I)/exp(10/pow(22,-1))");
+        Assert.assertEquals(3, bracerParser.getStackRPN().size());
+        bracerParser.parse("2*3 + 4");
+        Assert.assertThat(bracerParser.getStackRPN(), IsIterableContainingInOrder.contains("10"));
+    }
+
+    @Test
+    public void testIdentities() throws Exception {
+        bracerParser.parse("neg(neg(x*1)) / 1 - 0");
+        Assert.assertThat(bracerParser.getStackRPN(), IsIterableContainingInOrder.contains("x"));
+        bracerParser.parse("not(not(a or b))");
+        Assert.assertThat(bracerParser.getStackRPN(), IsIterableContainingInOrder.contains("|", "b", "a"));
+    }
+
+    @Test
+    public void testUnsafeIdentitiesKept() throws Exception {
+        bracerParser.parse("x + 0");
+        Assert.assertEquals(3, bracerParser.getStackRPN().size());
+        bracerParser.parse("not(not(x))");
+        Assert.assertEquals(3, bracerParser.getStackRPN().size());
+        bracerParser.parse("(x + I) * 1");
+        Assert.assertEquals(5, bracerParser.getStackRPN().size());
+    }
+
+    @Test
+    public void testCommonSubexpressions() throws Exception {
+        bracerParser.parse("sin(x) * sin(x)");
+        Assert.assertThat(bracerParser.getStackRPN(),
+                IsIterableContainingInOrder.contains("*", "$0", "=$0", "sin", "x"));
+        Assert.assertEquals("0.708", bracerParser.evaluate(1));
+    }
+
+    @Test
+    public void testBooleanResult() throws Exception {
+        bracerParser.parse("true or false");
+        Assert.assertEquals("1", bracerParser.evaluate());
+    }
+
+    @Test
+    public void testComplexSameResults() throws Exception {
+        CompiledExpression original = new BracerParser(3).parse(INPUT_VAR);
+        CompiledExpression optimized = original.optimize();
+        Assert.assertTrue(optimized.getVariables().equals(original.getVariables()));
+        for (double value : VALUES) {
+            Assert.assertEquals(original.evaluateComplex(value), optimized.evaluateComplex(value));
+        }
+    }
+
+    @Test
+    public void testRealSameResults() throws Exception {
+        for (String input : REAL_INPUTS) {
+            CompiledExpression original = new BracerParser(3).parse(input);
+            CompiledExpression optimized = bracerParser.parse(input);
+            double[] optimizedBatch = new double[VALUES.length];
+            double[] optimizedBatchIm = new double[VALUES.length];
+            optimized.evaluateBatch(new double[][]{VALUES}, optimizedBatch, optimizedBatchIm);
+            for (int i = 0; i < VALUES.length; i++) {
+                Complex expected = original.evaluateComplex(VALUES[i]);
+                String message = input + " at " + VALUES[i];
+                assertIdentical(message, expected, optimized.evaluateComplex(VALUES[i]));
+                assertIdentical(message, expected, new Complex(optimizedBatch[i], optimizedBatchIm[i]));
+                Assert.assertEquals(message, Double.doubleToLongBits(expected.getReal()),
+                        Double.doubleToLongBits(JitCompiler.compile(optimized).evaluate(VALUES[i])));
+            }
+        }
+    }
+
+    @Test
+    public void testIdempotent() throws Exception {
+        CompiledExpression optimized = bracerParser.parse("sin(x) * sin(x) + sin(x)");
+        Assert.assertEquals(optimized.evaluateReal(2), optimized.optimize().evaluateReal(2), 0);
+    }
+
+    private void assertIdentical(String message, Complex expected, Complex actual) {
+        Assert.assertEquals(message, Double.doubleToLongBits(expected.getReal()),
+                Double.doubleToLongBits(actual.getReal()));
+        Assert.assertEquals(message, Double.doubleToLongBits(expected.getImaginary()),
+                Double.doubleToLongBits(actual.getImaginary()));
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.ExpressionCache;
+import com.autsia.bracer.ParseLimits;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+/**
+ * Test class for {@link ParseLimits}.
+ */
+public class ParseLimitsTest {
+
+    private BracerParser bracerParser;
+
+    @Before
+    public void setUp() {
+        bracerParser = new BracerParser(3);
+    }
+
+    @Test
+    public void testMaxTokens() throws Exception {
+        bracerParser.setLimits(ParseLimits.NONE.withMaxTokens(5));
+        Assert.assertEquals(6, bracerParser.parse("1 + 2 + 3").evaluateReal(), 0);
+        assertRejected("1 + 2 + 3 + 4", 10);
+    }
+
+    @Test
+    public void testMaxNesting() throws Exception {
+        bracerParser.setLimits(ParseLimits.NONE.withMaxNesting(4));
+        Assert.assertEquals(-1, bracerParser.parse("-(sin(x))").evaluateReal(Math.PI / 2), 1e-15);
+        Assert.assertEquals(7, bracerParser.parse("(1 + 2 * 3)").evaluateReal(), 0);
+        assertRejected("(((((1)))))", 4);
+        assertRejected("!!!!!x", 4);
+        bracerParser.setLimits(ParseLimits.NONE.withMaxNesting(3));
+        assertRejected("-(sin(x))", 5);
+    }
+
+    @Test
+    public void testMaxStackDepth() throws Exception {
+        bracerParser.setLimits(ParseLimits.NONE.withMaxStackDepth(4));
+        CompiledExpression compiledExpression = bracerParser.parse("1 + (2 + (3 + 4))");
+        Assert.assertEquals(10, compiledExpression.evaluateReal(), 0);
+        Assert.assertEquals(4, compiledExpression.getMaxStackDepth());
+        assertRejected("1 + (2 + (3 + (4 + 5)))", 19);
+    }
+
+    @Test
+    public void testMaxSteps() throws Exception {
+        bracerParser.setLimits(ParseLimits.NONE.withMaxSteps(5));
+        Assert.assertEquals(12, bracerParser.parse("x * x + x").evaluateReal(3), 0);
+        assertRejected("x * x + x * x", 13);
+        /* the functions of the unclosed brackets are emitted at the end */
+        assertRejected("sin(cos(tan(exp(abs(x", 21);
+    }
+
+    @Test
+    public void testUnbalancedBrackets() throws Exception {
+        assertRejected(")", 0);
+        assertRejected("1 + 2) * (3", 5);
+        assertRejected("sin(x))", 6);
+    }
+
+    @Test
+    public void testLimitValidation() {
+        for (int value : new int[]{0, -1}) {
+            try {
+                ParseLimits.NONE.withMaxSteps(value);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                Assert.assertNotNull(e.getMessage());
+            }
+        }
+        bracerParser.setLimits(null);
+        Assert.assertSame(ParseLimits.NONE, bracerParser.getLimits());
+    }
+
+    @Test
+    public void testExpressionCache() throws Exception {
+        ExpressionCache expressionCache = new ExpressionCache(4, null, ParseLimits.NONE.withMaxTokens(3));
+        Assert.assertEquals(3, expressionCache.get("x + 1").evaluateReal(2), 0);
+        try {
+            expressionCache.get("x + 1 + 1");
+            Assert.fail();
+        } catch (ParseException e) {
+            Assert.assertEquals(6, e.getErrorOffset());
+        }
+        Assert.assertEquals(1, expressionCache.size());
+    }
+
+    @Test
+    public void testLargeExpressions() throws Exception {
+        int n = 10000;
+        bracerParser.setOptimizing(true);
+        Assert.assertEquals(n + 1, bracerParser.parse(nested(n)).evaluateReal(1), 0);
+        Assert.assertEquals(n, bracerParser.parse(variables(n)).getVariables().size());
+        Assert.assertEquals(2, bracerParser.parse(conditions(n)).evaluateReal(5), 0);
+        /* the limits stop the parser long before the end of the input */
+        bracerParser.setLimits(ParseLimits.NONE.withMaxNesting(100));
+        assertRejected(nested(n), 252);
+    }
+
+    @Test
+    public void testLinearScaling() throws Exception {
+        bracerParser.setOptimizing(true);
+        int n = 500;
+        String[][] inputs = {{nested(n), nested(8 * n)}, {variables(n), variables(8 * n)},
+                {conditions(n), conditions(8 * n)}};
+        for (String[] input : inputs) {
+            for (int i = 0; i < 5; i++) {
+                bracerParser.parse(input[0]);
+            }
+            /* eight times the input takes about eight times longer, sixty four if the parsing was quadratic */
+            long small = bestTime(input[0]);
+            long large = bestTime(input[1]);
+            Assert.assertTrue(input[1].substring(0, 20) + ": " + small + " ns vs " + large + " ns",
+                    large < 32 * small);
+        }
+    }
+
+    private long bestTime(String expression) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            bracerParser.parse(expression);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /* x + (x + (... + 1)) */
+    private static String nested(int n) {
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            nested.append("x + (");
+        }
+        nested.append('1');
+        for (int i = 0; i < n; i++) {
+            nested.append(')');
+        }
+        return nested.toString();
+    }
+
+    /* 0 + v0 + v1 + ... */
+    private static String variables(int n) {
+        StringBuilder variables = new StringBuilder("0");
+        for (int i = 0; i < n; i++) {
+            variables.append(" + v").append(i);
+        }
+        return variables.toString();
+    }
+
+    /* if(x > 0, if(x > 1, ... 1, 2), 2) */
+    private static String conditions(int n) {
+        StringBuilder conditions = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            conditions.append("if(x > ").append(i).append(", ");
+        }
+        conditions.append('1');
+        for (int i = 0; i < n; i++) {
+            conditions.append(", 2)");
+        }
+        return conditions.toString();
+    }
+
+    private void assertRejected(String expression, int offset) {
+        try {
+            bracerParser.parse(expression);
+            Assert.fail(expression);
+        } catch (ParseException e) {
+            Assert.assertEquals(expression + ": " + e.getMessage(), offset, e.getErrorOffset());
+        }
+    }
+
+}
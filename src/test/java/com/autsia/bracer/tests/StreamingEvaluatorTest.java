@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Dmytro Titov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.autsia.bracer.tests;
+
+import com.autsia.bracer.BracerParser;
+import com.autsia.bracer.CompiledExpression;
+import com.autsia.bracer.StreamingEvaluator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Test class for {@link StreamingEvaluator}.
+ */
+public class StreamingEvaluatorTest {
+
+    private static final int ROWS = 10;
+    private CompiledExpression compiledExpression;
+
+    @Before
+    public void setUp() throws Exception {
+        compiledExpression = new BracerParser(3).parse("sqrt(x) * y + log(x)");
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long rows = new StreamingEvaluator(compiledExpression, 3).evaluateBinary(
+                Channels.newChannel(new ByteArrayInputStream(binaryInput())),
+                new String[]{"y", "unused", "x"}, Channels.newChannel(output));
+        Assert.assertEquals(ROWS, rows);
+        assertResults(output.toByteArray());
+    }
+
+    @Test
+    public void testMapped() throws Exception {
+        Path file = Files.createTempFile("bracer", ".bin");
+        try {
+            Files.write(file, binaryInput());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long rows = new StreamingEvaluator(compiledExpression, 4).evaluateMapped(channel,
+                        new String[]{"y", "unused", "x"}, Channels.newChannel(output));
+                Assert.assertEquals(ROWS, rows);
+            }
+            assertResults(output.toByteArray());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        StringBuilder input = new StringBuilder("x, y ,unused\r\n");
+        StringBuilder expected = new StringBuilder();
+        for (int row = 0; row < ROWS; row++) {
+            input.append(x(row)).append(',').append(y(row)).append(",abc\r\n");
+            if (row == 4) {
+                input.append('\n');
+            }
+            expected.append(compiledExpression.evaluateReal(x(row), y(row))).append('\n');
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long rows = new StreamingEvaluator(compiledExpression, 3).evaluateCsv(
+                Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.US_ASCII))),
+                Channels.newChannel(output));
+        Assert.assertEquals(ROWS, rows);
+        Assert.assertEquals(expected.toString(), new String(output.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testCsvNumbers() throws Exception {
+        CompiledExpression identity = new BracerParser(3).parse("x");
+        String input = "x\n0.1\n-0\n+2.50\n1e3\n 12345678901234567890.5 \nNaN\n-Infinity\n0.30000000000000004\n";
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new StreamingEvaluator(identity).evaluateCsv(
+                Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII))),
+                Channels.newChannel(output));
+        Assert.assertEquals("0.1\n-0.0\n2.5\n1000.0\n1.2345678901234567E19\nNaN\n-Infinity\n0.30000000000000004\n",
+                new String(output.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCsvWrongFields() throws Exception {
+        new StreamingEvaluator(compiledExpression).evaluateCsv(
+                Channels.newChannel(new ByteArrayInputStream("x,y\n1,2\n3\n".getBytes(StandardCharsets.US_ASCII))),
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedRow() throws Exception {
+        new StreamingEvaluator(compiledExpression).evaluateBinary(
+                Channels.newChannel(new ByteArrayInputStream(new byte[24])), new String[]{"x", "y"},
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnboundVariable() throws Exception {
+        new StreamingEvaluator(compiledExpression).evaluateBinary(
+                Channels.newChannel(new ByteArrayInputStream(new byte[0])), new String[]{"x"},
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    private static double x(int row) {
+        return row * 0.75 - 1;
+    }
+
+    private static double y(int row) {
+        return row + 0.5;
+    }
+
+    /* rows of y, unused and x */
+    private static byte[] binaryInput() {
+        ByteBuffer buffer = ByteBuffer.allocate(ROWS * 24).order(ByteOrder.LITTLE_ENDIAN);
+        for (int row = 0; row < ROWS; row++) {
+            buffer.putDouble(y(row)).putDouble(-row).putDouble(x(row));
+        }
+        return buffer.array();
+    }
+
+    private void assertResults(byte[] output) {
+        Assert.assertEquals(ROWS * 8, output.length);
+        ByteBuffer buffer = ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN);
+        for (int row = 0; row < ROWS; row++) {
+            Assert.assertEquals(compiledExpression.evaluateReal(x(row), y(row)), buffer.getDouble(), 0);
+        }
+    }
+
+}